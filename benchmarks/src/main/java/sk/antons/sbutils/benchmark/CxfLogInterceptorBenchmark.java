@@ -0,0 +1,105 @@
+/*
+ *
+ */
+package sk.antons.sbutils.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import org.apache.cxf.binding.soap.SoapMessage;
+import org.apache.cxf.message.Exchange;
+import org.apache.cxf.message.ExchangeImpl;
+import org.apache.cxf.message.MessageImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import sk.antons.sbutils.ws.CxfLogInterceptor;
+
+/**
+ * Cost of CxfLogInterceptor.handleMessage() for outgoing and incoming soap
+ * messages. Messages are synthetic, outgoing one is written to counting stream
+ * and incoming one is read from memory.
+ *
+ * @author antons
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CxfLogInterceptorBenchmark {
+
+    @Param({"1024", "65536", "1048576", "10485760"})
+    public int size;
+    @Param({"true", "false"})
+    public boolean logging;
+    @Param({"true", "false"})
+    public boolean oneLine;
+
+    private CxfLogInterceptor out;
+    private CxfLogInterceptor in;
+    private byte[] payload;
+    private LogSink sink;
+
+    @Setup
+    public void setup() {
+        payload = Payloads.soap(size);
+        sink = new LogSink();
+        out = CxfLogInterceptor.out()
+            .forceOneLine(oneLine)
+            .loggerEnabled(() -> logging)
+            .logger(sink);
+        in = CxfLogInterceptor.in()
+            .forceOneLine(oneLine)
+            .loggerEnabled(() -> logging)
+            .logger(sink);
+    }
+
+    private static SoapMessage message(Exchange exchange) {
+        SoapMessage message = new SoapMessage(new MessageImpl());
+        message.setExchange(exchange);
+        return message;
+    }
+
+    private long exchange() throws IOException {
+        Exchange exchange = new ExchangeImpl();
+
+        SoapMessage request = message(exchange);
+        InMemoryHttp.CountingOutputStream os = new InMemoryHttp.CountingOutputStream();
+        request.setContent(OutputStream.class, os);
+        out.handleMessage(request);
+        OutputStream wrapped = request.getContent(OutputStream.class);
+        wrapped.write(payload);
+        wrapped.close();
+
+        SoapMessage response = message(exchange);
+        response.setContent(InputStream.class, new ByteArrayInputStream(payload));
+        in.handleMessage(response);
+        return os.count() + InMemoryHttp.drain(response.getContent(InputStream.class));
+    }
+
+    @Benchmark
+    public long handleMessage() throws IOException {
+        return exchange();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public long handleMessageConcurrent() throws IOException {
+        return exchange();
+    }
+}
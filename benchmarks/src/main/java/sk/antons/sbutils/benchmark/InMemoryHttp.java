@@ -0,0 +1,126 @@
+/*
+ *
+ */
+package sk.antons.sbutils.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpRequest;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpResponse;
+
+/**
+ * In memory stand-ins for http client infrastructure. Nothing goes to network,
+ * every response is served from prepared byte array.
+ *
+ * @author antons
+ */
+public class InMemoryHttp {
+
+    public static HttpRequest request(HttpMethod method, String uri) {
+        return new Request(method, URI.create(uri));
+    }
+
+    public static ClientHttpRequestExecution execution(int status, byte[] body) {
+        return (request, requestBody) -> new Response(status, body);
+    }
+
+    public static ClientHttpRequestFactory requestFactory(int status, byte[] body) {
+        return (uri, method) -> new Request(method, uri) {
+            @Override
+            public ClientHttpResponse execute() throws IOException {
+                return new Response(status, body);
+            }
+        };
+    }
+
+    /**
+     * Reads whole response body as message converter would do and closes response.
+     * @return number of bytes read
+     */
+    public static long consume(ClientHttpResponse response) throws IOException {
+        try {
+            return drain(response.getBody());
+        } finally {
+            response.close();
+        }
+    }
+
+    public static long drain(InputStream is) throws IOException {
+        if(is == null) return 0;
+        byte[] buff = new byte[8192];
+        long rv = 0;
+        int len = 0;
+        while((len = is.read(buff)) > -1) rv += len;
+        is.close();
+        return rv;
+    }
+
+    private static class Request implements ClientHttpRequest {
+        private final HttpMethod method;
+        private final URI uri;
+        private final HttpHeaders headers = new HttpHeaders();
+        private final CountingOutputStream body = new CountingOutputStream();
+
+        public Request(HttpMethod method, URI uri) {
+            this.method = method;
+            this.uri = uri;
+            headers.setContentType(MediaType.APPLICATION_JSON);
+        }
+
+        @Override
+        public ClientHttpResponse execute() throws IOException { throw new UnsupportedOperationException(); }
+        @Override
+        public String getMethodValue() { return method.name(); }
+        @Override
+        public URI getURI() { return uri; }
+        @Override
+        public HttpHeaders getHeaders() { return headers; }
+        @Override
+        public OutputStream getBody() throws IOException { return body; }
+    }
+
+    private static class Response implements ClientHttpResponse {
+        private final int status;
+        private final InputStream body;
+        private final HttpHeaders headers = new HttpHeaders();
+
+        public Response(int status, byte[] body) {
+            this.status = status;
+            this.body = new ByteArrayInputStream(body);
+            headers.setContentType(MediaType.APPLICATION_JSON);
+            headers.setContentLength(body.length);
+        }
+
+        @Override
+        public HttpStatus getStatusCode() throws IOException { return HttpStatus.valueOf(status); }
+        @Override
+        public int getRawStatusCode() throws IOException { return status; }
+        @Override
+        public String getStatusText() throws IOException { return HttpStatus.valueOf(status).getReasonPhrase(); }
+        @Override
+        public void close() { }
+        @Override
+        public InputStream getBody() throws IOException { return body; }
+        @Override
+        public HttpHeaders getHeaders() { return headers; }
+    }
+
+    public static class CountingOutputStream extends OutputStream {
+        private long count = 0;
+        @Override
+        public void write(int b) throws IOException { count++; }
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException { count += len; }
+        public long count() { return count; }
+    }
+}
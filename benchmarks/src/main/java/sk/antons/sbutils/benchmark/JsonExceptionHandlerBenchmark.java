@@ -0,0 +1,96 @@
+/*
+ *
+ */
+package sk.antons.sbutils.benchmark;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import sk.antons.sbutils.http.JsonExceptionHandler;
+
+/**
+ * Cost of JsonExceptionHandler.process() for exception chain of given depth.
+ * Logging prints full stack trace as typical advice does.
+ *
+ * @author antons
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonExceptionHandlerBenchmark {
+
+    @Param({"1", "5"})
+    public int depth;
+    @Param({"true", "false"})
+    public boolean logging;
+
+    private JsonExceptionHandler handler;
+    private Throwable exception;
+    private LogSink sink;
+
+    @Setup
+    public void setup() {
+        sink = new LogSink();
+        handler = JsonExceptionHandler.instance();
+        if(logging) handler.logger(t -> sink.accept(trace(t)));
+        Throwable t = new BusinessException("item 123 not found");
+        for(int i = 1; i < depth; i++) {
+            t = new IllegalStateException("wrapped " + i, t);
+        }
+        exception = t;
+    }
+
+    private static String trace(Throwable t) {
+        StringWriter sw = new StringWriter();
+        t.printStackTrace(new PrintWriter(sw));
+        return sw.toString();
+    }
+
+    @Benchmark
+    public Object process() {
+        return handler.process(exception);
+    }
+
+    /**
+     * Compact json written directly to stream.
+     */
+    @Benchmark
+    public long write() throws IOException {
+        InMemoryHttp.CountingOutputStream os = new InMemoryHttp.CountingOutputStream();
+        handler.write(exception, os);
+        return os.count();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public Object processConcurrent() {
+        return handler.process(exception);
+    }
+
+    @ResponseStatus(HttpStatus.NOT_FOUND)
+    public static class BusinessException extends RuntimeException {
+        private String code = "ITEM_NOT_FOUND";
+        public BusinessException(String message) { super(message); }
+        public String getCode() { return code; }
+    }
+}
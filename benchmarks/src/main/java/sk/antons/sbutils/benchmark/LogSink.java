@@ -0,0 +1,25 @@
+/*
+ *
+ */
+package sk.antons.sbutils.benchmark;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Logger stand-in. Consumes message and remembers its length so JIT can not
+ * eliminate message creation.
+ *
+ * @author antons
+ */
+public class LogSink implements Consumer<String> {
+
+    private final LongAdder chars = new LongAdder();
+
+    @Override
+    public void accept(String message) {
+        if(message != null) chars.add(message.length());
+    }
+
+    public long chars() { return chars.sum(); }
+}
@@ -0,0 +1,83 @@
+/*
+ *
+ */
+package sk.antons.sbutils.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpRequest;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpResponse;
+import sk.antons.sbutils.http.LoggingInterceptor;
+import sk.antons.sbutils.log.BodyFormatter;
+
+/**
+ * Cost of LoggingInterceptor.intercept() for one request/response exchange
+ * including reading of response body.
+ *
+ * @author antons
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoggingInterceptorBenchmark {
+
+    @Param({"1024", "65536", "1048576", "10485760"})
+    public int size;
+    @Param({"true", "false"})
+    public boolean logging;
+    @Param({"true", "false"})
+    public boolean oneLine;
+
+    private LoggingInterceptor interceptor;
+    private HttpRequest request;
+    private byte[] body;
+    private ClientHttpRequestExecution execution;
+    private LogSink sink;
+
+    @Setup
+    public void setup() {
+        body = Payloads.json(size);
+        request = InMemoryHttp.request(HttpMethod.POST, "http://localhost/items");
+        execution = InMemoryHttp.execution(200, body);
+        sink = new LogSink();
+        interceptor = LoggingInterceptor.instance()
+            .loggerEnabled(() -> logging)
+            .logger(sink);
+        if(oneLine) {
+            interceptor.requestBodyFormatter(BodyFormatter.jsonOneLine());
+            interceptor.responseBodyFormatter(BodyFormatter.jsonOneLine());
+        }
+    }
+
+    @Benchmark
+    public long intercept() throws IOException {
+        ClientHttpResponse response = interceptor.intercept(request, body, execution);
+        return InMemoryHttp.consume(response);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public long interceptConcurrent() throws IOException {
+        ClientHttpResponse response = interceptor.intercept(request, body, execution);
+        return InMemoryHttp.consume(response);
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ *
+ */
+package sk.antons.sbutils.benchmark;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Synthetic pretty printed json and soap payloads of requested size.
+ *
+ * @author antons
+ */
+public class Payloads {
+
+    public static byte[] json(int size) {
+        StringBuilder sb = new StringBuilder(size + 256);
+        sb.append("[\n");
+        int i = 0;
+        while(sb.length() < size) {
+            if(i > 0) sb.append(",\n");
+            sb.append("  {\n")
+                .append("    \"id\" : ").append(i).append(",\n")
+                .append("    \"name\" : \"item ").append(i).append("\",\n")
+                .append("    \"value\" : \"lorem ipsum dolor sit amet\"\n")
+                .append("  }");
+            i++;
+        }
+        sb.append("\n]");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static byte[] soap(int size) {
+        StringBuilder sb = new StringBuilder(size + 256);
+        sb.append("<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\">\n")
+            .append("  <soapenv:Body>\n")
+            .append("    <items xmlns=\"http://antons.sk/bench\">\n");
+        int i = 0;
+        while(sb.length() < size) {
+            sb.append("      <item id=\"").append(i).append("\">\n")
+                .append("        <name>item ").append(i).append("</name>\n")
+                .append("        <value>lorem ipsum dolor sit amet</value>\n")
+                .append("      </item>\n");
+            i++;
+        }
+        sb.append("    </items>\n")
+            .append("  </soapenv:Body>\n")
+            .append("</soapenv:Envelope>\n");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ *
+ */
+package sk.antons.sbutils.benchmark;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.web.client.RestTemplate;
+import sk.antons.sbutils.http.LoggingInterceptor;
+import sk.antons.sbutils.log.BodyFormatter;
+import sk.antons.sbutils.rest.RestTemplateClient;
+
+/**
+ * Cost of RestTemplateClient.Request.call() over RestTemplate served from memory.
+ * If logging is enabled LoggingInterceptor is registered to template.
+ *
+ * @author antons
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RestTemplateClientBenchmark {
+
+    @Param({"1024", "65536", "1048576", "10485760"})
+    public int size;
+    @Param({"true", "false"})
+    public boolean logging;
+    @Param({"true", "false"})
+    public boolean oneLine;
+
+    private RestTemplateClient client;
+    private LogSink sink;
+
+    @Setup
+    public void setup() {
+        sink = new LogSink();
+        RestTemplate template = new RestTemplate(InMemoryHttp.requestFactory(200, Payloads.json(size)));
+        if(logging) {
+            LoggingInterceptor interceptor = LoggingInterceptor.instance()
+                .loggerEnabled(() -> true)
+                .logger(sink);
+            if(oneLine) {
+                interceptor.requestBodyFormatter(BodyFormatter.jsonOneLine());
+                interceptor.responseBodyFormatter(BodyFormatter.jsonOneLine());
+            }
+            interceptor.addToTemplate(template);
+        }
+        client = RestTemplateClient.Builder.instance()
+            .template(template)
+            .root("http://localhost")
+            .client();
+    }
+
+    private String call() {
+        return client.get()
+            .path("/items/{id}", 1)
+            .query("page", 2)
+            .call(String.class);
+    }
+
+    /**
+     * Fan out of 20 async calls.
+     */
+    @Benchmark
+    public int callAsyncFanOut() {
+        CompletableFuture<String>[] futures = new CompletableFuture[20];
+        for(int i = 0; i < futures.length; i++) {
+            futures[i] = client.get()
+                .path("/items/{id}", i)
+                .callAsync(String.class);
+        }
+        int rv = 0;
+        for(CompletableFuture<String> future : futures) rv += future.join().length();
+        return rv;
+    }
+
+    @Benchmark
+    public String callString() {
+        return call();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public String callStringConcurrent() {
+        return call();
+    }
+}
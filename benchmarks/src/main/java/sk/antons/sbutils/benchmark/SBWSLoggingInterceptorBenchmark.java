@@ -0,0 +1,108 @@
+/*
+ *
+ */
+package sk.antons.sbutils.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import javax.xml.transform.Result;
+import javax.xml.transform.Source;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.ws.WebServiceMessage;
+import org.springframework.ws.WebServiceMessageFactory;
+import org.springframework.ws.context.DefaultMessageContext;
+import org.springframework.ws.context.MessageContext;
+import sk.antons.sbutils.ws.SBWSLoggingInterceptor;
+
+/**
+ * Cost of SBWSLoggingInterceptor for one request/response pair. Messages are
+ * stubs writing prepared payload.
+ *
+ * @author antons
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SBWSLoggingInterceptorBenchmark {
+
+    @Param({"1024", "65536", "1048576", "10485760"})
+    public int size;
+    @Param({"true", "false"})
+    public boolean logging;
+    @Param({"true", "false"})
+    public boolean oneLine;
+
+    private SBWSLoggingInterceptor interceptor;
+    private StubMessage message;
+    private StubMessageFactory factory;
+    private LogSink sink;
+
+    @Setup
+    public void setup() {
+        message = new StubMessage(Payloads.soap(size));
+        factory = new StubMessageFactory(message);
+        sink = new LogSink();
+        interceptor = SBWSLoggingInterceptor.instance()
+            .forceOneLine(oneLine)
+            .loggerEnabled(() -> logging)
+            .logger(sink);
+    }
+
+    private long exchange() {
+        MessageContext context = new DefaultMessageContext(message, factory);
+        interceptor.handleRequest(context);
+        context.setResponse(message);
+        interceptor.handleResponse(context);
+        interceptor.afterCompletion(context, null);
+        return sink.chars();
+    }
+
+    @Benchmark
+    public long handleMessages() {
+        return exchange();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public long handleMessagesConcurrent() {
+        return exchange();
+    }
+
+    private static class StubMessage implements WebServiceMessage {
+        private final byte[] payload;
+        public StubMessage(byte[] payload) { this.payload = payload; }
+        @Override
+        public Source getPayloadSource() { throw new UnsupportedOperationException(); }
+        @Override
+        public Result getPayloadResult() { throw new UnsupportedOperationException(); }
+        @Override
+        public void writeTo(OutputStream os) throws IOException { os.write(payload); }
+    }
+
+    private static class StubMessageFactory implements WebServiceMessageFactory {
+        private final StubMessage message;
+        public StubMessageFactory(StubMessage message) { this.message = message; }
+        @Override
+        public WebServiceMessage createWebServiceMessage() { return message; }
+        @Override
+        public WebServiceMessage createWebServiceMessage(InputStream is) throws IOException { return message; }
+    }
+}
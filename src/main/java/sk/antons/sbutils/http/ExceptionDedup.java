@@ -0,0 +1,284 @@
+/*
+ *
+ */
+package sk.antons.sbutils.http;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Exception logger which suppresses repeated exceptions. Exceptions are
+ * fingerprinted by class, message template (numbers are ignored) and
+ * classes of causes. First occurrence is logged in full by delegate logger,
+ * repeated ones only increment counter and summary like
+ * "exception seen 4812 times in last 10s" is logged once per window.
+ *
+ * Fingerprint is computed as hash without formatting of message and
+ * without stack trace, so same exception thrown from different places
+ * has same fingerprint. Top stack frames are resolved only for first
+ * occurrence of fingerprint and are part of summary.
+ *
+ * {@code <pre>}
+ * JsonExceptionHandler handler = JsonExceptionHandler.instance()
+ *     .logger(ExceptionDedup.instance(t -> log.info("request failed {} ", Stk.trace(t)))
+ *         .window(10000)
+ *         .summaryLogger(m -> log.info(m)));
+ * {@code </pre>}
+ *
+ * Without start() summaries are logged only when next occurrence comes
+ * after window and caller must call summarize() periodically to log
+ * summaries of storms which ended. start() runs summarize() once per window
+ * in background thread. Fingerprints idle longer than window are evicted
+ * by summarize() and when maxFingerprints is reached.
+ *
+ * @author antons
+ */
+public class ExceptionDedup implements Consumer<Throwable>, AutoCloseable {
+    private static Logger log = LoggerFactory.getLogger(ExceptionDedup.class);
+
+    private final Consumer<Throwable> logger;
+    private Consumer<String> summaryLogger = m -> log.info(m);
+    private long window = 10000;
+    private int frames = 3;
+    private int maxFingerprints = 1000;
+    private final Map<Long, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong nextEviction = new AtomicLong();
+    private ScheduledExecutorService scheduler = null;
+
+    private ExceptionDedup(Consumer<Throwable> logger) { this.logger = logger; }
+    public static ExceptionDedup instance(Consumer<Throwable> logger) { return new ExceptionDedup(logger); }
+
+    /** Summary window in millis (default 10000). */
+    public ExceptionDedup window(long value) { this.window = value; return this; }
+    /** Number of top stack frames resolved for first occurrence and shown in summary (default 3). */
+    public ExceptionDedup frames(int value) { this.frames = value; return this; }
+    /**
+     * Max number of tracked fingerprints (default 1000). Idle fingerprints
+     * are evicted when limit is reached, exceptions above limit are always
+     * logged.
+     */
+    public ExceptionDedup maxFingerprints(int value) { this.maxFingerprints = value; return this; }
+    /** Logger for summaries (default info level of this class logger). */
+    public ExceptionDedup summaryLogger(Consumer<String> value) { this.summaryLogger = value; return this; }
+
+    @Override
+    public void accept(Throwable t) {
+        if(t == null) return;
+        long fingerprint = fingerprint(t);
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(fingerprint);
+        if(entry == null) {
+            if((entries.size() >= maxFingerprints) && !evict(now)) {
+                logger.accept(t);
+                return;
+            }
+            Entry created = new Entry(fingerprint, t, frames, now);
+            entry = entries.putIfAbsent(fingerprint, created);
+            if(entry == null) {
+                logger.accept(t);
+                return;
+            }
+        }
+        entry.total.increment();
+        long last = entry.lastSeen;
+        entry.lastSeen = now;
+        if(now - last > window) {
+            // previous storm is over, log it and this one in full
+            summarize(entry, now, true);
+            logger.accept(t);
+            return;
+        }
+        entry.pending.incrementAndGet();
+        if(now - entry.windowStart.get() >= window) summarize(entry, now, false);
+    }
+
+    /**
+     * Logs summaries of all exceptions suppressed since last summary and
+     * evicts fingerprints idle longer than window.
+     */
+    public void summarize() {
+        long now = System.currentTimeMillis();
+        for(Entry entry : entries.values()) {
+            summarize(entry, now, true);
+            if(now - entry.lastSeen > window) entries.remove(entry.fingerprint, entry);
+        }
+    }
+
+    /**
+     * Starts background thread which calls summarize() once per window.
+     */
+    public synchronized ExceptionDedup start() {
+        if(scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "exception-dedup");
+                t.setDaemon(true);
+                return t;
+            });
+            scheduler.scheduleAtFixedRate(() -> {
+                try {
+                    summarize();
+                } catch(RuntimeException e) {
+                    log.warn("unable to summarize exceptions {}", e.toString());
+                }
+            }, window, window, TimeUnit.MILLISECONDS);
+        }
+        return this;
+    }
+
+    /**
+     * Stops background thread and logs pending summaries.
+     */
+    @Override
+    public void close() {
+        synchronized(this) {
+            if(scheduler != null) scheduler.shutdownNow();
+            scheduler = null;
+        }
+        summarize();
+    }
+
+    /**
+     * @return snapshot of tracked exceptions
+     */
+    public List<Entry> entries() { return new ArrayList<>(entries.values()); }
+
+    public void reset() { entries.clear(); }
+
+    /**
+     * Evicts fingerprints idle longer than window. Map is scanned at most
+     * once per window.
+     * @return true if there is space for new fingerprint
+     */
+    private boolean evict(long now) {
+        long next = nextEviction.get();
+        if((now >= next) && nextEviction.compareAndSet(next, now + window)) {
+            for(Entry entry : entries.values()) {
+                if(now - entry.lastSeen <= window) continue;
+                summarize(entry, now, true);
+                entries.remove(entry.fingerprint, entry);
+            }
+        }
+        return entries.size() < maxFingerprints;
+    }
+
+    private void summarize(Entry entry, long now, boolean force) {
+        long start = entry.windowStart.get();
+        if(!force && (now - start < window)) return;
+        if(!entry.windowStart.compareAndSet(start, now)) return;
+        long count = entry.pending.getAndSet(0);
+        if((count > 0) && (summaryLogger != null)) {
+            long millis = now - start;
+            String duration = millis < 1000 ? millis + "ms" : (millis / 1000) + "s";
+            summaryLogger.accept("exception seen " + count + " times in last " + duration + ": " + entry);
+        }
+    }
+
+    private static long fingerprint(Throwable t) {
+        long h = 1125899906842597L;
+        h = mix(h, t.getClass().getName().hashCode());
+        h = template(h, t.getMessage());
+        int depth = 0;
+        for(Throwable c = t.getCause(); (c != null) && (depth < 8); c = c.getCause(), depth++) {
+            h = mix(h, c.getClass().getName().hashCode());
+        }
+        return h;
+    }
+
+    /**
+     * Hashes message with digit sequences replaced by one placeholder.
+     */
+    private static long template(long h, String message) {
+        if(message == null) return mix(h, 0);
+        int len = Math.min(message.length(), 200);
+        boolean digit = false;
+        for(int i = 0; i < len; i++) {
+            char c = message.charAt(i);
+            if((c >= '0') && (c <= '9')) {
+                if(!digit) h = mix(h, '#');
+                digit = true;
+            } else {
+                h = mix(h, c);
+                digit = false;
+            }
+        }
+        return h;
+    }
+
+    private static long mix(long h, int value) {
+        return (h ^ value) * 0x100000001B3L;
+    }
+
+    private static String template(String message) {
+        if(message == null) return "";
+        String m = message.length() > 200 ? message.substring(0, 200) : message;
+        return m.replaceAll("[0-9]+", "#");
+    }
+
+    /**
+     * Counters of one fingerprint.
+     */
+    public static class Entry {
+        private final long fingerprint;
+        private final String exception;
+        private final String message;
+        private final String frames;
+        private final long firstSeen;
+        private volatile long lastSeen;
+        private final LongAdder total = new LongAdder();
+        private final AtomicLong pending = new AtomicLong();
+        private final AtomicLong windowStart;
+
+        private Entry(long fingerprint, Throwable t, int frames, long now) {
+            this.fingerprint = fingerprint;
+            this.exception = t.getClass().getName();
+            this.message = template(t.getMessage());
+            this.frames = frames(t, frames);
+            this.firstSeen = now;
+            this.lastSeen = now;
+            this.windowStart = new AtomicLong(now);
+            this.total.increment();
+        }
+
+        public long fingerprint() { return fingerprint; }
+        public String exception() { return exception; }
+        /** Message template (numbers replaced by #). */
+        public String message() { return message; }
+        /** Top stack frames of first occurrence. */
+        public String frames() { return frames; }
+        public long firstSeen() { return firstSeen; }
+        public long lastSeen() { return lastSeen; }
+        /** Number of all occurrences. */
+        public long count() { return total.sum(); }
+        /** Number of occurrences not reported yet. */
+        public long pending() { return pending.get(); }
+
+        @Override
+        public String toString() {
+            return exception + ": " + message + (frames.isEmpty() ? "" : " at " + frames)
+                + " [" + Long.toHexString(fingerprint) + ", total " + count() + "]";
+        }
+
+        private static String frames(Throwable t, int frames) {
+            if(frames <= 0) return "";
+            StackTraceElement[] stack = t.getStackTrace();
+            int n = Math.min(frames, stack.length);
+            StringBuilder sb = new StringBuilder();
+            for(int i = 0; i < n; i++) {
+                if(i > 0) sb.append(" < ");
+                sb.append(stack[i].getClassName()).append('.').append(stack[i].getMethodName())
+                    .append(':').append(stack[i].getLineNumber());
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -5,21 +5,38 @@ package sk.antons.sbutils.http;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import com.fasterxml.jackson.annotation.JsonUnwrapped;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import org.springframework.beans.factory.annotation.AnnotatedBeanDefinition;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.context.annotation.ClassPathScanningCandidateComponentProvider;
+import org.springframework.core.type.filter.AssignableTypeFilter;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.server.ServerHttpResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.web.bind.annotation.ResponseStatus;
@@ -33,7 +50,8 @@ import org.springframework.web.bind.annotation.ResponseStatus;
  *
  *     JsonExceptionHandler handler = JsonExceptionHandler.instance()
  *         .logger(t -> log.info("request failed {} ", Stk.trace(t)))
- *         // .statusResolver(JsonExceptionHandler.DefaultStatusResolver.instance().status(MyAppException.class, HttpStatus.CONFLICT))
+ *         // .logger(ExceptionDedup.instance(t -> log.info("request failed {} ", Stk.trace(t)))) // repeated exceptions as summaries
+ *         // .statusResolver(JsonExceptionHandler.DefaultStatusResolver.instance().status(MyAppException.class, HttpStatus.CONFLICT).warmup("sk.antons.project"))
  *         // .processor(JsonExceptionHandler.DefaultExceptionProcessor.instance())
  *         );
  *
@@ -69,60 +87,162 @@ public class JsonExceptionHandler {
      * @return
      */
     public ResponseEntity<ObjectNode> process(final Throwable ex) {
-
-        if(logger != null) logger.accept(ex);
-
-        ExceptionInfo info = new ExceptionInfo();
-        resolve(ex, info);
-
-        Throwable t = info.markedExc;
-        if(t == null) t = info.lastNonJavaExc;
-        if(t == null) t = info.lastExc;
-        if(t == null) t = ex;
-
-        HttpStatus status = info.status;
-        if(status == null) status = HttpStatus.INTERNAL_SERVER_ERROR;
-
+        ExceptionInfo info = info(ex, true);
+        Throwable t = info.exception(ex);
         if(processor == null) processor = DefaultExceptionProcessor.instance();
         ObjectNode node = processor instanceof DefaultExceptionProcessor
             ? ((DefaultExceptionProcessor)processor).apply(t, info) : processor.apply(t);
 
-        return new ResponseEntity<>(node, status);
+        return new ResponseEntity<>(node, info.status());
     }
 
-    private void resolve(Throwable t, ExceptionInfo ei) {
-        if(t == null) return;
+    /**
+     * Same as process() but json is written directly to response as compact
+     * json. No intermediate ObjectNode tree or message list is created and
+     * shared mapper with cached serializers is used.
+     * {@code <pre>}
+     * {@code @}ExceptionHandler(Throwable.class)
+     * public void throwable(final Throwable ex, HttpServletResponse response) throws IOException {
+     *     handler.write(ex, new ServletServerHttpResponse(response));
+     * }
+     * {@code </pre>}
+     */
+    public void write(final Throwable ex, ServerHttpResponse response) throws IOException {
+        ExceptionInfo info = info(ex, false);
+        response.setStatusCode(info.status());
+        response.getHeaders().setContentType(MediaType.APPLICATION_JSON);
+        write(ex, info, response.getBody());
+        response.flush();
+    }
 
-        if(ei.lastExc == null) ei.lastExc = t;
+    /**
+     * Writes compact json of exception to stream (see write(Throwable, ServerHttpResponse)).
+     * @return http status for exception
+     */
+    public HttpStatus write(final Throwable ex, OutputStream os) throws IOException {
+        ExceptionInfo info = info(ex, false);
+        write(ex, info, os);
+        return info.status();
+    }
 
-        if(ei.lastNonJavaExc == null) {
-            String clazz = t.getClass().getName();
-            if(!clazz.startsWith("java")) ei.lastNonJavaExc = t;
+    private void write(Throwable ex, ExceptionInfo info, OutputStream os) throws IOException {
+        Throwable t = info.exception(ex);
+        if((processor == null) || (processor instanceof DefaultExceptionProcessor)) {
+            DefaultExceptionProcessor.write(t, info.chainLength > 1 ? info.lastExc : null, os);
+        } else {
+            DefaultExceptionProcessor.MAPPER.writeValue(os, processor.apply(t));
         }
+    }
 
-        String message = t.getMessage();
-        if(message == null) ei.allMessages.add(t.getClass().getSimpleName());
-        else ei.allMessages.add(t.getClass().getSimpleName() + ": " + message);
+    private ExceptionInfo info(Throwable ex, boolean messages) {
+        if(logger != null) logger.accept(ex);
+        ExceptionInfo info = new ExceptionInfo();
+        if(messages) info.allMessages = new ArrayList<>();
+        resolve(ex, info);
+        return info;
+    }
 
+    private static final int MAX_CHAIN = 32;
+    private final Map<ChainKey, Resolution> resolutions = new ConcurrentHashMap<>();
+
+    private void resolve(Throwable ex, ExceptionInfo ei) {
+        Throwable[] chain = new Throwable[MAX_CHAIN];
+        int length = 0;
+        for(Throwable t = ex; (t != null) && (length < MAX_CHAIN); t = t.getCause()) {
+            chain[length++] = t;
+            if(ei.allMessages != null) ei.allMessages.add(message(t));
+        }
+        ei.chainLength = length;
+        if(length == 0) return;
+        ei.lastExc = chain[0];
+
+        Resolution resolution = null;
+        if(statusResolver instanceof DefaultStatusResolver) {
+            // default resolver depends on classes only, so result is same for same chain of classes
+            Object version = ((DefaultStatusResolver)statusResolver).cache;
+            ChainKey key = new ChainKey(chain, length);
+            resolution = resolutions.get(key);
+            if((resolution == null) || (resolution.version != version)) {
+                resolution = resolution(chain, length);
+                resolution.version = version;
+                if(resolutions.size() < 1024) resolutions.put(key, resolution);
+            }
+        } else {
+            resolution = resolution(chain, length);
+        }
+        if(resolution.nonJava >= 0) ei.lastNonJavaExc = chain[resolution.nonJava];
+        if(resolution.marked >= 0) {
+            ei.markedExc = chain[resolution.marked];
+            ei.status = resolution.status;
+        }
+    }
 
-        if(ei.status == null) {
-            HttpStatus status = null;
-            if(statusResolver != null) status = statusResolver.apply(t);
-            if(status != null) {
-                ei.markedExc = t;
-                ei.status = status;
+    private Resolution resolution(Throwable[] chain, int length) {
+        Resolution resolution = new Resolution();
+        for(int i = 0; i < length; i++) {
+            Throwable t = chain[i];
+            if((resolution.nonJava < 0) && !t.getClass().getName().startsWith("java")) resolution.nonJava = i;
+            if((resolution.marked < 0) && (statusResolver != null)) {
+                HttpStatus status = statusResolver.apply(t);
+                if(status != null) {
+                    resolution.marked = i;
+                    resolution.status = status;
+                }
             }
         }
+        return resolution;
+    }
 
-        resolve(t.getCause(), ei);
+    /**
+     * Result of resolve() for one chain of exception classes.
+     */
+    private static class Resolution {
+        int nonJava = -1;
+        int marked = -1;
+        HttpStatus status;
+        Object version;
+    }
+
+    private static class ChainKey {
+        private final Class<?>[] classes;
+        private final int hash;
+
+        private ChainKey(Throwable[] chain, int length) {
+            classes = new Class<?>[length];
+            for(int i = 0; i < length; i++) classes[i] = chain[i].getClass();
+            hash = Arrays.hashCode(classes);
+        }
+
+        @Override public int hashCode() { return hash; }
+        @Override public boolean equals(Object o) {
+            return (o instanceof ChainKey) && Arrays.equals(classes, ((ChainKey)o).classes);
+        }
+    }
+
+    private static String message(Throwable t) {
+        String message = t.getMessage();
+        return message == null ? t.getClass().getSimpleName() : t.getClass().getSimpleName() + ": " + message;
     }
 
     private static class ExceptionInfo {
         Throwable lastExc;
         Throwable lastNonJavaExc;
         Throwable markedExc;
-        List<String> allMessages = new ArrayList<>();
+        List<String> allMessages;
+        int chainLength;
         HttpStatus status;
+
+        Throwable exception(Throwable ex) {
+            Throwable t = markedExc;
+            if(t == null) t = lastNonJavaExc;
+            if(t == null) t = lastExc;
+            if(t == null) t = ex;
+            return t;
+        }
+
+        HttpStatus status() {
+            return status == null ? HttpStatus.INTERNAL_SERVER_ERROR : status;
+        }
     }
 
     /**
@@ -163,18 +283,61 @@ public class JsonExceptionHandler {
             return node;
         }
 
-        private ObjectMapper om = null;
-        private ObjectMapper om() {
-            if(om == null) {
-                ObjectMapper o = new ObjectMapper();
-                o.setSerializationInclusion(JsonInclude.Include.NON_NULL);
-                o.configure(SerializationFeature.INDENT_OUTPUT, true);
-                o.addMixIn(Throwable.class, MixIn.class);
-                om = o;
+        /** Shared mapper used by all processors. */
+        private static final ObjectMapper MAPPER = mapper();
+        private static final ObjectWriter ENVELOPE = MAPPER.writerFor(Envelope.class);
+
+        private ObjectMapper om() { return MAPPER; }
+
+        private static ObjectMapper mapper() {
+            ObjectMapper o = new ObjectMapper();
+            o.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+            o.configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false);
+            o.addMixIn(Throwable.class, MixIn.class);
+            return o;
+        }
+
+        /**
+         * Writes exception properties, class and messages of cause chain
+         * (if chain is not null) as one json object. Serializers are cached
+         * per exception class by shared mapper.
+         */
+        private static void write(Throwable t, Throwable chain, OutputStream os) throws IOException {
+            ENVELOPE.writeValue(os, new Envelope(t, chain));
+        }
+
+        @JsonPropertyOrder({"exception", "class", "allMesages"})
+        private static class Envelope {
+            @JsonUnwrapped
+            public final Throwable exception;
+            @JsonProperty("class")
+            public final String clazz;
+            @JsonProperty("allMesages")
+            @JsonSerialize(using = MessagesSerializer.class)
+            public final Throwable allMesages;
+
+            private Envelope(Throwable exception, Throwable chain) {
+                this.exception = exception;
+                this.clazz = exception.getClass().getSimpleName();
+                this.allMesages = chain;
             }
-            return om;
         }
 
+        /**
+         * Writes messages of cause chain as array of strings.
+         */
+        private static class MessagesSerializer extends JsonSerializer<Throwable> {
+            @Override
+            public void serialize(Throwable value, JsonGenerator gen, SerializerProvider serializers) throws IOException {
+                gen.writeStartArray();
+                int count = 0;
+                for(Throwable t = value; (t != null) && (count < MAX_CHAIN); t = t.getCause()) {
+                    gen.writeString(message(t));
+                    count++;
+                }
+                gen.writeEndArray();
+            }
+        }
 
         private static abstract class MixIn {
             @JsonIgnore abstract Throwable getCause();
@@ -189,17 +352,49 @@ public class JsonExceptionHandler {
     /**
      * Resolve http status from exception class. It is searching ResponseStatus annotation or
      * static int httpCode() function. After ststaus is resolved it is cached for given class.
+     * Cache is lock free (ClassValue) and can be filled at startup by warmup().
      */
     public static class DefaultStatusResolver implements Function<Throwable, HttpStatus> {
 
-        private Map<Class, HttpStatus> cache = new HashMap<>();
+        private final Map<Class, HttpStatus> explicit = new ConcurrentHashMap<>();
+        private volatile ClassValue<HttpStatus> cache = newCache();
 
         public static DefaultStatusResolver instance() { return new DefaultStatusResolver(); }
 
         public DefaultStatusResolver status(Class exceptionClass, HttpStatus status) {
             if(exceptionClass == null) throw new IllegalArgumentException("no exceptionClass");
             if(status == null) throw new IllegalArgumentException("no status");
-            cache.put(exceptionClass, status);
+            explicit.put(exceptionClass, status);
+            cache = newCache();
+            return this;
+        }
+
+        /**
+         * Resolves status of all exception classes in given packages (and
+         * subpackages), so no reflection is done while processing exceptions.
+         */
+        public DefaultStatusResolver warmup(String... basePackages) {
+            if(basePackages == null) return this;
+            ClassPathScanningCandidateComponentProvider scanner = new ClassPathScanningCandidateComponentProvider(false) {
+                @Override
+                protected boolean isCandidateComponent(AnnotatedBeanDefinition beanDefinition) {
+                    return beanDefinition.getMetadata().isIndependent();
+                }
+            };
+            scanner.addIncludeFilter(new AssignableTypeFilter(Throwable.class));
+            ClassLoader loader = DefaultStatusResolver.class.getClassLoader();
+            int count = 0;
+            for(String basePackage : basePackages) {
+                for(BeanDefinition definition : scanner.findCandidateComponents(basePackage)) {
+                    try {
+                        resolveStatus(Class.forName(definition.getBeanClassName(), false, loader));
+                        count++;
+                    } catch(Throwable e) {
+                        log.debug("unable to resolve status of {} {}", definition.getBeanClassName(), e.toString());
+                    }
+                }
+            }
+            log.debug("resolved status of {} exception classes", count);
             return this;
         }
 
@@ -211,15 +406,21 @@ public class JsonExceptionHandler {
 
         private HttpStatus resolveStatus(Class clazz) {
             if(clazz == null) return HttpStatus.INTERNAL_SERVER_ERROR;
-            HttpStatus status = cache.get(clazz);
-            if(status == null) {
-                status = resolveAnnotation(clazz);
-                if(status == null) status = resolveMethod(clazz);
-                if(status == null) status = resolveStatus(clazz.getSuperclass());
-                if(status == null) status = HttpStatus.INTERNAL_SERVER_ERROR;
-                cache.put(clazz, status);
-            }
-            return status;
+            return cache.get(clazz);
+        }
+
+        private ClassValue<HttpStatus> newCache() {
+            return new ClassValue<HttpStatus>() {
+                @Override
+                protected HttpStatus computeValue(Class<?> clazz) {
+                    HttpStatus status = explicit.get(clazz);
+                    if(status == null) status = resolveAnnotation(clazz);
+                    if(status == null) status = resolveMethod(clazz);
+                    if(status == null) status = resolveStatus(clazz.getSuperclass());
+                    if(status == null) status = HttpStatus.INTERNAL_SERVER_ERROR;
+                    return status;
+                }
+            };
         }
 
         private static HttpStatus resolveAnnotation(Class clazz) {
@@ -3,19 +3,20 @@
  */
 package sk.antons.sbutils.http;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.nio.charset.StandardCharsets;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
 import java.util.function.Function;
-import java.util.stream.Collectors;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpRequest;
 import org.springframework.http.HttpStatus;
@@ -23,6 +24,15 @@ import org.springframework.http.client.ClientHttpRequestExecution;
 import org.springframework.http.client.ClientHttpRequestInterceptor;
 import org.springframework.http.client.ClientHttpResponse;
 import org.springframework.web.client.RestTemplate;
+import sk.antons.sbutils.journal.Journal;
+import sk.antons.sbutils.log.AsyncLogger;
+import sk.antons.sbutils.log.BodyFormatter;
+import sk.antons.sbutils.log.CappedBuffer;
+import sk.antons.sbutils.log.CorrelationId;
+import sk.antons.sbutils.log.LogMessage;
+import sk.antons.sbutils.log.Masking;
+import sk.antons.sbutils.log.TeeInputStream;
+import sk.antons.sbutils.metrics.MetricsRecorder;
 
 /**
  *
@@ -31,24 +41,104 @@ import org.springframework.web.client.RestTemplate;
 public class LoggingInterceptor implements ClientHttpRequestInterceptor {
 
     private Consumer<String> logger = null;
+    private Consumer<Object> messageLogger = null;
     private BooleanSupplier loggerEnabled = null;
     private boolean logRequestHeader = true;
     private boolean logRequestBody = true;
     private boolean logResponseHeader = true;
     private boolean logResponseBody = true;
-    private Function<String, String> requestBodyFormatter = null;
-    private Function<String, String> responseBodyFormatter = null;
+    private BodyFormatter requestBodyFormatter = BodyFormatter.text();
+    private BodyFormatter responseBodyFormatter = BodyFormatter.text();
+    private int requestBodyLimit = 64 * 1024;
+    private int responseBodyLimit = 64 * 1024;
+    private String correlationHeader = null;
+    private Predicate<HttpRequest> sampler = null;
+    private long tailThreshold = -1;
+    private boolean tailSummary = false;
+    private String name = null;
+    private MetricsRecorder metrics = null;
+    private Masking masking = null;
+    private Journal journal = null;
 
     private LoggingInterceptor() {}
 
     public static LoggingInterceptor instance() { return new LoggingInterceptor(); }
     public LoggingInterceptor logRequestHeader(boolean value) { this.logRequestHeader = value; return this; }
     public LoggingInterceptor logRequestBody(boolean value) { this.logRequestBody = value; return this; }
-    public LoggingInterceptor requestBodyFormatter(Function<String, String> value) { this.requestBodyFormatter = value; return this; }
+    public LoggingInterceptor requestBodyFormatter(Function<String, String> value) { this.requestBodyFormatter = BodyFormatter.of(value); return this; }
+    /**
+     * Formats request body bytes directly to log message (see BodyFormatter.jsonOneLine()).
+     */
+    public LoggingInterceptor requestBodyFormatter(BodyFormatter value) { this.requestBodyFormatter = value == null ? BodyFormatter.text() : value; return this; }
     public LoggingInterceptor logResponseHeader(boolean value) { this.logResponseHeader = value; return this; }
     public LoggingInterceptor logResponseBody(boolean value) { this.logResponseBody = value; return this; }
-    public LoggingInterceptor responseBodyFormatter(Function<String, String> value) { this.responseBodyFormatter = value; return this; }
+    public LoggingInterceptor responseBodyFormatter(Function<String, String> value) { this.responseBodyFormatter = BodyFormatter.of(value); return this; }
+    /**
+     * Formats response body bytes directly to log message (see BodyFormatter.jsonOneLine()).
+     */
+    public LoggingInterceptor responseBodyFormatter(BodyFormatter value) { this.responseBodyFormatter = value == null ? BodyFormatter.text() : value; return this; }
+    /**
+     * Max number of request body bytes logged (default 64KB). Streamed
+     * bodies (StreamedBodyRequest) are never buffered, only their prefix
+     * and length are logged.
+     */
+    public LoggingInterceptor requestBodyLimit(int value) { this.requestBodyLimit = value; return this; }
+    /**
+     * Max number of response body bytes captured for logging (default 64KB).
+     * Response body is not buffered. It is passed to message converters as
+     * it is read and only this prefix is copied aside. Response is logged
+     * when body is closed.
+     */
+    public LoggingInterceptor responseBodyLimit(int value) { this.responseBodyLimit = value; return this; }
+    /**
+     * Header carrying correlation id. If request contains such header its value
+     * is used as id. Otherwise new exchange id with MDC id as parent (or id
+     * of exchange started by RestTemplateClient) is used and it is added to
+     * request as this header.
+     */
+    public LoggingInterceptor correlationHeader(String value) { this.correlationHeader = value; return this; }
+    /**
+     * Decides which requests are logged (see Sampler). All requests are logged by default.
+     */
+    public LoggingInterceptor sampler(Predicate<HttpRequest> value) { this.sampler = value; return this; }
+    /**
+     * Tail based logging. Request and response are logged in full only if
+     * call takes more than slowMillis, ends with non 2xx status or fails
+     * with exception. Other calls are logged in full only if sampler is
+     * defined and accepts them. Request message is created only when
+     * decision is known, so uninteresting calls costs almost nothing.
+     * @param slowMillis latency threshold (negative value disables tail mode)
+     */
+    public LoggingInterceptor tail(long slowMillis) { this.tailThreshold = slowMillis; return this; }
+    /**
+     * In tail mode uninteresting calls are logged as one line summary (without headers and body).
+     */
+    public LoggingInterceptor tailSummary(boolean value) { this.tailSummary = value; return this; }
+    /**
+     * Records latency, status and sizes of each call regardless of logging
+     * (see MetricsRegistry). Path is normalized (ids replaced by {id}).
+     */
+    public LoggingInterceptor metrics(MetricsRecorder value) { this.metrics = value; return this; }
+    /**
+     * Client name used in metrics (host of request by default).
+     */
+    public LoggingInterceptor name(String value) { this.name = value; return this; }
+    /**
+     * Masks configured headers and json/xml fields in logged messages.
+     */
+    public LoggingInterceptor masking(Masking value) { this.masking = value; return this; }
+    /**
+     * Writes every request and response (headers and body) to binary journal.
+     * Journal does not depend on loggerEnabled, sampling or tail settings.
+     */
+    public LoggingInterceptor journal(Journal value) { this.journal = value; return this; }
     public LoggingInterceptor logger(Consumer<String> value) { this.logger = value; return this; }
+    /**
+     * Logger receiving lazy messages (LogMessage). Message is formatted only
+     * when its toString() is called, so {@code m -> log.debug("{}", m)} costs
+     * nothing when debug level is disabled.
+     */
+    public LoggingInterceptor messageLogger(Consumer<Object> value) { this.messageLogger = value; return this; }
     public LoggingInterceptor loggerEnabled(BooleanSupplier value) { this.loggerEnabled = value; return this; }
 
 
@@ -66,105 +156,312 @@ public class LoggingInterceptor implements ClientHttpRequestInterceptor {
         template.setInterceptors(interceptors);
     }
 
-    private static int counter = 1;
-
     @Override
     public ClientHttpResponse intercept(HttpRequest request, byte[] body, ClientHttpRequestExecution execution) throws IOException {
-        int reqnum = counter++;
-        if((loggerEnabled != null) && (loggerEnabled.getAsBoolean()) && (logger != null)) {
-            StringBuilder sb = new StringBuilder();
-            sb.append("http-req[").append(reqnum)
-                .append("] ").append(request.getMethodValue())
-                .append(" ").append(request.getURI())
-                ;
-            if(logRequestHeader) {
-                sb.append(" headers[");
-                if(request.getHeaders() != null) {
-                    boolean first = true;
-                    for(Map.Entry<String, List<String>> entry : request.getHeaders().entrySet()) {
-                        String key = entry.getKey();
-                        for(String string : entry.getValue()) {
-                            if(first) first = false;
-                            else sb.append(", ");
-                            sb.append(key).append(": ").append(string);
-                        }
+        try(CorrelationId.Scope scope = CorrelationId.openExchange(correlationId(request))) {
+            return intercept(scope.id(), request, body, execution);
+        }
+    }
+
+    private String correlationId(HttpRequest request) {
+        String id = null;
+        if(correlationHeader != null) id = request.getHeaders().getFirst(correlationHeader);
+        if(id == null) {
+            id = CorrelationId.exchangeOrNext();
+            if(correlationHeader != null) request.getHeaders().set(correlationHeader, id);
+        }
+        return id;
+    }
+
+    private ClientHttpResponse intercept(String reqnum, HttpRequest request, byte[] body, ClientHttpRequestExecution execution) throws IOException {
+        boolean enabled = (loggerEnabled != null) && (loggerEnabled.getAsBoolean()) && ((logger != null) || (messageLogger != null));
+        boolean tail = enabled && (tailThreshold >= 0);
+        boolean sampled = enabled && (sampler == null ? !tail : sampler.test(request));
+        if(sampled && !tail) logRequest(reqnum, request, body);
+        if(journal != null) journalRequest(reqnum, request, body);
+        long starttime = System.nanoTime();
+        ClientHttpResponse response = null;
+        try {
+            response = execution.execute(request, body);
+        } catch(IOException | RuntimeException e) {
+            long nanos = System.nanoTime() - starttime;
+            record(request, body, -1, nanos, -1);
+            if(journal != null) journal.append(Journal.Record.response(reqnum, request.getMethodValue(), request.getURI().toString(), -1, nanos).name(name));
+            if(tail || sampled) {
+                if(tail) logRequest(reqnum, request, body);
+                long time = nanos / 1000000;
+                log(() -> "http-err[" + reqnum + "] " + request.getMethodValue() + " " + request.getURI()
+                    + " time:" + time + " err: " + e);
+            }
+            throw e;
+        }
+        long nanos = System.nanoTime() - starttime;
+        long time = nanos / 1000000;
+        if(metrics != null) record(request, body, rawStatusCode(response), nanos, response.getHeaders().getContentLength());
+        if(journal != null) response = journalResponse(reqnum, request, response, nanos);
+        if(tail) {
+            int status = rawStatusCode(response);
+            boolean interesting = (time > tailThreshold) || (status < 200) || (status > 299);
+            if(!interesting && !sampled) {
+                if(tailSummary) {
+                    log(() -> "http[" + reqnum + "] " + request.getMethodValue() + " " + request.getURI()
+                        + " status:" + status + " time:" + time);
+                }
+                return response;
+            }
+            logRequest(reqnum, request, body);
+        } else if(!sampled) {
+            return response;
+        }
+        if(logResponseBody) {
+            CappedBuffer capture = CappedBuffer.instance(responseBodyLimit);
+            return CapturingClientHttpResponse.instance(response, capture
+                , r -> logResponse(reqnum, request, r, time, capture));
+        }
+        logResponse(reqnum, request, response, time, null);
+        return response;
+    }
+
+    private void journalRequest(String reqnum, HttpRequest request, byte[] body) {
+        long total = body == null ? 0 : body.length;
+        if(request instanceof StreamedBodyRequest) total = Math.max(total, ((StreamedBodyRequest)request).contentLength());
+        Journal.Record record = Journal.Record.request(reqnum, request.getMethodValue(), request.getURI().toString())
+            .name(name)
+            .headers(journalHeaders(request.getHeaders()));
+        if(body == null) journal.append(record);
+        else journal.append(journalBody(record, body, Math.min(body.length, journal.bodyLimit()), total));
+    }
+
+    private ClientHttpResponse journalResponse(String reqnum, HttpRequest request, ClientHttpResponse response, long nanos) {
+        int status = rawStatusCode(response);
+        CappedBuffer capture = CappedBuffer.instance(journal.bodyLimit());
+        return CapturingClientHttpResponse.instance(response, capture, r -> {
+            Journal.Record record = Journal.Record.response(reqnum, request.getMethodValue(), request.getURI().toString(), status, nanos)
+                .name(name)
+                .headers(journalHeaders(r.getHeaders()));
+            journal.append(journalBody(record, capture.array(), capture.size(), capture.total()));
+        });
+    }
+
+    private Map<String, List<String>> journalHeaders(HttpHeaders headers) {
+        return masking == null ? headers : masking.maskHeaders(headers);
+    }
+
+    private Journal.Record journalBody(Journal.Record record, byte[] body, int length, long total) {
+        if(masking == null) return record.body(body, 0, length, total);
+        CappedBuffer masked = CappedBuffer.instance(Integer.MAX_VALUE);
+        try (OutputStream os = masking.stream(masked)) {
+            os.write(body, 0, length);
+        } catch(IOException e) {
+            // not possible for CappedBuffer
+        }
+        return record.body(masked.array(), 0, masked.size(), total);
+    }
+
+    private void record(HttpRequest request, byte[] body, int status, long nanos, long responseSize) {
+        if(metrics == null) return;
+        long requestSize = request instanceof StreamedBodyRequest
+            ? ((StreamedBodyRequest)request).contentLength()
+            : (body == null ? 0 : body.length);
+        metrics.record(name == null ? request.getURI().getHost() : name, request.getMethodValue()
+            , MetricsRecorder.normalize(request.getURI().getRawPath()), status, nanos, requestSize, responseSize);
+    }
+
+    private void logRequest(String reqnum, HttpRequest request, byte[] body) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("http-req[").append(reqnum)
+            .append("] ").append(request.getMethodValue())
+            .append(" ").append(request.getURI())
+            ;
+        if(logRequestHeader) {
+            sb.append(" headers[");
+            if(request.getHeaders() != null) {
+                boolean first = true;
+                for(Map.Entry<String, List<String>> entry : request.getHeaders().entrySet()) {
+                    String key = entry.getKey();
+                    for(String string : entry.getValue()) {
+                        if(first) first = false;
+                        else sb.append(", ");
+                        sb.append(key).append(": ").append(masking == null ? string : masking.header(key, string));
                     }
                 }
-                sb.append("]");
             }
-            if(logRequestBody) {
+            sb.append("]");
+        }
+        if(logRequestBody) {
+            log(() -> {
                 sb.append(" body[");
-                String s = new String(body);
-                if(requestBodyFormatter != null) s = requestBodyFormatter.apply(s);
-                sb.append(s);
-                sb.append("]");
-            }
-            logger.accept(sb.toString());
-        }
-        long starttime = System.currentTimeMillis();
-        ClientHttpResponse response = execution.execute(request, body);
-        long endtime = System.currentTimeMillis();
-        if((loggerEnabled != null) && (loggerEnabled.getAsBoolean()) && (logger != null)) {
-            StringBuilder sb = new StringBuilder();
-            sb.append("http-res[").append(reqnum)
-                .append("] ").append(request.getMethodValue())
-                .append(" ").append(request.getURI())
-                .append(" status:").append(response.getRawStatusCode())
-                .append(" time:").append(endtime - starttime)
-                ;
-            if(logResponseHeader) {
-                sb.append(" headers[");
-                if(response.getHeaders() != null) {
-                    boolean first = true;
-                    for(Map.Entry<String, List<String>> entry : request.getHeaders().entrySet()) {
-                        String key = entry.getKey();
-                        for(String string : entry.getValue()) {
-                            if(first) first = false;
-                            else sb.append(", ");
-                            sb.append(key).append(": ").append(string);
-                        }
+                if(body != null) {
+                    int length = Math.min(body.length, requestBodyLimit);
+                    formatter(requestBodyFormatter).format(body, 0, length, sb);
+                    if(request instanceof StreamedBodyRequest) {
+                        long total = ((StreamedBodyRequest)request).contentLength();
+                        sb.append("...(streamed, ");
+                        if(total < 0) sb.append("unknown length");
+                        else sb.append(total).append(" bytes");
+                        sb.append(')');
+                    } else if(length < body.length) {
+                        sb.append("...(truncated, ").append(body.length).append(" bytes)");
                     }
                 }
                 sb.append("]");
+                return sb.toString();
+            });
+        } else {
+            log(sb::toString);
+        }
+    }
+
+    private void logResponse(String reqnum, HttpRequest request, ClientHttpResponse response, long time, CappedBuffer body) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("http-res[").append(reqnum)
+            .append("] ").append(request.getMethodValue())
+            .append(" ").append(request.getURI())
+            .append(" status:").append(rawStatusCode(response))
+            .append(" time:").append(time)
+            ;
+        if(logResponseHeader) {
+            sb.append(" headers[");
+            if(response.getHeaders() != null) {
+                boolean first = true;
+                for(Map.Entry<String, List<String>> entry : response.getHeaders().entrySet()) {
+                    String key = entry.getKey();
+                    for(String string : entry.getValue()) {
+                        if(first) first = false;
+                        else sb.append(", ");
+                        sb.append(key).append(": ").append(masking == null ? string : masking.header(key, string));
+                    }
+                }
             }
-            if(logResponseBody) {
+            sb.append("]");
+        }
+        if(body != null) {
+            log(() -> {
                 sb.append(" body[");
-                InputStreamReader isr = new InputStreamReader(
-                    response.getBody(), StandardCharsets.UTF_8);
-                String s = new BufferedReader(isr).lines()
-                    .collect(Collectors.joining("\n"));
-                InputStream is = null;
-                try {
-                    is = new ByteArrayInputStream(s.getBytes("utf-8"));
-                } catch(Exception e) {
-                }
-
-                if(responseBodyFormatter != null) s = responseBodyFormatter.apply(s);
-                sb.append(s);
+                formatter(responseBodyFormatter).format(body.array(), 0, body.size(), sb);
+                if(body.truncated()) sb.append("...(truncated, ").append(body.total()).append(" bytes)");
                 sb.append("]");
-                response = DummyClientHttpResponse.instance(response, is);
+                return sb.toString();
+            });
+        } else {
+            log(sb::toString);
+        }
+    }
+
+    private BodyFormatter formatter(BodyFormatter formatter) {
+        return masking == null ? formatter : masking.formatter(formatter);
+    }
+
+    private void log(Supplier<String> message) {
+        LogMessage m = LogMessage.of(message);
+        if(messageLogger != null) messageLogger.accept(m);
+        if(logger != null) AsyncLogger.log(logger, m);
+    }
+
+    private static int rawStatusCode(ClientHttpResponse response) {
+        try {
+            return response.getRawStatusCode();
+        } catch(Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Request sampling policies.
+     */
+    public static class Sampler {
+
+        public static Predicate<HttpRequest> all() {
+            return request -> true;
+        }
+
+        public static Predicate<HttpRequest> none() {
+            return request -> false;
+        }
+
+        /**
+         * Logs given fraction of requests.
+         * @param ratio value between 0 and 1
+         */
+        public static Predicate<HttpRequest> probabilistic(final double ratio) {
+            return request -> ThreadLocalRandom.current().nextDouble() < ratio;
+        }
+
+        /**
+         * Logs at most perSecond requests per second for each target host.
+         */
+        public static Predicate<HttpRequest> rateLimited(final int perSecond) {
+            final Map<String, RateWindow> windows = new ConcurrentHashMap<>();
+            return request -> {
+                String host = request.getURI() == null ? null : request.getURI().getHost();
+                if(host == null) host = "";
+                RateWindow window = windows.computeIfAbsent(host, h -> new RateWindow());
+                return window.acquire(perSecond);
+            };
+        }
+    }
+
+    /**
+     * Counter of events in current second. Second number and count are
+     * packed to one long so window switch is single CAS.
+     */
+    private static class RateWindow {
+        private final AtomicLong state = new AtomicLong();
+
+        boolean acquire(int limit) {
+            long second = System.currentTimeMillis() / 1000;
+            while(true) {
+                long current = state.get();
+                long currentSecond = current >>> 20;
+                long count = current & 0xFFFFF;
+                long next;
+                if(currentSecond != (second & 0xFFFFFFFFFFFL)) next = ((second & 0xFFFFFFFFFFFL) << 20) | 1;
+                else if(count >= Math.min(limit, 0xFFFFF)) return false;
+                else next = current + 1;
+                if(state.compareAndSet(current, next)) return true;
             }
-            logger.accept(sb.toString());
         }
-        return response;
     }
 
-    private static class DummyClientHttpResponse implements ClientHttpResponse {
+    /**
+     * Response wrapper which copies (up to limit) body bytes to capture buffer
+     * while body is read by message converters. Provided callback is called once
+     * when body stream or response is closed.
+     */
+    private static class CapturingClientHttpResponse implements ClientHttpResponse {
         private ClientHttpResponse delegate;
+        private CappedBuffer capture;
+        private Consumer<ClientHttpResponse> onClose;
         private InputStream body;
-        public static DummyClientHttpResponse instance(ClientHttpResponse delegate, InputStream body) {
-            DummyClientHttpResponse rv = new DummyClientHttpResponse();
+        private boolean closed = false;
+        public static CapturingClientHttpResponse instance(ClientHttpResponse delegate, CappedBuffer capture, Consumer<ClientHttpResponse> onClose) {
+            CapturingClientHttpResponse rv = new CapturingClientHttpResponse();
             rv.delegate = delegate;
-            rv.body = body;
+            rv.capture = capture;
+            rv.onClose = onClose;
             return rv;
         }
 
         public HttpStatus getStatusCode() throws IOException { return delegate.getStatusCode(); }
         public int getRawStatusCode() throws IOException { return delegate.getRawStatusCode(); }
         public String getStatusText() throws IOException { return delegate.getStatusText(); }
-        public void close() { delegate.close(); }
         public HttpHeaders getHeaders() { return delegate.getHeaders(); }
-        public InputStream getBody() throws IOException { return body; }
+        public InputStream getBody() throws IOException {
+            if(body == null) body = TeeInputStream.instance(delegate.getBody(), capture, this::done);
+            return body;
+        }
+        public void close() {
+            try {
+                done();
+            } finally {
+                delegate.close();
+            }
+        }
 
+        private void done() {
+            if(closed) return;
+            closed = true;
+            onClose.accept(delegate);
+        }
     }
 }
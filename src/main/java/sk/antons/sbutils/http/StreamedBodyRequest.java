@@ -0,0 +1,21 @@
+/*
+ *
+ */
+package sk.antons.sbutils.http;
+
+import org.springframework.http.HttpRequest;
+
+/**
+ * Request which body is streamed directly to connection. Interceptors
+ * receive only prefix of such body instead of whole body and must not
+ * change it.
+ *
+ * @author antons
+ */
+public interface StreamedBodyRequest extends HttpRequest {
+
+    /**
+     * @return length of whole body or -1 if it is not known
+     */
+    long contentLength();
+}
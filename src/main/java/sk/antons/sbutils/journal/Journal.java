@@ -0,0 +1,627 @@
+/*
+ *
+ */
+package sk.antons.sbutils.journal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+/**
+ * Binary journal of http/soap traffic. Records (correlation id, timestamps,
+ * method, uri, status, headers and body bytes) are appended to memory mapped
+ * segment files. Space in segment is reserved by lock free cursor, so
+ * concurrent appends only copy bytes. Full segment is replaced by spare
+ * one prepared in background (rotation). Full segment is unmapped and old
+ * segments are deleted in journal background thread, so disk space of
+ * deleted segments is freed immediately. Records can be converted to json
+ * lines by JournalReader.
+ *
+ * <pre>
+ * Journal journal = Journal.instance(Paths.get("/var/log/app/journal"))
+ *     .segmentSize(64 * 1024 * 1024)
+ *     .maxSegments(100);
+ * LoggingInterceptor.instance().journal(journal)...
+ * </pre>
+ *
+ * Record layout: int length (written last), byte version, byte type,
+ * long timestamp, long duration nanos, varint status, strings id, name,
+ * method, uri, varint header count with header names and values,
+ * varlong original body size, varint body length and body bytes. Records
+ * are aligned to 4 bytes. Zero length means end of segment.
+ *
+ * @author antons
+ */
+public class Journal implements Closeable {
+    static final byte VERSION = 1;
+    static final String SUFFIX = ".jrnl";
+    private static final VarHandle LENGTH = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final ThreadLocal<Encoder> ENCODERS = ThreadLocal.withInitial(Encoder::new);
+    private static final Object UNSAFE = unsafe();
+    private static final Method UNMAPPER = unmapper();
+
+    private final Path dir;
+    private String prefix = "journal";
+    private int segmentSize = 64 * 1024 * 1024;
+    private int maxSegments = 0;
+    private int bodyLimit = 16 * 1024 * 1024;
+    private boolean sync = false;
+    private final AtomicReference<Segment> current = new AtomicReference<>();
+    private final AtomicReference<Segment> spare = new AtomicReference<>();
+    private ExecutorService executor = null;
+    private final AtomicLong sequence = new AtomicLong(-1);
+    private final AtomicLong appended = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile boolean closed = false;
+
+    private Journal(Path dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * @param dir directory of segment files
+     */
+    public static Journal instance(Path dir) { return new Journal(dir); }
+
+    /**
+     * Prefix of segment file names (default journal).
+     */
+    public Journal prefix(String value) { this.prefix = value; return this; }
+    /**
+     * Size of segment file in bytes (default 64MB).
+     */
+    public Journal segmentSize(int value) { this.segmentSize = value; return this; }
+    /**
+     * Max number of segment files kept in directory (default 0 - all are kept).
+     * Oldest ones are deleted after rotation.
+     */
+    public Journal maxSegments(int value) { this.maxSegments = value; return this; }
+    /**
+     * Max number of body bytes captured by interceptors (default 16MB).
+     */
+    public Journal bodyLimit(int value) { this.bodyLimit = value; return this; }
+    /**
+     * If true full segments are forced to disk before they are released (default false).
+     */
+    public Journal sync(boolean value) { this.sync = value; return this; }
+
+    public int bodyLimit() { return bodyLimit; }
+    public Path dir() { return dir; }
+    public long appended() { return appended.get(); }
+    public long failed() { return failed.get(); }
+
+    /**
+     * Appends record to journal.
+     * @return false if record was not written (journal is closed or file can't be created)
+     */
+    public boolean append(Record record) {
+        if(closed) {
+            failed.incrementAndGet();
+            return false;
+        }
+        Encoder encoder = ENCODERS.get();
+        encoder.encode(record);
+        int size = align(4 + encoder.length + record.length);
+        for(;;) {
+            Segment segment = segment();
+            if(segment == null) {
+                failed.incrementAndGet();
+                return false;
+            }
+            boolean crossed = false;
+            if(segment.enter()) {
+                try {
+                    long pos = segment.position.getAndAdd(size);
+                    if(pos + size <= segment.capacity) {
+                        segment.write((int)pos, size, encoder, record);
+                        appended.incrementAndGet();
+                        return true;
+                    }
+                    crossed = pos <= segment.capacity;
+                } finally {
+                    segment.exit();
+                }
+            }
+            if(crossed) {
+                // this record crossed the end - this thread rotates segment
+                rotate(segment, size);
+            } else {
+                while((current.get() == segment) && !closed) Thread.onSpinWait();
+            }
+        }
+    }
+
+    private static int align(int size) {
+        return (size + 3) & ~3;
+    }
+
+    private Segment segment() {
+        Segment segment = current.get();
+        if(segment != null) return segment;
+        synchronized(this) {
+            segment = current.get();
+            if((segment == null) && !closed) {
+                segment = create(segmentSize);
+                current.set(segment);
+                if(segment != null) background(this::prepare);
+            }
+            return segment;
+        }
+    }
+
+    /**
+     * Replaces full segment by spare one prepared in background (new
+     * segment is created only if there is no spare). Full segment is
+     * released and old segments are deleted in background.
+     */
+    private void rotate(Segment full, int size) {
+        Segment next = null;
+        if(!closed) {
+            Segment ready = spare.getAndSet(null);
+            // spare created concurrently with inline created segment can be older
+            if((ready != null) && (ready.capacity >= size) && (ready.sequence > full.sequence)) {
+                next = ready;
+            } else {
+                if(ready != null) background(() -> discard(ready));
+                next = create(Math.max(segmentSize, size));
+            }
+        }
+        synchronized(this) {
+            if(closed) {
+                // close() released full segment meanwhile, new one is not used
+                if(next != null) discard(next);
+                return;
+            }
+            if(next == null) closed = true;
+            current.set(next);
+        }
+        long last = (next == null) ? full.sequence : next.sequence;
+        background(() -> {
+            full.release(sync);
+            prepare();
+            if(maxSegments > 0) retention(last);
+        });
+    }
+
+    private void prepare() {
+        if(closed || (spare.get() != null)) return;
+        Segment segment = create(segmentSize);
+        if(segment == null) return;
+        if(!spare.compareAndSet(null, segment) || closed) discard(segment);
+    }
+
+    private void discard(Segment segment) {
+        if(spare.get() == segment) spare.compareAndSet(segment, null);
+        segment.release(false);
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch(IOException e) {
+            // empty segment is skipped by reader
+        }
+    }
+
+    /**
+     * Runs task in journal background thread (or in current one if
+     * journal is closed).
+     */
+    private void background(Runnable task) {
+        ExecutorService executor = this.executor;
+        if(executor == null) {
+            synchronized(this) {
+                if(this.executor == null) {
+                    this.executor = Executors.newSingleThreadExecutor(r -> {
+                        Thread t = new Thread(r, "journal-" + prefix);
+                        t.setDaemon(true);
+                        return t;
+                    });
+                }
+                executor = this.executor;
+            }
+        }
+        try {
+            executor.execute(task);
+        } catch(RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    private Segment create(int capacity) {
+        try {
+            Files.createDirectories(dir);
+            if(sequence.get() < 0) {
+                long max = 0;
+                for(Path path : segments(dir, prefix)) max = Math.max(max, sequence(path, prefix));
+                sequence.compareAndSet(-1, max);
+            }
+            long seq = sequence.incrementAndGet();
+            Path path = dir.resolve(String.format("%s-%08d%s", prefix, seq, SUFFIX));
+            return new Segment(path, seq, capacity);
+        } catch(IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Deletes oldest segments. Spare segment is not counted.
+     * @param last sequence of newest written segment
+     */
+    private void retention(long last) {
+        try {
+            List<Path> list = segments(dir, prefix);
+            list.removeIf(path -> sequence(path, prefix) > last);
+            for(int i = 0; i < list.size() - maxSegments; i++) Files.deleteIfExists(list.get(i));
+        } catch(IOException e) {
+            // next rotation will try again
+        }
+    }
+
+    /**
+     * @return segment files in directory ordered by sequence
+     */
+    static List<Path> segments(Path dir, String prefix) throws IOException {
+        if(!Files.isDirectory(dir)) return Collections.emptyList();
+        List<Path> list = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.filter(p -> {
+                String name = p.getFileName().toString();
+                return name.endsWith(SUFFIX) && ((prefix == null) || name.startsWith(prefix + "-"));
+            }).forEach(list::add);
+        }
+        list.sort((a, b) -> a.getFileName().toString().compareTo(b.getFileName().toString()));
+        return list;
+    }
+
+    private static long sequence(Path path, String prefix) {
+        String name = path.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(prefix.length() + 1, name.length() - SUFFIX.length()));
+        } catch(Exception e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Forces current segment to disk and closes journal. Records appended
+     * after close are dropped. Waits (max 10s) for background release of
+     * older segments.
+     */
+    @Override
+    public void close() {
+        Segment segment;
+        synchronized(this) {
+            closed = true;
+            segment = current.getAndSet(null);
+        }
+        if(segment != null) segment.release(true);
+        Segment ready = spare.getAndSet(null);
+        if(ready != null) discard(ready);
+        ExecutorService executor;
+        synchronized(this) {
+            executor = this.executor;
+        }
+        if(executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Unmaps buffer, so disk space of deleted file is freed immediately
+     * (not when buffer is garbage collected). Buffer must not be used after.
+     */
+    static void unmap(MappedByteBuffer buffer) {
+        if(UNMAPPER == null) return;
+        try {
+            UNMAPPER.invoke(UNSAFE, buffer);
+        } catch(Exception e) {
+            // buffer is unmapped by garbage collector
+        }
+    }
+
+    private static Object unsafe() {
+        try {
+            Field field = Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return field.get(null);
+        } catch(Exception e) {
+            return null;
+        }
+    }
+
+    private static Method unmapper() {
+        try {
+            return UNSAFE == null ? null : UNSAFE.getClass().getMethod("invokeCleaner", ByteBuffer.class);
+        } catch(Exception e) {
+            return null;
+        }
+    }
+
+    private static class Segment {
+        private final Path path;
+        private final long sequence;
+        private final MappedByteBuffer buffer;
+        private final int capacity;
+        private final AtomicLong position = new AtomicLong();
+        private final AtomicInteger writers = new AtomicInteger();
+        private volatile boolean sealed = false;
+        private boolean released = false;
+
+        private Segment(Path path, long sequence, int capacity) throws IOException {
+            this.path = path;
+            this.sequence = sequence;
+            this.capacity = capacity;
+            try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+                file.setLength(capacity);
+                this.buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            }
+        }
+
+        /**
+         * @return false if segment is released and must not be written
+         */
+        private boolean enter() {
+            writers.incrementAndGet();
+            if(!sealed) return true;
+            writers.decrementAndGet();
+            return false;
+        }
+
+        private void exit() {
+            writers.decrementAndGet();
+        }
+
+        private void write(int pos, int size, Encoder encoder, Record record) {
+            ByteBuffer b = buffer.duplicate();
+            b.position(pos + 4);
+            b.put(encoder.data, 0, encoder.length);
+            if(record.length > 0) b.put(record.body, record.offset, record.length);
+            // length is published last, so partially written record looks like end of segment
+            LENGTH.setRelease(buffer, pos, size - 4);
+        }
+
+        /**
+         * Waits for writers which reserved space in segment and unmaps it.
+         */
+        private synchronized void release(boolean force) {
+            if(released) return;
+            released = true;
+            sealed = true;
+            while(writers.get() > 0) Thread.onSpinWait();
+            if(force) buffer.force();
+            unmap(buffer);
+        }
+
+        @Override
+        public String toString() {
+            return path.toString();
+        }
+    }
+
+    /**
+     * Thread local record encoder (everything except body bytes).
+     */
+    private static class Encoder {
+        private byte[] data = new byte[1024];
+        private int length = 0;
+
+        private void encode(Record r) {
+            length = 0;
+            put(VERSION);
+            put(r.type);
+            putLong(r.timestamp);
+            putLong(r.nanos);
+            putVarLong(zigzag(r.status));
+            putString(r.id);
+            putString(r.name);
+            putString(r.method);
+            putString(r.uri);
+            int count = 0;
+            if(r.headers != null) {
+                for(List<String> values : r.headers.values()) count += values == null ? 0 : values.size();
+            }
+            putVarLong(count);
+            if(r.headers != null) {
+                for(Map.Entry<String, List<String>> entry : r.headers.entrySet()) {
+                    if(entry.getValue() == null) continue;
+                    for(String value : entry.getValue()) {
+                        putString(entry.getKey());
+                        putString(value);
+                    }
+                }
+            }
+            putVarLong(r.total);
+            putVarLong(r.length);
+        }
+
+        private void ensure(int n) {
+            if(length + n > data.length) data = Arrays.copyOf(data, Math.max(data.length * 2, length + n));
+        }
+
+        private void put(byte b) {
+            ensure(1);
+            data[length++] = b;
+        }
+
+        private void putLong(long v) {
+            ensure(8);
+            for(int i = 7; i >= 0; i--) data[length++] = (byte)(v >>> (i * 8));
+        }
+
+        private void putVarLong(long v) {
+            ensure(10);
+            while((v & ~0x7FL) != 0) {
+                data[length++] = (byte)((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            data[length++] = (byte)v;
+        }
+
+        /**
+         * String as varint length + 1 and UTF-8 bytes (0 is null).
+         */
+        private void putString(String s) {
+            if(s == null) {
+                putVarLong(0);
+                return;
+            }
+            int n = s.length();
+            boolean ascii = true;
+            for(int i = 0; i < n; i++) {
+                if(s.charAt(i) >= 0x80) {
+                    ascii = false;
+                    break;
+                }
+            }
+            if(ascii) {
+                putVarLong(n + 1L);
+                ensure(n);
+                for(int i = 0; i < n; i++) data[length++] = (byte)s.charAt(i);
+            } else {
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                putVarLong(bytes.length + 1L);
+                ensure(bytes.length);
+                System.arraycopy(bytes, 0, data, length, bytes.length);
+                length += bytes.length;
+            }
+        }
+    }
+
+    static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /**
+     * Journal record.
+     */
+    public static class Record {
+        public static final byte REQUEST = 1;
+        public static final byte RESPONSE = 2;
+
+        private byte type;
+        private long timestamp = System.currentTimeMillis();
+        private long nanos = -1;
+        private int status = 0;
+        private String id;
+        private String name;
+        private String method;
+        private String uri;
+        private Map<String, List<String>> headers;
+        private byte[] body;
+        private int offset;
+        private int length;
+        private long total;
+
+        Record() {}
+
+        public static Record request(String id, String method, String uri) {
+            Record r = new Record();
+            r.type = REQUEST;
+            r.id = id;
+            r.method = method;
+            r.uri = uri;
+            return r;
+        }
+
+        /**
+         * @param status http status (-1 for failed call)
+         * @param nanos call duration
+         */
+        public static Record response(String id, String method, String uri, int status, long nanos) {
+            Record r = request(id, method, uri);
+            r.type = RESPONSE;
+            r.status = status;
+            r.nanos = nanos;
+            return r;
+        }
+
+        /**
+         * Client name.
+         */
+        public Record name(String value) { this.name = value; return this; }
+        /**
+         * Epoch millis of record (default now).
+         */
+        public Record timestamp(long value) { this.timestamp = value; return this; }
+        public Record headers(Map<String, List<String>> value) { this.headers = value; return this; }
+        /**
+         * Body bytes. Bytes are copied when record is appended.
+         * @param total original body size (can be bigger than length if body was truncated)
+         */
+        public Record body(byte[] data, int offset, int length, long total) {
+            this.body = data;
+            this.offset = offset;
+            this.length = data == null ? 0 : length;
+            this.total = total;
+            return this;
+        }
+
+        void header(String name, String value) {
+            if(headers == null) headers = new LinkedHashMap<>();
+            headers.computeIfAbsent(name, k -> new ArrayList<>(1)).add(value);
+        }
+
+        void raw(byte type, long timestamp, long nanos, int status) {
+            this.type = type;
+            this.timestamp = timestamp;
+            this.nanos = nanos;
+            this.status = status;
+        }
+
+        void strings(String id, String name, String method, String uri) {
+            this.id = id;
+            this.name = name;
+            this.method = method;
+            this.uri = uri;
+        }
+
+        public byte type() { return type; }
+        public long timestamp() { return timestamp; }
+        public long nanos() { return nanos; }
+        public int status() { return status; }
+        public String id() { return id; }
+        public String name() { return name; }
+        public String method() { return method; }
+        public String uri() { return uri; }
+        public Map<String, List<String>> headers() { return headers == null ? Collections.emptyMap() : headers; }
+        /**
+         * @return body bytes (only first length() bytes from offset() are valid)
+         */
+        public byte[] body() { return body; }
+        public int offset() { return offset; }
+        public int length() { return length; }
+        public long total() { return total; }
+    }
+}
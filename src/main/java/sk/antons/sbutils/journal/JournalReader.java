@@ -0,0 +1,227 @@
+/*
+ *
+ */
+package sk.antons.sbutils.journal;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Reads journal segments and converts records to json lines.
+ *
+ * <pre>
+ * java -cp sb-utils.jar sk.antons.sbutils.journal.JournalReader /var/log/app/journal &gt; traffic.jsonl
+ * </pre>
+ *
+ * Each record is printed as one json object with type, time, id, name,
+ * method, uri, status, durationMs, headers, bodySize and body (bodyBase64
+ * for non UTF-8 bodies).
+ *
+ * @author antons
+ */
+public class JournalReader {
+
+    /**
+     * Reads records from segment file. Reading stops at first not
+     * (completely) written record.
+     */
+    public static void read(Path segment, Consumer<Journal.Record> consumer) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "r")) {
+            long size = file.length();
+            if(size == 0) return;
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+            try {
+                int pos = 0;
+                while(pos + 4 <= size) {
+                    int length = buffer.getInt(pos);
+                    if((length <= 0) || (pos + 4L + length > size)) break;
+                    ByteBuffer b = buffer.duplicate();
+                    b.position(pos + 4);
+                    b.limit(pos + 4 + length);
+                    consumer.accept(decode(b));
+                    pos += 4 + length;
+                }
+            } finally {
+                Journal.unmap(buffer);
+            }
+        }
+    }
+
+    /**
+     * Reads records from all segments in directory (or from one segment file).
+     */
+    public static void readAll(Path path, Consumer<Journal.Record> consumer) throws IOException {
+        List<Path> segments = Files.isDirectory(path) ? Journal.segments(path, null) : List.of(path);
+        for(Path segment : segments) read(segment, consumer);
+    }
+
+    /**
+     * @return all records from directory (or from one segment file)
+     */
+    public static List<Journal.Record> records(Path path) throws IOException {
+        List<Journal.Record> list = new ArrayList<>();
+        readAll(path, list::add);
+        return list;
+    }
+
+    private static Journal.Record decode(ByteBuffer b) throws IOException {
+        byte version = b.get();
+        if(version != Journal.VERSION) throw new IOException("Unsupported journal record version " + version);
+        Journal.Record r = new Journal.Record();
+        byte type = b.get();
+        long timestamp = b.getLong();
+        long nanos = b.getLong();
+        int status = (int)Journal.unzigzag(varLong(b));
+        r.raw(type, timestamp, nanos, status);
+        r.strings(string(b), string(b), string(b), string(b));
+        long count = varLong(b);
+        for(long i = 0; i < count; i++) r.header(string(b), string(b));
+        long total = varLong(b);
+        int length = (int)varLong(b);
+        byte[] body = new byte[length];
+        b.get(body);
+        r.body(body, 0, length, total);
+        return r;
+    }
+
+    private static long varLong(ByteBuffer b) {
+        long v = 0;
+        int shift = 0;
+        for(;;) {
+            byte x = b.get();
+            v |= (long)(x & 0x7F) << shift;
+            if((x & 0x80) == 0) return v;
+            shift += 7;
+        }
+    }
+
+    private static String string(ByteBuffer b) {
+        int n = (int)varLong(b) - 1;
+        if(n < 0) return null;
+        byte[] bytes = new byte[n];
+        b.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return record as one line json
+     */
+    public static String json(Journal.Record r) {
+        StringBuilder sb = new StringBuilder(256 + r.length());
+        sb.append("{\"type\":\"").append(r.type() == Journal.Record.REQUEST ? "request" : "response").append('"');
+        sb.append(",\"time\":\"").append(Instant.ofEpochMilli(r.timestamp())).append('"');
+        field(sb, "id", r.id());
+        field(sb, "name", r.name());
+        field(sb, "method", r.method());
+        field(sb, "uri", r.uri());
+        if(r.type() != Journal.Record.REQUEST) {
+            sb.append(",\"status\":").append(r.status());
+            if(r.nanos() >= 0) sb.append(",\"durationMs\":").append(r.nanos() / 1000000.0);
+        }
+        sb.append(",\"headers\":{");
+        boolean first = true;
+        for(Map.Entry<String, List<String>> entry : r.headers().entrySet()) {
+            if(first) first = false;
+            else sb.append(',');
+            string(sb, entry.getKey());
+            sb.append(":[");
+            for(int i = 0; i < entry.getValue().size(); i++) {
+                if(i > 0) sb.append(',');
+                string(sb, entry.getValue().get(i));
+            }
+            sb.append(']');
+        }
+        sb.append('}');
+        sb.append(",\"bodySize\":").append(r.total());
+        if(r.length() > 0) {
+            String text = utf8(r.body(), r.offset(), r.length());
+            if(text == null) {
+                sb.append(",\"bodyBase64\":\"").append(Base64.getEncoder().encodeToString(
+                    r.offset() == 0 && r.length() == r.body().length ? r.body() : Arrays.copyOfRange(r.body(), r.offset(), r.offset() + r.length()))).append('"');
+            } else {
+                sb.append(",\"body\":");
+                string(sb, text);
+            }
+        }
+        sb.append('}');
+        return sb.toString();
+    }
+
+    private static String utf8(byte[] data, int offset, int length) {
+        try {
+            CharBuffer chars = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT)
+                .decode(ByteBuffer.wrap(data, offset, length));
+            return chars.toString();
+        } catch(CharacterCodingException e) {
+            return null;
+        }
+    }
+
+    private static void field(StringBuilder sb, String name, String value) {
+        if(value == null) return;
+        sb.append(",\"").append(name).append("\":");
+        string(sb, value);
+    }
+
+    private static void string(StringBuilder sb, String value) {
+        sb.append('"');
+        for(int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch(c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if(c < 0x20) sb.append(String.format("\\u%04x", (int)c));
+                    else sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    /**
+     * Prints records from given directories/segment files to stdout as json lines.
+     */
+    public static void main(String[] args) throws IOException {
+        if(args.length == 0) {
+            System.err.println("usage: JournalReader <journal dir or segment file>...");
+            System.exit(1);
+        }
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        for(String arg : args) {
+            readAll(Paths.get(arg), r -> {
+                try {
+                    out.write(json(r));
+                    out.write('\n');
+                } catch(IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,361 @@
+/*
+ *
+ */
+package sk.antons.sbutils.journal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpRequest;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.http.client.ClientHttpResponse;
+
+/**
+ * Replays http traffic recorded by LoggingInterceptor to Journal. Recorded
+ * exchanges are loaded to memory and indexed by method, normalized url and
+ * request body hash. Requests are served from index without network, so
+ * service can be load tested without its real downstreams.
+ *
+ * <pre>
+ * // recording
+ * LoggingInterceptor.instance().journal(journal)...
+ * // replay
+ * Replay replay = Replay.instance()
+ *     .ignoreHost(true)
+ *     .latency(1.0) // recorded latency
+ *     .load(Paths.get("/var/log/app/journal"));
+ * RestTemplate template = new RestTemplate(replay.requestFactory());
+ * </pre>
+ *
+ * Request is matched by method, url and body first and by method and url
+ * only if no recorded request has same body. If more exchanges matches
+ * same request they are served in round robin. Url normalization settings
+ * must be set before load.
+ *
+ * @author antons
+ */
+public class Replay {
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final Map<Key, Entry> exact = new ConcurrentHashMap<>();
+    private final Map<Key, Entry> loose = new ConcurrentHashMap<>();
+    private String name = null;
+    private boolean ignoreHost = false;
+    private Set<String> ignoreParams = Collections.emptySet();
+    private double latency = 0;
+    private boolean passThrough = false;
+    private int missStatus = 404;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public static Replay instance() { return new Replay(); }
+
+    /**
+     * Loads only records of client with given name (LoggingInterceptor.name()).
+     */
+    public Replay name(String value) { this.name = value; return this; }
+    /**
+     * If true scheme, host and port are not part of key, so traffic
+     * recorded against one environment can be replayed for other one.
+     */
+    public Replay ignoreHost(boolean value) { this.ignoreHost = value; return this; }
+    /**
+     * Query parameters which are ignored during matching (timestamps, nonces, ...).
+     */
+    public Replay ignoreParams(String... value) { this.ignoreParams = new HashSet<>(Arrays.asList(value)); return this; }
+    /**
+     * Multiplier of recorded latency (default 0 - no delay, 1 - recorded latency).
+     */
+    public Replay latency(double value) { this.latency = value; return this; }
+    /**
+     * If true interceptor executes requests without recording normally
+     * (default false). Request factory never passes requests through.
+     */
+    public Replay passThrough(boolean value) { this.passThrough = value; return this; }
+    /**
+     * Status of response for requests without recording (default 404).
+     */
+    public Replay missStatus(int value) { this.missStatus = value; return this; }
+
+    /**
+     * @return number of indexed exchanges
+     */
+    public int size() {
+        int rv = 0;
+        for(Entry entry : loose.values()) rv += entry.exchanges.length;
+        return rv;
+    }
+    public long hits() { return hits.get(); }
+    public long misses() { return misses.get(); }
+
+    /**
+     * Loads exchanges from journal directory or segment file. Request and
+     * response records are paired by id, method and uri.
+     */
+    public Replay load(Path path) throws IOException {
+        Map<String, ArrayDeque<Journal.Record>> pending = new HashMap<>();
+        JournalReader.readAll(path, r -> {
+            if((name != null) && !name.equals(r.name())) return;
+            String pair = r.id() + '\n' + r.method() + '\n' + r.uri();
+            if(r.type() == Journal.Record.REQUEST) {
+                pending.computeIfAbsent(pair, k -> new ArrayDeque<>()).add(r);
+            } else {
+                ArrayDeque<Journal.Record> requests = pending.get(pair);
+                Journal.Record request = requests == null ? null : requests.poll();
+                if(request != null) add(request, r);
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Adds one recorded exchange to index.
+     */
+    public Replay add(Journal.Record request, Journal.Record response) {
+        String url = normalize(URI.create(request.uri()));
+        Exchange exchange = new Exchange(response);
+        loose.computeIfAbsent(new Key(request.method(), url, 0), k -> new Entry()).add(exchange);
+        if(request.length() >= request.total()) {
+            long hash = hash(request.body(), request.offset(), request.length());
+            exact.computeIfAbsent(new Key(request.method(), url, hash), k -> new Entry()).add(exchange);
+        }
+        return this;
+    }
+
+    /**
+     * @return recorded response for request or null if there is no recording
+     */
+    public ClientHttpResponse response(HttpRequest request, byte[] body) throws IOException {
+        String method = request.getMethodValue();
+        String url = normalize(request.getURI());
+        Entry entry = exact.get(new Key(method, url, hash(body, 0, body == null ? 0 : body.length)));
+        if(entry == null) entry = loose.get(new Key(method, url, 0));
+        if(entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        Exchange exchange = entry.next();
+        delay(exchange.nanos);
+        if(exchange.status < 0) throw new IOException("Replayed failure of " + method + " " + request.getURI());
+        return new Response(exchange.status, exchange.headers, exchange.body);
+    }
+
+    /**
+     * Interceptor which serves recorded responses. It should be last
+     * interceptor in template.
+     */
+    public ClientHttpRequestInterceptor interceptor() {
+        return (HttpRequest request, byte[] body, ClientHttpRequestExecution execution) -> {
+            ClientHttpResponse response = response(request, body);
+            if(response != null) return response;
+            if(passThrough) return execution.execute(request, body);
+            return missing();
+        };
+    }
+
+    /**
+     * Request factory which serves recorded responses. No request goes to network.
+     */
+    public ClientHttpRequestFactory requestFactory() {
+        return (URI uri, HttpMethod method) -> new Request(method, uri);
+    }
+
+    private ClientHttpResponse missing() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set("X-Replay", "miss");
+        headers.setContentLength(0);
+        return new Response(missStatus, HttpHeaders.readOnlyHttpHeaders(headers), new byte[0]);
+    }
+
+    private void delay(long nanos) {
+        if((latency <= 0) || (nanos <= 0)) return;
+        long deadline = System.nanoTime() + (long)(nanos * latency);
+        for(long rest = deadline - System.nanoTime(); rest > 0; rest = deadline - System.nanoTime()) {
+            LockSupport.parkNanos(rest);
+        }
+    }
+
+    private String normalize(URI uri) {
+        StringBuilder sb = new StringBuilder(64);
+        if(!ignoreHost) {
+            String scheme = uri.getScheme() == null ? "" : uri.getScheme().toLowerCase(Locale.ROOT);
+            sb.append(scheme).append("://");
+            if(uri.getHost() != null) sb.append(uri.getHost().toLowerCase(Locale.ROOT));
+            int port = uri.getPort();
+            if((port > -1) && !((port == 80) && "http".equals(scheme)) && !((port == 443) && "https".equals(scheme))) {
+                sb.append(':').append(port);
+            }
+        }
+        String path = uri.getRawPath();
+        sb.append((path == null) || path.isEmpty() ? "/" : path);
+        String query = uri.getRawQuery();
+        if((query == null) || query.isEmpty()) return sb.toString();
+        String[] params = query.split("&");
+        if(params.length > 1) Arrays.sort(params);
+        char separator = '?';
+        for(String param : params) {
+            if(param.isEmpty()) continue;
+            if(!ignoreParams.isEmpty()) {
+                int pos = param.indexOf('=');
+                if(ignoreParams.contains(pos < 0 ? param : param.substring(0, pos))) continue;
+            }
+            sb.append(separator).append(param);
+            separator = '&';
+        }
+        return sb.toString();
+    }
+
+    private static long hash(byte[] data, int offset, int length) {
+        long h = FNV_OFFSET;
+        for(int i = offset; i < offset + length; i++) {
+            h ^= data[i] & 0xff;
+            h *= FNV_PRIME;
+        }
+        return h;
+    }
+
+    private static class Key {
+        private final String method;
+        private final String url;
+        private final long hash;
+        private final int hashCode;
+
+        public Key(String method, String url, long hash) {
+            this.method = method;
+            this.url = url;
+            this.hash = hash;
+            this.hashCode = 31 * (31 * method.hashCode() + url.hashCode()) + Long.hashCode(hash);
+        }
+
+        @Override
+        public int hashCode() { return hashCode; }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(this == obj) return true;
+            if(!(obj instanceof Key)) return false;
+            Key other = (Key)obj;
+            return (hash == other.hash) && method.equals(other.method) && url.equals(other.url);
+        }
+    }
+
+    private static class Entry {
+        private volatile Exchange[] exchanges = new Exchange[0];
+        private final AtomicInteger counter = new AtomicInteger();
+
+        private synchronized void add(Exchange exchange) {
+            Exchange[] array = Arrays.copyOf(exchanges, exchanges.length + 1);
+            array[array.length - 1] = exchange;
+            exchanges = array;
+        }
+
+        private Exchange next() {
+            Exchange[] array = exchanges;
+            if(array.length == 1) return array[0];
+            return array[Math.floorMod(counter.getAndIncrement(), array.length)];
+        }
+    }
+
+    private static class Exchange {
+        private final int status;
+        private final long nanos;
+        private final HttpHeaders headers;
+        private final byte[] body;
+
+        public Exchange(Journal.Record record) {
+            this.status = record.status();
+            this.nanos = record.nanos();
+            this.body = record.body() == null
+                ? new byte[0]
+                : Arrays.copyOfRange(record.body(), record.offset(), record.offset() + record.length());
+            HttpHeaders h = new HttpHeaders();
+            for(Map.Entry<String, List<String>> entry : record.headers().entrySet()) {
+                if(HttpHeaders.TRANSFER_ENCODING.equalsIgnoreCase(entry.getKey())) continue;
+                if(HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(entry.getKey())) continue;
+                h.addAll(entry.getKey(), entry.getValue());
+            }
+            // body may be truncated by journal body limit
+            h.setContentLength(body.length);
+            this.headers = HttpHeaders.readOnlyHttpHeaders(h);
+        }
+    }
+
+    private class Request implements ClientHttpRequest {
+        private final HttpMethod method;
+        private final URI uri;
+        private final HttpHeaders headers = new HttpHeaders();
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        public Request(HttpMethod method, URI uri) {
+            this.method = method;
+            this.uri = uri;
+        }
+
+        @Override
+        public ClientHttpResponse execute() throws IOException {
+            ClientHttpResponse response = response(this, body.toByteArray());
+            return response == null ? missing() : response;
+        }
+        @Override
+        public String getMethodValue() { return method.name(); }
+        @Override
+        public URI getURI() { return uri; }
+        @Override
+        public HttpHeaders getHeaders() { return headers; }
+        @Override
+        public OutputStream getBody() throws IOException { return body; }
+    }
+
+    private static class Response implements ClientHttpResponse {
+        private final int status;
+        private final HttpHeaders headers;
+        private final InputStream body;
+
+        public Response(int status, HttpHeaders headers, byte[] body) {
+            this.status = status;
+            this.headers = headers;
+            this.body = new ByteArrayInputStream(body);
+        }
+
+        @Override
+        public HttpStatus getStatusCode() throws IOException { return HttpStatus.valueOf(status); }
+        @Override
+        public int getRawStatusCode() throws IOException { return status; }
+        @Override
+        public String getStatusText() throws IOException {
+            HttpStatus resolved = HttpStatus.resolve(status);
+            return resolved == null ? "" : resolved.getReasonPhrase();
+        }
+        @Override
+        public void close() { }
+        @Override
+        public InputStream getBody() throws IOException { return body; }
+        @Override
+        public HttpHeaders getHeaders() { return headers; }
+    }
+}
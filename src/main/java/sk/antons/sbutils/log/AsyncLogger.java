@@ -0,0 +1,286 @@
+/*
+ *
+ */
+package sk.antons.sbutils.log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Asynchronous logger. Messages are put to bounded lock-free queue and
+ * background thread writes them in batches to target logger. So slow log
+ * appenders are not on request thread.
+ *
+ * Messages can be provided as Supplier (see defer()). Such messages are
+ * created (formatted) by writer thread, so caller pays only for enqueue.
+ * Interceptors in this library uses this when they detect AsyncLogger
+ * as logger.
+ *
+ * {@code <pre>}
+ * AsyncLogger async = AsyncLogger.instance(m -> log.info(m))
+ *     .capacity(16384)
+ *     .overflow(AsyncLogger.Overflow.DROP);
+ * LoggingInterceptor.instance()
+ *     .logger(async)
+ *     ...
+ * {@code </pre>}
+ *
+ * @author antons
+ */
+public class AsyncLogger implements Consumer<String>, AutoCloseable {
+
+    /**
+     * What to do with message when queue is full.
+     */
+    public enum Overflow {
+        /** message is dropped */
+        DROP,
+        /** when queue is 3/4 full only each sampleRate-th message is accepted, message is dropped when full */
+        SAMPLE,
+        /** caller waits until there is space in queue */
+        BLOCK
+    }
+
+    private Consumer<String> logger = null;
+    private Consumer<List<String>> batchLogger = null;
+    private int capacity = 8192;
+    private int batchSize = 256;
+    private Overflow overflow = Overflow.DROP;
+    private int sampleRate = 10;
+    private String name = "sb-utils-async-logger";
+
+    private final LongAdder enqueued = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final AtomicLong sampleCounter = new AtomicLong();
+
+    private volatile Queue queue = null;
+    private volatile Thread writer = null;
+    private volatile boolean sleeping = false;
+    private volatile boolean closed = false;
+
+    private AsyncLogger() {}
+    public static AsyncLogger instance(Consumer<String> logger) { return new AsyncLogger().logger(logger); }
+    public static AsyncLogger batchInstance(Consumer<List<String>> logger) { return new AsyncLogger().batchLogger(logger); }
+
+    /** Target logger called for each message by writer thread. */
+    public AsyncLogger logger(Consumer<String> value) { this.logger = value; return this; }
+    /** Target logger called once per drained batch by writer thread. */
+    public AsyncLogger batchLogger(Consumer<List<String>> value) { this.batchLogger = value; return this; }
+    /** Queue capacity (rounded to power of two, default 8192). Must be set before first message. */
+    public AsyncLogger capacity(int value) { this.capacity = value; return this; }
+    /** Max number of messages written in one batch (default 256). */
+    public AsyncLogger batchSize(int value) { this.batchSize = value; return this; }
+    /** Overflow policy (default DROP). */
+    public AsyncLogger overflow(Overflow value) { this.overflow = value; return this; }
+    /** Each n-th message is accepted in SAMPLE overflow mode (default 10). */
+    public AsyncLogger sampleRate(int value) { this.sampleRate = value; return this; }
+    /** Writer thread name. */
+    public AsyncLogger name(String value) { this.name = value; return this; }
+
+    /** @return number of messages accepted to queue */
+    public long enqueued() { return enqueued.sum(); }
+    /** @return number of messages dropped because of overflow */
+    public long dropped() { return dropped.sum(); }
+    /** @return number of messages written to target logger */
+    public long written() { return written.sum(); }
+    /** @return approximate number of messages waiting in queue */
+    public int pending() { Queue q = queue; return q == null ? 0 : q.size(); }
+
+    @Override
+    public void accept(String message) {
+        enqueue(message);
+    }
+
+    /**
+     * Enqueue message which is created by writer thread.
+     */
+    public void defer(Supplier<String> message) {
+        enqueue(message);
+    }
+
+    /**
+     * Sends message to logger. If logger is AsyncLogger message creation is
+     * deferred to writer thread otherwise message is created immediately.
+     */
+    public static void log(Consumer<String> logger, Supplier<String> message) {
+        if(logger == null) return;
+        if(logger instanceof AsyncLogger) ((AsyncLogger)logger).defer(message);
+        else logger.accept(message.get());
+    }
+
+    private void enqueue(Object message) {
+        if(message == null) return;
+        if(closed) {
+            dropped.increment();
+            return;
+        }
+        Queue q = start();
+        boolean accepted = false;
+        if(overflow == Overflow.SAMPLE) {
+            if((q.size() < (q.capacity() - (q.capacity() >> 2)))
+                || (sampleCounter.incrementAndGet() % Math.max(1, sampleRate) == 0)) accepted = q.offer(message);
+        } else if(overflow == Overflow.BLOCK) {
+            accepted = q.offer(message);
+            while(!accepted && !closed) {
+                wakeup();
+                LockSupport.parkNanos(50_000);
+                accepted = q.offer(message);
+            }
+        } else {
+            accepted = q.offer(message);
+        }
+        if(accepted) {
+            enqueued.increment();
+            if(sleeping) wakeup();
+        } else {
+            dropped.increment();
+        }
+    }
+
+    private void wakeup() {
+        Thread t = writer;
+        if(t != null) LockSupport.unpark(t);
+    }
+
+    private Queue start() {
+        Queue q = queue;
+        if(q != null) return q;
+        synchronized(this) {
+            if(queue == null) {
+                if((logger == null) && (batchLogger == null)) throw new IllegalStateException("No logger");
+                Queue nq = new Queue(capacity);
+                Thread t = new Thread(this::run, name);
+                t.setDaemon(true);
+                queue = nq;
+                writer = t;
+                t.start();
+            }
+            return queue;
+        }
+    }
+
+    private void run() {
+        List<String> batch = new ArrayList<>(Math.max(1, batchSize));
+        while(true) {
+            int n = drain(batch);
+            if(n == 0) {
+                if(closed) break;
+                sleeping = true;
+                if(queue.size() == 0) LockSupport.parkNanos(10_000_000);
+                sleeping = false;
+            }
+        }
+        drain(batch);
+    }
+
+    private int drain(List<String> batch) {
+        Queue q = queue;
+        int n = 0;
+        Object item = null;
+        while((n < batchSize) && ((item = q.poll()) != null)) {
+            n++;
+            String message = null;
+            try {
+                message = (item instanceof Supplier) ? ((Supplier<String>)item).get() : (String)item;
+            } catch(Throwable e) {
+                message = "unable to create log message: " + e;
+            }
+            if(message != null) batch.add(message);
+        }
+        if(batch.isEmpty()) return n;
+        try {
+            if(batchLogger != null) {
+                batchLogger.accept(batch);
+            } else {
+                for(String message : batch) {
+                    logger.accept(message);
+                }
+            }
+        } catch(Throwable e) {
+            // logging must not kill writer thread
+        }
+        written.add(batch.size());
+        batch.clear();
+        return n;
+    }
+
+    /**
+     * Stops accepting new messages, writes pending ones and stops writer thread.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        Thread t = writer;
+        if(t == null) return;
+        LockSupport.unpark(t);
+        try {
+            t.join(10_000);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Bounded multi producer single consumer array queue (Vyukov style).
+     * Each slot has sequence number which says if slot is free for
+     * producer at given position or ready for consumer.
+     */
+    private static class Queue {
+        private final int mask;
+        private final AtomicReferenceArray<Object> items;
+        private final AtomicLongArray sequences;
+        private final AtomicLong tail = new AtomicLong();
+        private volatile long head = 0;
+
+        Queue(int capacity) {
+            int size = 2;
+            while(size < capacity) size <<= 1;
+            mask = size - 1;
+            items = new AtomicReferenceArray<>(size);
+            sequences = new AtomicLongArray(size);
+            for(int i = 0; i < size; i++) sequences.set(i, i);
+        }
+
+        int capacity() { return mask + 1; }
+        int size() { return (int)Math.max(0, tail.get() - head); }
+
+        boolean offer(Object item) {
+            long pos = tail.get();
+            while(true) {
+                int index = (int)(pos & mask);
+                long diff = sequences.get(index) - pos;
+                if(diff == 0) {
+                    if(tail.compareAndSet(pos, pos + 1)) {
+                        items.set(index, item);
+                        sequences.set(index, pos + 1);
+                        return true;
+                    }
+                    pos = tail.get();
+                } else if(diff < 0) {
+                    return false;
+                } else {
+                    pos = tail.get();
+                }
+            }
+        }
+
+        Object poll() {
+            long pos = head;
+            int index = (int)(pos & mask);
+            if(sequences.get(index) != pos + 1) return null;
+            Object item = items.get(index);
+            items.set(index, null);
+            sequences.set(index, pos + mask + 1);
+            head = pos + 1;
+            return item;
+        }
+    }
+}
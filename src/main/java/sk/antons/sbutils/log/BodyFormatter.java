@@ -0,0 +1,49 @@
+/*
+ *
+ */
+package sk.antons.sbutils.log;
+
+import java.nio.charset.StandardCharsets;
+import java.util.function.Function;
+
+/**
+ * Formats message body bytes directly to log message buffer. Body is not
+ * converted to String before formatting.
+ *
+ * @author antons
+ */
+@FunctionalInterface
+public interface BodyFormatter {
+
+    /**
+     * Appends formatted body to out
+     * @param data body bytes
+     * @param offset start of body in data
+     * @param length length of body
+     * @param out log message buffer
+     */
+    void format(byte[] data, int offset, int length, StringBuilder out);
+
+    /**
+     * Body as UTF-8 text.
+     */
+    static BodyFormatter text() {
+        return (data, offset, length, out) -> JsonCompactor.appendUtf8(data, offset, offset + length, out);
+    }
+
+    /**
+     * Json body in one line. Whitespaces outside of strings are removed in one
+     * pass without parsing to tree. Non json bodies are appended as text.
+     */
+    static BodyFormatter jsonOneLine() {
+        return JsonCompactor::compact;
+    }
+
+    /**
+     * Adapter for String based formatters.
+     */
+    static BodyFormatter of(Function<String, String> formatter) {
+        if(formatter == null) return text();
+        return (data, offset, length, out) -> out.append(formatter.apply(new String(data, offset, length, StandardCharsets.UTF_8)));
+    }
+}
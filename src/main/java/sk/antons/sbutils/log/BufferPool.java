@@ -0,0 +1,59 @@
+/*
+ *
+ */
+package sk.antons.sbutils.log;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of reusable CappedBuffer instances with same limit. Buffers keep
+ * their backing arrays, so capturing of message bodies does not allocate
+ * new arrays for each message. Pool is lock free and bounded; buffers
+ * released over capacity are left to GC.
+ *
+ * @author antons
+ */
+public class BufferPool {
+    private final int limit;
+    private final int capacity;
+    private final Queue<CappedBuffer> pool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    private BufferPool(int limit, int capacity) {
+        this.limit = limit;
+        this.capacity = capacity;
+    }
+
+    /**
+     * @param limit limit of buffers
+     * @param capacity max number of pooled buffers
+     */
+    public static BufferPool instance(int limit, int capacity) { return new BufferPool(limit, capacity); }
+
+    public int limit() { return limit; }
+
+    /**
+     * @return empty buffer from pool or new one
+     */
+    public CappedBuffer acquire() {
+        CappedBuffer buffer = pool.poll();
+        if(buffer == null) return CappedBuffer.instance(limit);
+        size.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Returns buffer to pool. Buffer must not be used after release.
+     */
+    public void release(CappedBuffer buffer) {
+        if((buffer == null) || (buffer.limit() != limit)) return;
+        buffer.reset();
+        if(size.incrementAndGet() > capacity) {
+            size.decrementAndGet();
+            return;
+        }
+        pool.offer(buffer);
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ *
+ */
+package sk.antons.sbutils.log;
+
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Output stream which keeps only first limit bytes written to it. All other
+ * bytes are only counted. Used for capturing message bodies for logging
+ * without holding whole body in memory.
+ *
+ * @author antons
+ */
+public class CappedBuffer extends OutputStream {
+    private static final int INITIAL_SIZE = 1024;
+
+    private final int limit;
+    private byte[] buff = null;
+    private int size = 0;
+    private long total = 0;
+
+    public CappedBuffer(int limit) {
+        this.limit = limit < 0 ? 0 : limit;
+    }
+
+    public static CappedBuffer instance(int limit) { return new CappedBuffer(limit); }
+
+    @Override
+    public void write(int b) {
+        total++;
+        if(size >= limit) return;
+        ensure(size + 1);
+        buff[size++] = (byte)b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        if(len <= 0) return;
+        total += len;
+        int n = Math.min(len, limit - size);
+        if(n <= 0) return;
+        ensure(size + n);
+        System.arraycopy(b, off, buff, size, n);
+        size += n;
+    }
+
+    private void ensure(int needed) {
+        if(buff == null) {
+            buff = new byte[Math.min(limit, Math.max(INITIAL_SIZE, needed))];
+        } else if(buff.length < needed) {
+            int newsize = Math.min(limit, Math.max(buff.length << 1, needed));
+            buff = Arrays.copyOf(buff, newsize);
+        }
+    }
+
+    /**
+     * @return number of captured bytes
+     */
+    public int size() { return size; }
+    /**
+     * @return number of all bytes written to buffer (including not captured ones)
+     */
+    public long total() { return total; }
+    /**
+     * @return true if some bytes was not captured because of limit
+     */
+    public boolean truncated() { return total > size; }
+    public int limit() { return limit; }
+    /**
+     * @return internal array. Only first size() bytes are valid
+     */
+    public byte[] array() { return buff == null ? new byte[0] : buff; }
+    public byte[] toByteArray() { return buff == null ? new byte[0] : Arrays.copyOf(buff, size); }
+    public String toString(Charset charset) { return buff == null ? "" : new String(buff, 0, size, charset); }
+
+    public void reset() {
+        size = 0;
+        total = 0;
+    }
+}
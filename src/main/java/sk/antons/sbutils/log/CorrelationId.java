@@ -0,0 +1,153 @@
+/*
+ *
+ */
+package sk.antons.sbutils.log;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.slf4j.MDC;
+
+/**
+ * Correlation id shared by all interceptors and clients in this library.
+ *
+ * Ids are allocated from striped counters. Stripe is selected by thread id
+ * and stripe i produces ids i+1, i+1+stripes, ..., so threads rarely share
+ * counter and no ids are reserved per thread.
+ *
+ * Current id is published to SLF4J MDC (key reqId by default). It is parent
+ * of outbound calls. Each outbound exchange gets its own id parent.n (or n
+ * if there is no parent) published under separate MDC key (exchangeId by
+ * default) while exchange is running, so messages logged by
+ * RestTemplateClient and LoggingInterceptor for one exchange share same id
+ * and exchanges of one server request share parent. Server side code can
+ * open scope with id from incoming header.
+ *
+ * {@code <pre>}
+ * try(CorrelationId.Scope scope = CorrelationId.open(request.getHeader("X-Correlation-Id"))) {
+ *     chain.doFilter(request, response);
+ * }
+ * {@code </pre>}
+ *
+ * @author antons
+ */
+public class CorrelationId {
+    private static final int STRIPES = stripes();
+    // counters are padded to separate cache lines
+    private static final int PADDING = 8;
+    private static final AtomicLongArray counters = new AtomicLongArray(STRIPES * PADDING);
+
+    private static volatile String mdcKey = "reqId";
+    private static volatile String exchangeMdcKey = "exchangeId";
+
+    /** MDC key used for publishing correlation id (default reqId). */
+    public static void mdcKey(String value) {
+        if(value == null) throw new IllegalArgumentException("no mdc key");
+        mdcKey = value;
+    }
+    public static String mdcKey() { return mdcKey; }
+
+    /** MDC key used for publishing id of outbound exchange (default exchangeId). */
+    public static void exchangeMdcKey(String value) {
+        if(value == null) throw new IllegalArgumentException("no mdc key");
+        exchangeMdcKey = value;
+    }
+    public static String exchangeMdcKey() { return exchangeMdcKey; }
+
+    /**
+     * @return new unique id
+     */
+    public static long nextLong() {
+        int stripe = (int)(Thread.currentThread().getId() & (STRIPES - 1));
+        return counters.getAndIncrement(stripe * PADDING) * STRIPES + stripe + 1;
+    }
+
+    /**
+     * @return new unique id
+     */
+    public static String next() { return Long.toString(nextLong()); }
+
+    /**
+     * @return id published in MDC or null
+     */
+    public static String current() { return MDC.get(mdcKey); }
+
+    /**
+     * @return id published in MDC or new one
+     */
+    public static String currentOrNext() {
+        String id = current();
+        return id == null ? next() : id;
+    }
+
+    /**
+     * @return id of running outbound exchange published in MDC or null
+     */
+    public static String exchange() { return MDC.get(exchangeMdcKey); }
+
+    /**
+     * @return new exchange id with current id as parent (parent.n)
+     */
+    public static String nextExchange() {
+        String parent = current();
+        return parent == null ? next() : parent + '.' + nextLong();
+    }
+
+    /**
+     * @return id of running outbound exchange or new one
+     */
+    public static String exchangeOrNext() {
+        String id = exchange();
+        return id == null ? nextExchange() : id;
+    }
+
+    /**
+     * Publish id to MDC. Previous value is restored when scope is closed.
+     * @param id id to publish (new one is created if null or empty)
+     * @return scope
+     */
+    public static Scope open(String id) {
+        if((id == null) || id.isEmpty()) id = next();
+        return open(mdcKey, id);
+    }
+
+    /**
+     * Publish id of outbound exchange to MDC. Previous value is restored
+     * when scope is closed.
+     * @param id id to publish (new one is created if null or empty)
+     * @return scope
+     */
+    public static Scope openExchange(String id) {
+        if((id == null) || id.isEmpty()) id = nextExchange();
+        return open(exchangeMdcKey, id);
+    }
+
+    private static Scope open(String key, String id) {
+        String previous = MDC.get(key);
+        MDC.put(key, id);
+        return new Scope(key, id, previous);
+    }
+
+    private static int stripes() {
+        int n = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1;
+        return Math.min(n, 256);
+    }
+
+    public static class Scope implements AutoCloseable {
+        private final String key;
+        private final String id;
+        private final String previous;
+
+        private Scope(String key, String id, String previous) {
+            this.key = key;
+            this.id = id;
+            this.previous = previous;
+        }
+
+        public String id() { return id; }
+
+        @Override
+        public void close() {
+            if(previous == null) MDC.remove(key);
+            else MDC.put(key, previous);
+        }
+    }
+}
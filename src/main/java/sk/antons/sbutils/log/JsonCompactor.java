@@ -0,0 +1,64 @@
+/*
+ *
+ */
+package sk.antons.sbutils.log;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Single pass json one-liner. It works on UTF-8 bytes and only removes
+ * whitespaces outside of string literals. Json is not validated.
+ *
+ * @author antons
+ */
+public class JsonCompactor {
+
+    /**
+     * Appends json from data to out without insignificant whitespaces. If data
+     * does not starts with '{' or '[' it is appended unchanged.
+     */
+    public static void compact(byte[] data, int offset, int length, StringBuilder out) {
+        int end = offset + length;
+        int i = offset;
+        while((i < end) && isWhitespace(data[i])) i++;
+        if((i >= end) || ((data[i] != '{') && (data[i] != '['))) {
+            appendUtf8(data, offset, end, out);
+            return;
+        }
+        while(i < end) {
+            byte b = data[i];
+            if(b == '"') {
+                int start = i++;
+                while(i < end) {
+                    byte c = data[i++];
+                    if(c == '\\') i++;
+                    else if(c == '"') break;
+                }
+                if(i > end) i = end;
+                appendUtf8(data, start, i, out);
+            } else {
+                if(!isWhitespace(b)) out.append((char)(b & 0xff));
+                i++;
+            }
+        }
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return (b == ' ') || (b == '\n') || (b == '\r') || (b == '\t');
+    }
+
+    /**
+     * Appends UTF-8 bytes to out. ASCII only sequences are appended without
+     * decoder.
+     */
+    public static void appendUtf8(byte[] data, int start, int end, StringBuilder out) {
+        for(int i = start; i < end; i++) {
+            if(data[i] < 0) {
+                out.append(new String(data, start, end - start, StandardCharsets.UTF_8));
+                return;
+            }
+        }
+        out.ensureCapacity(out.length() + (end - start));
+        for(int i = start; i < end; i++) out.append((char)data[i]);
+    }
+}
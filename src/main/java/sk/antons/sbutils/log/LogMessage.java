@@ -0,0 +1,36 @@
+/*
+ *
+ */
+package sk.antons.sbutils.log;
+
+import java.util.function.Supplier;
+
+/**
+ * Lazy log message. Message text is created when toString() is called first
+ * time. So if log backend ignores message (like log.debug("{}", message) with
+ * debug level disabled) no formatting is done.
+ *
+ * @author antons
+ */
+public class LogMessage implements Supplier<String> {
+    private Supplier<String> supplier;
+    private String value;
+
+    private LogMessage(Supplier<String> supplier) {
+        this.supplier = supplier;
+    }
+
+    public static LogMessage of(Supplier<String> supplier) { return new LogMessage(supplier); }
+
+    @Override
+    public synchronized String get() {
+        if(value == null) {
+            value = supplier.get();
+            supplier = null;
+        }
+        return value;
+    }
+
+    @Override
+    public String toString() { return get(); }
+}
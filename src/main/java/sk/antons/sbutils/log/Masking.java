@@ -0,0 +1,798 @@
+/*
+ *
+ */
+package sk.antons.sbutils.log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Masks sensitive data in logged messages. Rules (header names, json
+ * pointers, xml element and attribute names) are compiled once and bodies
+ * are masked in one pass while they are streamed through masking output
+ * stream. No tree is built.
+ *
+ * <pre>
+ * Masking masking = Masking.instance()
+ *     .headers("Authorization", "Cookie")
+ *     .json("/card/number", "/users/&#42;/password")
+ *     .jsonFields("password")
+ *     .xml("Password", "CardNumber")
+ *     .xmlAttributes("pin");
+ * </pre>
+ *
+ * @author antons
+ */
+public class Masking {
+    private final Set<String> headers = new HashSet<>();
+    private final Set<String> jsonPaths = new LinkedHashSet<>();
+    private final Set<String> jsonFields = new LinkedHashSet<>();
+    private final Set<String> xmlElements = new LinkedHashSet<>();
+    private final Set<String> xmlAttributes = new LinkedHashSet<>();
+    private String mask = "****";
+    private volatile Rules rules = null;
+
+    public static Masking instance() { return new Masking(); }
+
+    /**
+     * Names of headers which values are masked (case insensitive).
+     */
+    public Masking headers(String... names) {
+        for(String name : names) headers.add(name.toLowerCase(Locale.ROOT));
+        return this;
+    }
+    /**
+     * Json pointers (RFC 6901) of masked values. Segment '*' matches any
+     * key or array index. Masked objects and arrays are replaced as whole.
+     */
+    public Masking json(String... pointers) { jsonPaths.addAll(Arrays.asList(pointers)); rules = null; return this; }
+    /**
+     * Names of json object fields which values are masked at any level.
+     */
+    public Masking jsonFields(String... names) { jsonFields.addAll(Arrays.asList(names)); rules = null; return this; }
+    /**
+     * Local names of xml elements which content is masked (namespace prefix is ignored).
+     */
+    public Masking xml(String... elements) { xmlElements.addAll(Arrays.asList(elements)); rules = null; return this; }
+    /**
+     * Local names of xml attributes which values are masked.
+     */
+    public Masking xmlAttributes(String... names) { xmlAttributes.addAll(Arrays.asList(names)); rules = null; return this; }
+    /**
+     * Replacement of masked values (default ****).
+     */
+    public Masking mask(String value) { this.mask = value; rules = null; return this; }
+
+    private Rules rules() {
+        Rules r = rules;
+        if(r == null) {
+            r = new Rules(this);
+            rules = r;
+        }
+        return r;
+    }
+
+    /**
+     * @return true if values of header should be masked
+     */
+    public boolean sensitiveHeader(String name) {
+        return (name != null) && headers.contains(name.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * @return mask if header is sensitive or value otherwise
+     */
+    public String header(String name, String value) {
+        return sensitiveHeader(name) ? mask : value;
+    }
+
+    /**
+     * @return copy of headers with masked values of sensitive headers
+     */
+    public Map<String, List<String>> maskHeaders(Map<String, List<String>> headers) {
+        if(headers == null) return null;
+        Map<String, List<String>> masked = new LinkedHashMap<>();
+        for(Map.Entry<String, List<String>> entry : headers.entrySet()) {
+            List<String> values = entry.getValue();
+            if(sensitiveHeader(entry.getKey()) && (values != null)) values = Collections.nCopies(values.size(), mask);
+            masked.put(entry.getKey(), values);
+        }
+        return masked;
+    }
+
+    /**
+     * Stream which masks json written to it and writes it to target.
+     */
+    public OutputStream jsonStream(OutputStream target) { return new JsonMasker(rules(), target); }
+    /**
+     * Stream which masks xml written to it and writes it to target.
+     */
+    public OutputStream xmlStream(OutputStream target) { return new XmlMasker(rules(), target); }
+    /**
+     * Stream which masks json or xml (detected by first character) written
+     * to it. Other content is written to target unchanged.
+     */
+    public OutputStream stream(OutputStream target) { return new AutoMasker(rules(), target); }
+
+    /**
+     * Masks json or xml body before it is formatted by formatter.
+     */
+    public BodyFormatter formatter(BodyFormatter formatter) {
+        BodyFormatter f = formatter == null ? BodyFormatter.text() : formatter;
+        return (data, offset, length, out) -> {
+            CappedBuffer masked = CappedBuffer.instance(Integer.MAX_VALUE);
+            try (OutputStream os = stream(masked)) {
+                os.write(data, offset, length);
+            } catch(IOException e) {
+                // not possible for CappedBuffer
+            }
+            f.format(masked.array(), 0, masked.size(), out);
+        };
+    }
+
+    /**
+     * Compiled rules.
+     */
+    private static class Rules {
+        private final Node json;
+        private final Names fields;
+        private final Names elements;
+        private final Names attributes;
+        private final byte[] mask;
+        private final byte[] quotedMask;
+
+        private Rules(Masking masking) {
+            Node root = new Node();
+            for(String path : masking.jsonPaths) root.add(path);
+            root.resolve();
+            this.json = root.empty() ? null : root;
+            this.fields = Names.of(masking.jsonFields);
+            this.elements = Names.of(masking.xmlElements);
+            this.attributes = Names.of(masking.xmlAttributes);
+            this.mask = masking.mask.getBytes(StandardCharsets.UTF_8);
+            this.quotedMask = ("\"" + masking.mask + "\"").getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Json pointer trie. Wildcard children are merged into literal ones, so
+     * each key leads to at most one node.
+     */
+    private static class Node {
+        private byte[][] keys = new byte[0][];
+        private Node[] children = new Node[0];
+        private Node wildcard = null;
+        private boolean terminal = false;
+        private boolean resolved = false;
+
+        private void add(String pointer) {
+            if((pointer == null) || !pointer.startsWith("/")) throw new IllegalArgumentException("Json pointer must start with '/': " + pointer);
+            Node node = this;
+            for(String segment : pointer.substring(1).split("/", -1)) {
+                segment = segment.replace("~1", "/").replace("~0", "~");
+                node = "*".equals(segment) ? node.wildcard() : node.literal(segment.getBytes(StandardCharsets.UTF_8));
+            }
+            node.terminal = true;
+        }
+
+        private Node wildcard() {
+            if(wildcard == null) wildcard = new Node();
+            return wildcard;
+        }
+
+        private Node literal(byte[] key) {
+            for(int i = 0; i < keys.length; i++) {
+                if(Arrays.equals(keys[i], key)) return children[i];
+            }
+            keys = Arrays.copyOf(keys, keys.length + 1);
+            children = Arrays.copyOf(children, children.length + 1);
+            keys[keys.length - 1] = key;
+            children[children.length - 1] = new Node();
+            return children[children.length - 1];
+        }
+
+        private boolean empty() {
+            return (keys.length == 0) && (wildcard == null) && !terminal;
+        }
+
+        private static Node union(Node a, Node b) {
+            if(a == null) return b;
+            if(b == null) return a;
+            Node n = new Node();
+            n.terminal = a.terminal || b.terminal;
+            n.wildcard = union(a.wildcard, b.wildcard);
+            for(int i = 0; i < a.keys.length; i++) n.put(a.keys[i], a.children[i]);
+            for(int i = 0; i < b.keys.length; i++) n.put(b.keys[i], b.children[i]);
+            return n;
+        }
+
+        private void put(byte[] key, Node child) {
+            for(int i = 0; i < keys.length; i++) {
+                if(Arrays.equals(keys[i], key)) {
+                    children[i] = union(children[i], child);
+                    return;
+                }
+            }
+            keys = Arrays.copyOf(keys, keys.length + 1);
+            children = Arrays.copyOf(children, children.length + 1);
+            keys[keys.length - 1] = key;
+            children[children.length - 1] = child;
+        }
+
+        private void resolve() {
+            if(resolved) return;
+            resolved = true;
+            for(int i = 0; i < children.length; i++) {
+                children[i] = union(children[i], wildcard);
+                children[i].resolve();
+            }
+            if(wildcard != null) wildcard.resolve();
+        }
+
+        private Node next(byte[] key, int len) {
+            for(int i = 0; i < keys.length; i++) {
+                if(Names.equals(keys[i], key, len)) return children[i];
+            }
+            return wildcard;
+        }
+
+        private Node next(int index, byte[] scratch) {
+            if(keys.length == 0) return wildcard;
+            String s = Integer.toString(index);
+            for(int i = 0; i < s.length(); i++) scratch[i] = (byte)s.charAt(i);
+            return next(scratch, s.length());
+        }
+    }
+
+    /**
+     * Set of names compared directly with bytes.
+     */
+    private static class Names {
+        private final byte[][] names;
+
+        private Names(byte[][] names) {
+            this.names = names;
+        }
+
+        private static Names of(Set<String> values) {
+            List<byte[]> list = new ArrayList<>();
+            for(String value : values) list.add(value.getBytes(StandardCharsets.UTF_8));
+            return new Names(list.toArray(new byte[list.size()][]));
+        }
+
+        private boolean empty() { return names.length == 0; }
+
+        private boolean contains(byte[] data, int off, int len) {
+            for(byte[] name : names) {
+                if(name.length != len) continue;
+                int i = 0;
+                while((i < len) && (name[i] == data[off + i])) i++;
+                if(i == len) return true;
+            }
+            return false;
+        }
+
+        private static boolean equals(byte[] name, byte[] data, int len) {
+            if(name.length != len) return false;
+            for(int i = 0; i < len; i++) {
+                if(name[i] != data[i]) return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Masking stream with small output buffer.
+     */
+    private abstract static class Masker extends OutputStream {
+        protected final Rules rules;
+        protected final OutputStream target;
+        private final byte[] out = new byte[512];
+        private int outlen = 0;
+
+        private Masker(Rules rules, OutputStream target) {
+            this.rules = rules;
+            this.target = target;
+        }
+
+        protected void emit(byte b) throws IOException {
+            if(outlen == out.length) drain();
+            out[outlen++] = b;
+        }
+
+        protected void emit(byte[] b, int off, int len) throws IOException {
+            if(len > out.length - outlen) {
+                drain();
+                if(len > out.length) {
+                    target.write(b, off, len);
+                    return;
+                }
+            }
+            System.arraycopy(b, off, out, outlen, len);
+            outlen += len;
+        }
+
+        protected void drain() throws IOException {
+            if(outlen == 0) return;
+            target.write(out, 0, outlen);
+            outlen = 0;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            next((byte)b);
+            drain();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int end = off + len;
+            int i = off;
+            while(i < end) i = next(b, i, end);
+            drain();
+        }
+
+        /**
+         * Processes bytes from position i.
+         * @return position of next not processed byte
+         */
+        protected int next(byte[] b, int i, int end) throws IOException {
+            next(b[i]);
+            return i + 1;
+        }
+
+        protected abstract void next(byte b) throws IOException;
+
+        @Override
+        public void flush() throws IOException {
+            drain();
+            target.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            drain();
+            target.close();
+        }
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return (b == ' ') || (b == '\n') || (b == '\r') || (b == '\t');
+    }
+
+    /**
+     * Detects json or xml by first character.
+     */
+    private static class AutoMasker extends Masker {
+        private OutputStream delegate = null;
+
+        private AutoMasker(Rules rules, OutputStream target) {
+            super(rules, target);
+        }
+
+        @Override
+        protected void next(byte b) throws IOException {
+            if(delegate == null) {
+                if(isWhitespace(b)) {
+                    emit(b);
+                    return;
+                }
+                drain();
+                if((b == '{') || (b == '[')) delegate = new JsonMasker(rules, target);
+                else if(b == '<') delegate = new XmlMasker(rules, target);
+                else delegate = target;
+            }
+            delegate.write(b);
+        }
+
+        @Override
+        protected int next(byte[] b, int i, int end) throws IOException {
+            if(delegate == null) return super.next(b, i, end);
+            delegate.write(b, i, end - i);
+            return end;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            drain();
+            if(delegate != null) delegate.flush();
+            else target.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            drain();
+            if(delegate != null) delegate.close();
+            else target.close();
+        }
+    }
+
+    /**
+     * Single pass json masker. It tracks only stack of containers and
+     * pointer trie nodes. Json is not validated.
+     */
+    private static class JsonMasker extends Masker {
+        private enum State { NORMAL, KEY, STRING, SKIP_STRING, SKIP_NESTED, SKIP_LITERAL }
+
+        private State state = State.NORMAL;
+        private boolean[] object = new boolean[16];
+        private Node[] nodes = new Node[16];
+        private int[] index = new int[16];
+        private int depth = -1;
+        private boolean expectKey = false;
+        private boolean literal = false;
+        private boolean escape = false;
+        private boolean skipString = false;
+        private int skipDepth = 0;
+        private final byte[] key = new byte[256];
+        private int keylen = 0;
+        private Node keyNode = null;
+        private boolean keyMasked = false;
+        private final byte[] scratch = new byte[12];
+
+        private JsonMasker(Rules rules, OutputStream target) {
+            super(rules, target);
+        }
+
+        @Override
+        protected int next(byte[] b, int i, int end) throws IOException {
+            if((state == State.STRING) && !escape) {
+                // copy string content in bulk
+                int start = i;
+                while((i < end) && (b[i] != '"') && (b[i] != '\\')) i++;
+                if(i > start) emit(b, start, i - start);
+                if(i == end) return end;
+            }
+            next(b[i]);
+            return i + 1;
+        }
+
+        @Override
+        protected void next(byte b) throws IOException {
+            switch(state) {
+                case STRING:
+                    emit(b);
+                    if(escape) escape = false;
+                    else if(b == '\\') escape = true;
+                    else if(b == '"') state = State.NORMAL;
+                    return;
+                case KEY:
+                    emit(b);
+                    if(escape) escape = false;
+                    else if(b == '\\') escape = true;
+                    else if(b == '"') {
+                        keyDone();
+                        state = State.NORMAL;
+                        return;
+                    }
+                    if(keylen < key.length) key[keylen] = b;
+                    keylen++;
+                    return;
+                case SKIP_STRING:
+                    if(escape) escape = false;
+                    else if(b == '\\') escape = true;
+                    else if(b == '"') state = State.NORMAL;
+                    return;
+                case SKIP_NESTED:
+                    if(skipString) {
+                        if(escape) escape = false;
+                        else if(b == '\\') escape = true;
+                        else if(b == '"') skipString = false;
+                    } else if(b == '"') {
+                        skipString = true;
+                    } else if((b == '{') || (b == '[')) {
+                        skipDepth++;
+                    } else if((b == '}') || (b == ']')) {
+                        skipDepth--;
+                        if(skipDepth == 0) state = State.NORMAL;
+                    }
+                    return;
+                case SKIP_LITERAL:
+                    if(!isWhitespace(b) && (b != ',') && (b != '}') && (b != ']')) return;
+                    state = State.NORMAL;
+                    literal = false;
+                    break;
+                default:
+                    break;
+            }
+            normal(b);
+        }
+
+        private void normal(byte b) throws IOException {
+            if(isWhitespace(b)) {
+                literal = false;
+                emit(b);
+            } else if((b == '{') || (b == '[')) {
+                literal = false;
+                if(masked()) {
+                    emit(rules.quotedMask, 0, rules.quotedMask.length);
+                    state = State.SKIP_NESTED;
+                    skipDepth = 1;
+                    skipString = false;
+                    return;
+                }
+                Node node = valueNode();
+                emit(b);
+                push(b == '{', node);
+            } else if((b == '}') || (b == ']')) {
+                literal = false;
+                emit(b);
+                if(depth >= 0) depth--;
+                expectKey = false;
+            } else if(b == ',') {
+                literal = false;
+                emit(b);
+                if(depth >= 0) {
+                    if(object[depth]) expectKey = true;
+                    else index[depth]++;
+                }
+            } else if(b == ':') {
+                literal = false;
+                emit(b);
+            } else if(b == '"') {
+                literal = false;
+                if((depth >= 0) && object[depth] && expectKey) {
+                    emit(b);
+                    keylen = 0;
+                    state = State.KEY;
+                } else if(masked()) {
+                    emit(rules.quotedMask, 0, rules.quotedMask.length);
+                    state = State.SKIP_STRING;
+                } else {
+                    emit(b);
+                    state = State.STRING;
+                }
+                escape = false;
+            } else {
+                if(!literal) {
+                    literal = true;
+                    if(masked()) {
+                        emit(rules.quotedMask, 0, rules.quotedMask.length);
+                        state = State.SKIP_LITERAL;
+                        return;
+                    }
+                }
+                emit(b);
+            }
+        }
+
+        private void keyDone() {
+            expectKey = false;
+            if(keylen > key.length) {
+                keyNode = null;
+                keyMasked = false;
+                return;
+            }
+            Node parent = nodes[depth];
+            keyNode = parent == null ? null : parent.next(key, keylen);
+            keyMasked = ((keyNode != null) && keyNode.terminal) || rules.fields.contains(key, 0, keylen);
+        }
+
+        /**
+         * @return node of value which starts now
+         */
+        private Node valueNode() {
+            if(depth < 0) return rules.json;
+            if(object[depth]) return keyNode;
+            Node parent = nodes[depth];
+            return parent == null ? null : parent.next(index[depth], scratch);
+        }
+
+        private boolean masked() {
+            if(depth < 0) return false;
+            if(object[depth]) return keyMasked;
+            Node node = valueNode();
+            return (node != null) && node.terminal;
+        }
+
+        private void push(boolean isObject, Node node) {
+            depth++;
+            if(depth == object.length) {
+                object = Arrays.copyOf(object, depth * 2);
+                nodes = Arrays.copyOf(nodes, depth * 2);
+                index = Arrays.copyOf(index, depth * 2);
+            }
+            object[depth] = isObject;
+            nodes[depth] = node;
+            index[depth] = 0;
+            expectKey = isObject;
+            keyNode = null;
+            keyMasked = false;
+        }
+    }
+
+    /**
+     * Single pass xml masker. Content of masked elements is replaced by mask
+     * (nested elements included), values of masked attributes too.
+     */
+    private static class XmlMasker extends Masker {
+        private enum State { TEXT, TAG_START, END_TAG, TAG_NAME, IN_TAG, ATTR_VALUE, BANG, COMMENT, CDATA, PI }
+
+        private State state = State.TEXT;
+        private int suppress = 0;
+        private final byte[] name = new byte[256];
+        private int namelen = 0;
+        private boolean nameSeparated = true;
+        private boolean elementMasked = false;
+        private boolean valueMasked = false;
+        private boolean slash = false;
+        private byte quote = 0;
+        private int mark = 0;
+        private int bangpos = 0;
+
+        private XmlMasker(Rules rules, OutputStream target) {
+            super(rules, target);
+        }
+
+        private void out(byte b) throws IOException {
+            if(suppress == 0) emit(b);
+        }
+
+        @Override
+        protected int next(byte[] b, int i, int end) throws IOException {
+            if(state == State.TEXT) {
+                // copy (or skip) text in bulk
+                int start = i;
+                while((i < end) && (b[i] != '<')) i++;
+                if((i > start) && (suppress == 0)) emit(b, start, i - start);
+                if(i == end) return end;
+            }
+            next(b[i]);
+            return i + 1;
+        }
+
+        @Override
+        protected void next(byte b) throws IOException {
+            switch(state) {
+                case TEXT:
+                    if(b == '<') state = State.TAG_START;
+                    else out(b);
+                    break;
+                case TAG_START:
+                    tagStart(b);
+                    break;
+                case END_TAG:
+                    out(b);
+                    if(b == '>') state = State.TEXT;
+                    break;
+                case TAG_NAME:
+                    if(isWhitespace(b) || (b == '>') || (b == '/')) {
+                        elementMasked = (suppress == 0) && local(rules.elements);
+                        namelen = 0;
+                        nameSeparated = true;
+                        state = State.IN_TAG;
+                        inTag(b);
+                    } else {
+                        if(namelen < name.length) name[namelen] = b;
+                        namelen++;
+                        out(b);
+                    }
+                    break;
+                case IN_TAG:
+                    inTag(b);
+                    break;
+                case ATTR_VALUE:
+                    if(b == quote) {
+                        out(b);
+                        state = State.IN_TAG;
+                    } else if(!valueMasked) {
+                        out(b);
+                    }
+                    break;
+                case BANG:
+                    out(b);
+                    bangpos++;
+                    if((bangpos == 1) && (b == '-')) {
+                        state = State.COMMENT;
+                        mark = 1;
+                    } else if((bangpos == 1) && (b == '[')) {
+                        state = State.CDATA;
+                        mark = 0;
+                    } else if(b == '>') {
+                        state = State.TEXT;
+                    }
+                    break;
+                case COMMENT:
+                    out(b);
+                    if(b == '-') mark++;
+                    else if((b == '>') && (mark >= 2)) state = State.TEXT;
+                    else mark = 0;
+                    break;
+                case CDATA:
+                    out(b);
+                    if(b == ']') mark++;
+                    else if((b == '>') && (mark >= 2)) state = State.TEXT;
+                    else mark = 0;
+                    break;
+                case PI:
+                default:
+                    out(b);
+                    if((b == '>') && (mark == 1)) state = State.TEXT;
+                    else mark = b == '?' ? 1 : 0;
+                    break;
+            }
+        }
+
+        private void tagStart(byte b) throws IOException {
+            if(b == '/') {
+                if(suppress == 1) suppress = 0;
+                else if(suppress > 1) suppress--;
+                out((byte)'<');
+                out(b);
+                state = State.END_TAG;
+            } else if(b == '!') {
+                out((byte)'<');
+                out(b);
+                bangpos = 0;
+                state = State.BANG;
+            } else if(b == '?') {
+                out((byte)'<');
+                out(b);
+                mark = 0;
+                state = State.PI;
+            } else {
+                if(suppress > 0) suppress++;
+                out((byte)'<');
+                out(b);
+                name[0] = b;
+                namelen = 1;
+                slash = false;
+                state = State.TAG_NAME;
+            }
+        }
+
+        private void inTag(byte b) throws IOException {
+            if(b == '>') {
+                out(b);
+                if(slash) {
+                    if(suppress > 0) suppress--;
+                } else if(elementMasked) {
+                    emit(rules.mask, 0, rules.mask.length);
+                    suppress = 1;
+                }
+                elementMasked = false;
+                state = State.TEXT;
+                return;
+            }
+            slash = b == '/';
+            out(b);
+            if((b == '"') || (b == '\'')) {
+                quote = b;
+                valueMasked = (suppress == 0) && local(rules.attributes);
+                if(valueMasked) emit(rules.mask, 0, rules.mask.length);
+                state = State.ATTR_VALUE;
+                nameSeparated = true;
+            } else if(isWhitespace(b) || (b == '=') || (b == '/')) {
+                nameSeparated = true;
+            } else {
+                if(nameSeparated) namelen = 0;
+                nameSeparated = false;
+                if(namelen < name.length) name[namelen] = b;
+                namelen++;
+            }
+        }
+
+        /**
+         * @return true if local part of collected name is in names
+         */
+        private boolean local(Names names) {
+            if(names.empty() || (namelen > name.length)) return false;
+            int start = 0;
+            for(int i = 0; i < namelen; i++) {
+                if(name[i] == ':') start = i + 1;
+            }
+            return names.contains(name, start, namelen - start);
+        }
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ *
+ */
+package sk.antons.sbutils.log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Output stream which passes only root part of MIME multipart message
+ * (MTOM/SwA soap message) to target stream. Other parts (attachments) are
+ * only counted - content id, content type and size is collected for each
+ * of them, so binary data is never buffered.
+ *
+ * Multipart is detected from first line of stream (--boundary). Other
+ * streams are passed to target as they are.
+ *
+ * @author antons
+ */
+public class MultipartFilter extends OutputStream {
+    private static final int MAX_LINE = 1024;
+
+    private enum State { DETECT, PLAIN, BOUNDARY_END, HEADERS, BODY, EPILOGUE }
+
+    private final OutputStream target;
+    private State state = State.DETECT;
+    private final StringBuilder line = new StringBuilder();
+    private byte[] delimiter = null;
+    private int matched = 0;
+    private long total = 0;
+    private int part = -1;
+    private String id = null;
+    private String type = null;
+    private long size = 0;
+    private final List<Attachment> attachments = new ArrayList<>();
+
+    public MultipartFilter(OutputStream target) {
+        this.target = target;
+    }
+
+    public static MultipartFilter instance(OutputStream target) { return new MultipartFilter(target); }
+
+    /**
+     * @return number of all bytes written to filter
+     */
+    public long total() { return total; }
+    /**
+     * @return true if stream is multipart message
+     */
+    public boolean multipart() { return delimiter != null; }
+    /**
+     * @return attachments (all parts except first one) seen so far
+     */
+    public List<Attachment> attachments() { return attachments; }
+
+    /**
+     * @return attachment placeholders like
+     *   [attachment id=&lt;a@b&gt; type=application/pdf size=1048576]
+     *   or empty string
+     */
+    public String placeholders() {
+        if(attachments.isEmpty()) return "";
+        StringBuilder sb = new StringBuilder();
+        for(Attachment attachment : attachments) sb.append(' ').append(attachment);
+        return sb.toString();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if(len <= 0) return;
+        if(state == State.PLAIN) {
+            total += len;
+            target.write(b, off, len);
+        } else {
+            int end = off + len;
+            int i = off;
+            while(i < end) {
+                if((state == State.BODY) && (part > 0) && (matched == 0)) {
+                    // attachment body - just look for delimiter start
+                    byte first = delimiter[0];
+                    int start = i;
+                    while((i < end) && (b[i] != first)) i++;
+                    total += i - start;
+                    size += i - start;
+                    if(i == end) break;
+                }
+                write(b[i++]);
+            }
+        }
+    }
+
+    @Override
+    public void write(int value) throws IOException {
+        byte b = (byte)value;
+        total++;
+        switch(state) {
+            case PLAIN:
+                target.write(b);
+                break;
+            case DETECT:
+                detect(b);
+                break;
+            case BODY:
+                body(b);
+                break;
+            case BOUNDARY_END:
+                if((b == '-') && (line.length() == 0)) {
+                    line.append('-');
+                } else if((b == '-') && (line.length() == 1)) {
+                    line.setLength(0);
+                    state = State.EPILOGUE;
+                } else if(b == '\n') {
+                    line.setLength(0);
+                    state = State.HEADERS;
+                }
+                break;
+            case HEADERS:
+                headers(b);
+                break;
+            case EPILOGUE:
+            default:
+                break;
+        }
+    }
+
+    private void detect(byte b) throws IOException {
+        if(line.length() == 0) {
+            if((b == '\r') || (b == '\n')) return;
+            if(b != '-') {
+                plain(b);
+                return;
+            }
+        }
+        if(b == '\n') {
+            String boundary = line.toString().trim();
+            if(boundary.startsWith("--") && (boundary.length() > 2)) {
+                delimiter = ("\r\n" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+                line.setLength(0);
+                part = 0;
+                state = State.HEADERS;
+            } else {
+                plain(b);
+            }
+        } else if(line.length() >= MAX_LINE) {
+            plain(b);
+        } else {
+            line.append((char)(b & 0xff));
+        }
+    }
+
+    private void plain(byte b) throws IOException {
+        state = State.PLAIN;
+        if(line.length() > 0) target.write(line.toString().getBytes(StandardCharsets.ISO_8859_1));
+        line.setLength(0);
+        target.write(b);
+    }
+
+    private void headers(byte b) {
+        if(b == '\n') {
+            String header = line.toString().trim();
+            line.setLength(0);
+            if(header.isEmpty()) {
+                state = State.BODY;
+                matched = 0;
+                size = 0;
+                return;
+            }
+            int pos = header.indexOf(':');
+            if(pos < 0) return;
+            String name = header.substring(0, pos).trim();
+            String value = header.substring(pos + 1).trim();
+            if("Content-ID".equalsIgnoreCase(name)) id = value;
+            else if("Content-Type".equalsIgnoreCase(name)) type = value;
+        } else if(line.length() < MAX_LINE) {
+            line.append((char)(b & 0xff));
+        }
+    }
+
+    private void body(byte b) throws IOException {
+        if(b == delimiter[matched]) {
+            matched++;
+            if(matched == delimiter.length) {
+                endPart();
+                state = State.BOUNDARY_END;
+            }
+            return;
+        }
+        if(matched > 0) {
+            // bytes which looked like delimiter belongs to body
+            content(delimiter, 0, matched);
+            matched = 0;
+            if(b == delimiter[0]) {
+                matched = 1;
+                return;
+            }
+        }
+        content(b);
+    }
+
+    private void content(byte[] b, int off, int len) throws IOException {
+        if(part == 0) target.write(b, off, len);
+        else size += len;
+    }
+
+    private void content(byte b) throws IOException {
+        if(part == 0) target.write(b);
+        else size++;
+    }
+
+    private void endPart() {
+        if(part > 0) attachments.add(new Attachment(id, type, size));
+        part++;
+        id = null;
+        type = null;
+        size = 0;
+        matched = 0;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        target.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(state == State.BODY) {
+            // not terminated message
+            content(delimiter, 0, matched);
+            if(part > 0) endPart();
+            state = State.EPILOGUE;
+        } else if((state == State.DETECT) && (line.length() > 0)) {
+            state = State.PLAIN;
+            target.write(line.toString().getBytes(StandardCharsets.ISO_8859_1));
+            line.setLength(0);
+        }
+        target.close();
+    }
+
+    /**
+     * Attachment placeholder.
+     */
+    public static class Attachment {
+        private final String id;
+        private final String type;
+        private final long size;
+
+        public Attachment(String id, String type, long size) {
+            this.id = id;
+            this.type = type;
+            this.size = size;
+        }
+
+        public String id() { return id; }
+        public String type() { return type; }
+        public long size() { return size; }
+
+        @Override
+        public String toString() {
+            return "[attachment id=" + id + " type=" + type + " size=" + size + "]";
+        }
+    }
+}
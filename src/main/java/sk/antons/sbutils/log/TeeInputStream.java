@@ -0,0 +1,77 @@
+/*
+ *
+ */
+package sk.antons.sbutils.log;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Input stream which copies all read bytes to provided output stream (usually
+ * CappedBuffer). Provided callback is called once, when stream is closed.
+ *
+ * @author antons
+ */
+public class TeeInputStream extends FilterInputStream {
+
+    private final OutputStream copy;
+    private Runnable onClose;
+
+    public TeeInputStream(InputStream in, OutputStream copy, Runnable onClose) {
+        super(in);
+        this.copy = copy;
+        this.onClose = onClose;
+    }
+
+    public static TeeInputStream instance(InputStream in, OutputStream copy, Runnable onClose) { return new TeeInputStream(in, copy, onClose); }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if(b > -1) copy.write(b);
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = in.read(b, off, len);
+        if(n > 0) copy.write(b, off, n);
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if(n <= 0) return 0;
+        // skipped bytes must be seen by copy too
+        byte[] buff = new byte[(int)Math.min(n, 8192)];
+        long rv = 0;
+        while(rv < n) {
+            int len = read(buff, 0, (int)Math.min(buff.length, n - rv));
+            if(len < 0) break;
+            rv += len;
+        }
+        return rv;
+    }
+
+    @Override
+    public boolean markSupported() { return false; }
+
+    @Override
+    public synchronized void mark(int readlimit) { }
+
+    @Override
+    public synchronized void reset() throws IOException { throw new IOException("mark/reset not supported"); }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            in.close();
+        } finally {
+            Runnable r = onClose;
+            onClose = null;
+            if(r != null) r.run();
+        }
+    }
+}
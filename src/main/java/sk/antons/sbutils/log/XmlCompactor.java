@@ -0,0 +1,209 @@
+/*
+ *
+ */
+package sk.antons.sbutils.log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Incremental xml one-liner. Bytes written to compactor are written to
+ * target without insignificant whitespaces in one pass - whitespace only
+ * text and leading whitespaces of text are removed, whitespaces inside tags
+ * are collapsed and line breaks are replaced by spaces. Comments, CDATA sections and
+ * processing instructions are kept. Xml is not parsed nor validated.
+ *
+ * If target is CappedBuffer compactor stops when buffer is full and only
+ * counts remaining bytes.
+ *
+ * @author antons
+ */
+public class XmlCompactor extends OutputStream {
+
+    private enum State { TEXT, TAG, QUOTED, COMMENT, CDATA, PI }
+
+    private final OutputStream target;
+    private final CappedBuffer capped;
+    private State state = State.TEXT;
+    private long total = 0;
+    private long pending = 0;
+    private boolean content = false;
+    private boolean space = false;
+    private byte quote = 0;
+    private int mark = 0;
+    private int tagpos = 0;
+    private byte last = 0;
+    private final byte[] out = new byte[512];
+    private int outlen = 0;
+
+    public XmlCompactor(OutputStream target) {
+        this.target = target;
+        this.capped = target instanceof CappedBuffer ? (CappedBuffer)target : null;
+    }
+
+    public static XmlCompactor instance(OutputStream target) { return new XmlCompactor(target); }
+
+    /**
+     * @return number of all bytes written to compactor
+     */
+    public long total() { return total; }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        int end = off + len;
+        for(int i = off; i < end; i++) {
+            if(outlen >= out.length - 2) {
+                drain();
+                if(full()) {
+                    total += end - i;
+                    return;
+                }
+            }
+            next(b[i]);
+        }
+        drain();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if(full()) {
+            total++;
+            return;
+        }
+        next((byte)b);
+        drain();
+    }
+
+    private boolean full() {
+        return (capped != null) && capped.truncated();
+    }
+
+    private void put(byte b) {
+        out[outlen++] = b;
+    }
+
+    private void drain() throws IOException {
+        if(outlen == 0) return;
+        target.write(out, 0, outlen);
+        outlen = 0;
+    }
+
+    private void next(byte b) throws IOException {
+        total++;
+        switch(state) {
+            case TEXT:
+                text(b);
+                break;
+            case TAG:
+                tag(b);
+                break;
+            case QUOTED:
+                put(line(b));
+                if(b == quote) state = State.TAG;
+                break;
+            case COMMENT:
+                put(line(b));
+                if(b == '-') mark++;
+                else if((b == '>') && (mark >= 2)) state = State.TEXT;
+                else mark = 0;
+                break;
+            case CDATA:
+                put(line(b));
+                if(b == ']') mark++;
+                else if((b == '>') && (mark >= 2)) state = State.TEXT;
+                else mark = 0;
+                break;
+            case PI:
+            default:
+                put(line(b));
+                if((b == '>') && (mark == 1)) state = State.TEXT;
+                else mark = b == '?' ? 1 : 0;
+                break;
+        }
+    }
+
+    private void text(byte b) throws IOException {
+        if(b == '<') {
+            // whitespaces before tag are kept only inside of text content
+            if(content) spaces();
+            pending = 0;
+            content = false;
+            put(b);
+            state = State.TAG;
+            tagpos = 0;
+            space = false;
+        } else if(isWhitespace(b)) {
+            pending++;
+        } else {
+            if(content) spaces();
+            pending = 0;
+            content = true;
+            put(b);
+        }
+    }
+
+    private void spaces() throws IOException {
+        for(long i = 0; i < pending; i++) {
+            if(outlen >= out.length - 2) drain();
+            put((byte)' ');
+        }
+    }
+
+    private void tag(byte b) throws IOException {
+        tagpos++;
+        if(tagpos == 1) {
+            if(b == '?') {
+                state = State.PI;
+                mark = 0;
+            }
+            put(b);
+            last = b;
+            return;
+        }
+        if((tagpos == 2) && (last == '!') && (b == '-')) {
+            // <!- is expected to be comment
+            state = State.COMMENT;
+            mark = 1;
+            put(b);
+            return;
+        }
+        if((tagpos == 2) && (last == '!') && (b == '[')) {
+            state = State.CDATA;
+            mark = 0;
+            put(b);
+            return;
+        }
+        if(isWhitespace(b)) {
+            space = true;
+            return;
+        }
+        if(space && (b != '>') && (b != '/') && (b != '=') && (last != '=')) put((byte)' ');
+        space = false;
+        put(b);
+        last = b;
+        if(b == '>') {
+            state = State.TEXT;
+        } else if((b == '"') || (b == '\'')) {
+            quote = b;
+            state = State.QUOTED;
+        }
+    }
+
+    private static byte line(byte b) {
+        return (b == '\n') || (b == '\r') || (b == '\t') ? (byte)' ' : b;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return (b == ' ') || (b == '\n') || (b == '\r') || (b == '\t');
+    }
+
+    @Override
+    public void flush() throws IOException {
+        target.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        target.close();
+    }
+}
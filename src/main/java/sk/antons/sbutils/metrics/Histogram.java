@@ -0,0 +1,99 @@
+/*
+ *
+ */
+package sk.antons.sbutils.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free histogram with log-linear buckets (like HdrHistogram). Each
+ * power of two range is split to 32 sub buckets, so recorded values are
+ * kept with ~3% precision. Values up to 2^44 are tracked, bigger ones are
+ * counted in last bucket. Recording does not allocate.
+ *
+ * @author antons
+ */
+public class Histogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int MAX_BITS = 44;
+    private static final int SIZE = (MAX_BITS - SUB_BITS + 1) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(SIZE);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    private Histogram() {}
+    public static Histogram instance() { return new Histogram(); }
+
+    /**
+     * Records value. Negative values are ignored.
+     */
+    public void record(long value) {
+        if(value < 0) return;
+        counts.incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+        long m = max.get();
+        while((value > m) && !max.compareAndSet(m, value)) m = max.get();
+    }
+
+    public long count() { return count.sum(); }
+    public long sum() { return sum.sum(); }
+    public long max() { return max.get(); }
+    public double mean() {
+        long c = count();
+        return c == 0 ? 0 : (double)sum() / c;
+    }
+
+    /**
+     * @param percentile percentile 0-100
+     * @return approximate value at given percentile or 0 if there are no values
+     */
+    public long percentile(double percentile) {
+        long total = count();
+        if(total == 0) return 0;
+        long rank = Math.max(1, (long)Math.ceil(percentile / 100.0 * total));
+        long seen = 0;
+        for(int i = 0; i < SIZE; i++) {
+            seen += counts.get(i);
+            if(seen >= rank) return Math.min(value(i), max());
+        }
+        return max();
+    }
+
+    public void reset() {
+        for(int i = 0; i < SIZE; i++) counts.set(i, 0);
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    private static int index(long value) {
+        if(value < SUB_COUNT) return (int)value;
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        if(exp >= MAX_BITS) return SIZE - 1;
+        int shift = exp - SUB_BITS;
+        int sub = (int)(value >>> shift) & (SUB_COUNT - 1);
+        return (shift + 1) * SUB_COUNT + sub;
+    }
+
+    /**
+     * @return middle of bucket range
+     */
+    private static long value(int index) {
+        if(index < SUB_COUNT) return index;
+        int shift = index / SUB_COUNT - 1;
+        long sub = index % SUB_COUNT;
+        return ((SUB_COUNT + sub) << shift) + ((1L << shift) >> 1);
+    }
+
+    @Override
+    public String toString() {
+        return "count: " + count() + " mean: " + (long)mean() + " p50: " + percentile(50)
+            + " p95: " + percentile(95) + " p99: " + percentile(99) + " max: " + max();
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ *
+ */
+package sk.antons.sbutils.metrics;
+
+/**
+ * Receives metrics of outbound calls. Implemented by MetricsRegistry (in
+ * memory histograms) and MicrometerRecorder. Implementations must be thread
+ * safe and cheap, they are called on calling thread.
+ *
+ * @author antons
+ */
+public interface MetricsRecorder {
+
+    /**
+     * Records one call.
+     * @param client name of client (usually host)
+     * @param method http method or soap operation
+     * @param path normalized path (template)
+     * @param status http status or -1 if call failed with exception
+     * @param nanos duration of call
+     * @param requestSize request body size or -1 if not known
+     * @param responseSize response body size or -1 if not known
+     */
+    void record(String client, String method, String path, int status, long nanos, long requestSize, long responseSize);
+
+    /**
+     * @return status class like "2xx" or "error" for status -1
+     */
+    static String statusClass(int status) {
+        switch(status / 100) {
+            case 1: return "1xx";
+            case 2: return "2xx";
+            case 3: return "3xx";
+            case 4: return "4xx";
+            case 5: return "5xx";
+            default: return "error";
+        }
+    }
+
+    /**
+     * Normalizes path for metrics keys. Query is removed and id segments
+     * (numbers, uuids and hex strings of at least 16 characters) are
+     * replaced by {id}. So /item/123/detail is normalized to
+     * /item/{id}/detail, while /api/v2/users stays as it is.
+     */
+    static String normalize(String path) {
+        if(path == null) return "";
+        int end = path.length();
+        int q = path.indexOf('?');
+        if(q >= 0) end = q;
+        boolean plain = true;
+        for(int i = 0; i < end; i++) {
+            char c = path.charAt(i);
+            if((c >= '0') && (c <= '9')) {
+                plain = false;
+                break;
+            }
+        }
+        if(plain) return end == path.length() ? path : path.substring(0, end);
+        StringBuilder sb = null;
+        int start = 0;
+        while(start <= end) {
+            int slash = path.indexOf('/', start);
+            if((slash < 0) || (slash > end)) slash = end;
+            if(id(path, start, slash)) {
+                if(sb == null) sb = new StringBuilder(end).append(path, 0, start);
+                sb.append("{id}");
+            } else if(sb != null) {
+                sb.append(path, start, slash);
+            }
+            if((sb != null) && (slash < end)) sb.append('/');
+            start = slash + 1;
+        }
+        if(sb == null) return end == path.length() ? path : path.substring(0, end);
+        return sb.toString();
+    }
+
+    private static boolean id(String path, int start, int end) {
+        int len = end - start;
+        if(len == 0) return false;
+        boolean digits = true;
+        boolean hex = true;
+        boolean digit = false;
+        int dashes = 0;
+        for(int i = start; i < end; i++) {
+            char c = path.charAt(i);
+            if((c >= '0') && (c <= '9')) {
+                digit = true;
+            } else if(((c >= 'a') && (c <= 'f')) || ((c >= 'A') && (c <= 'F'))) {
+                digits = false;
+            } else if(c == '-') {
+                // uuid 8-4-4-4-12
+                int pos = i - start;
+                if((len != 36) || ((pos != 8) && (pos != 13) && (pos != 18) && (pos != 23))) return false;
+                digits = false;
+                dashes++;
+            } else {
+                return false;
+            }
+        }
+        if(digits) return true;
+        if(dashes == 4) return true;
+        return hex && digit && (dashes == 0) && (len >= 16);
+    }
+}
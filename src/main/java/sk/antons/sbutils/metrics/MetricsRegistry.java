@@ -0,0 +1,140 @@
+/*
+ *
+ */
+package sk.antons.sbutils.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In memory metrics. Keeps latency histograms per client, method, path and
+ * status class and size histograms per client, method and path.
+ *
+ * {@code <pre>}
+ * MetricsRegistry metrics = MetricsRegistry.instance();
+ * RestTemplateClient.Builder.instance().metrics(metrics)...
+ * metrics.endpoint("localhost", "GET", "/item/{id}").latency("2xx").percentile(99);
+ * {@code </pre>}
+ *
+ * @author antons
+ */
+public class MetricsRegistry implements MetricsRecorder {
+    private static final String[] CLASSES = {"1xx", "2xx", "3xx", "4xx", "5xx", "error"};
+
+    private final Map<String, Map<String, Map<String, Endpoint>>> clients = new ConcurrentHashMap<>();
+
+    private MetricsRegistry() {}
+    public static MetricsRegistry instance() { return new MetricsRegistry(); }
+
+    @Override
+    public void record(String client, String method, String path, int status, long nanos, long requestSize, long responseSize) {
+        Endpoint endpoint = clients.computeIfAbsent(client == null ? "" : client, k -> new ConcurrentHashMap<>())
+            .computeIfAbsent(method == null ? "" : method, k -> new ConcurrentHashMap<>())
+            .computeIfAbsent(path == null ? "" : path, k -> new Endpoint(client, method, k));
+        endpoint.record(status, nanos, requestSize, responseSize);
+    }
+
+    /**
+     * @return endpoint metrics or null if nothing was recorded for it
+     */
+    public Endpoint endpoint(String client, String method, String path) {
+        Map<String, Map<String, Endpoint>> methods = clients.get(client);
+        Map<String, Endpoint> paths = methods == null ? null : methods.get(method);
+        return paths == null ? null : paths.get(path);
+    }
+
+    public List<Endpoint> endpoints() {
+        List<Endpoint> list = new ArrayList<>();
+        for(Map<String, Map<String, Endpoint>> methods : clients.values()) {
+            for(Map<String, Endpoint> paths : methods.values()) list.addAll(paths.values());
+        }
+        return list;
+    }
+
+    public void clear() { clients.clear(); }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for(Endpoint endpoint : endpoints()) sb.append(endpoint).append('\n');
+        return sb.toString();
+    }
+
+    public static class Endpoint {
+        private final String client;
+        private final String method;
+        private final String path;
+        private final Histogram latency = Histogram.instance();
+        private final AtomicReferenceArray<Histogram> classes = new AtomicReferenceArray<>(CLASSES.length);
+        private final Histogram requestSize = Histogram.instance();
+        private final Histogram responseSize = Histogram.instance();
+        private final LongAdder errors = new LongAdder();
+
+        private Endpoint(String client, String method, String path) {
+            this.client = client;
+            this.method = method;
+            this.path = path;
+        }
+
+        private void record(int status, long nanos, long requestSize, long responseSize) {
+            latency.record(nanos);
+            int index = classIndex(status);
+            Histogram histogram = classes.get(index);
+            if(histogram == null) {
+                classes.compareAndSet(index, null, Histogram.instance());
+                histogram = classes.get(index);
+            }
+            histogram.record(nanos);
+            if(requestSize >= 0) this.requestSize.record(requestSize);
+            if(responseSize >= 0) this.responseSize.record(responseSize);
+            if(index >= 4) errors.increment();
+        }
+
+        private static int classIndex(int status) {
+            int c = status / 100;
+            return ((c >= 1) && (c <= 5)) ? c - 1 : 5;
+        }
+
+        public String client() { return client; }
+        public String method() { return method; }
+        public String path() { return path; }
+        /** Latency (nanos) of all calls. */
+        public Histogram latency() { return latency; }
+        /**
+         * Latency (nanos) of calls with given status class ("2xx", "5xx", "error"...)
+         * or null if there is no such call.
+         */
+        public Histogram latency(String statusClass) {
+            for(int i = 0; i < CLASSES.length; i++) {
+                if(CLASSES[i].equals(statusClass)) return classes.get(i);
+            }
+            return null;
+        }
+        public Histogram requestSize() { return requestSize; }
+        public Histogram responseSize() { return responseSize; }
+        public long calls() { return latency.count(); }
+        /** Number of 5xx responses and failed calls. */
+        public long errors() { return errors.sum(); }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(client).append(' ').append(method).append(' ').append(path)
+                .append(" calls: ").append(calls())
+                .append(" errors: ").append(errors())
+                .append(" latency[ms] p50: ").append(latency.percentile(50) / 1000000.0)
+                .append(" p95: ").append(latency.percentile(95) / 1000000.0)
+                .append(" p99: ").append(latency.percentile(99) / 1000000.0)
+                .append(" max: ").append(latency.max() / 1000000.0);
+            for(int i = 0; i < CLASSES.length; i++) {
+                Histogram histogram = classes.get(i);
+                if(histogram != null) sb.append(' ').append(CLASSES[i]).append(": ").append(histogram.count());
+            }
+            return sb.toString();
+        }
+    }
+}
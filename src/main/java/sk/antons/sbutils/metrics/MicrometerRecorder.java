@@ -0,0 +1,75 @@
+/*
+ *
+ */
+package sk.antons.sbutils.metrics;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records metrics to Micrometer registry (micrometer-core must be on
+ * classpath). Timer {prefix}.requests and distribution summaries
+ * {prefix}.request.size and {prefix}.response.size are tagged by client,
+ * method, uri and status (class).
+ *
+ * @author antons
+ */
+public class MicrometerRecorder implements MetricsRecorder {
+
+    private final MeterRegistry registry;
+    private String prefix = "sbutils.client";
+    private boolean percentileHistogram = true;
+    private final Map<String, Meters> meters = new ConcurrentHashMap<>();
+
+    private MicrometerRecorder(MeterRegistry registry) { this.registry = registry; }
+    public static MicrometerRecorder instance(MeterRegistry registry) { return new MicrometerRecorder(registry); }
+
+    /** Prefix of meter names (default "sbutils.client"). */
+    public MicrometerRecorder prefix(String value) { this.prefix = value; return this; }
+    /** Publishes percentile histogram of timer (default true). */
+    public MicrometerRecorder percentileHistogram(boolean value) { this.percentileHistogram = value; return this; }
+
+    @Override
+    public void record(String client, String method, String path, int status, long nanos, long requestSize, long responseSize) {
+        String statusClass = MetricsRecorder.statusClass(status);
+        String key = client + ' ' + method + ' ' + path + ' ' + statusClass;
+        Meters m = meters.get(key);
+        if(m == null) m = meters.computeIfAbsent(key, k -> new Meters(client, method, path, statusClass));
+        m.timer.record(nanos, TimeUnit.NANOSECONDS);
+        if(requestSize >= 0) m.requestSize.record(requestSize);
+        if(responseSize >= 0) m.responseSize.record(responseSize);
+    }
+
+    private class Meters {
+        private final Timer timer;
+        private final DistributionSummary requestSize;
+        private final DistributionSummary responseSize;
+
+        private Meters(String client, String method, String path, String status) {
+            Timer.Builder builder = Timer.builder(prefix + ".requests")
+                .tag("client", String.valueOf(client))
+                .tag("method", String.valueOf(method))
+                .tag("uri", String.valueOf(path))
+                .tag("status", status)
+                .tag("outcome", status.startsWith("2") ? "SUCCESS" : "FAILURE");
+            if(percentileHistogram) builder.publishPercentileHistogram();
+            this.timer = builder.register(registry);
+            this.requestSize = summary(prefix + ".request.size", client, method, path, status);
+            this.responseSize = summary(prefix + ".response.size", client, method, path, status);
+        }
+
+        private DistributionSummary summary(String name, String client, String method, String path, String status) {
+            return DistributionSummary.builder(name)
+                .baseUnit("bytes")
+                .tag("client", String.valueOf(client))
+                .tag("method", String.valueOf(method))
+                .tag("uri", String.valueOf(path))
+                .tag("status", status)
+                .register(registry);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ *
+ */
+package sk.antons.sbutils.rest;
+
+import java.util.function.BiConsumer;
+
+/**
+ * Circuit breaker for RestTemplateClient. Outcomes of last windowSize calls
+ * are kept in sliding window. If failure rate or slow call rate exceeds
+ * threshold breaker opens and calls fail fast (HttpException caused by
+ * CircuitBreaker.OpenException) for openDuration. Then limited number
+ * of trial calls is permitted (HALF_OPEN) and breaker is closed or opened
+ * again according to their outcome.
+ *
+ * Failed call is call ended with IO error or 5xx status. 4xx statuses are
+ * considered as successful calls.
+ *
+ * Permit returned by tryAcquire() is bound to state in which it was
+ * granted. Outcome of call permitted in older state (for example slow call
+ * permitted in CLOSED state which ends in HALF_OPEN state) is ignored.
+ *
+ * {@code <pre>}
+ * RestTemplateClient.Builder.instance()
+ *     .circuitBreaker(CircuitBreaker.instance()
+ *         .failureRateThreshold(50)
+ *         .slowCallDuration(2000)
+ *         .listener((from, to) -> log.warn("breaker {} -> {}", from, to)))
+ * {@code </pre>}
+ *
+ * @author antons
+ */
+public class CircuitBreaker {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private String name = "default";
+    private int windowSize = 100;
+    private int minimumCalls = 20;
+    private int failureRateThreshold = 50;
+    private int slowCallRateThreshold = 100;
+    private long slowCallDuration = 60000;
+    private long openDuration = 30000;
+    private int halfOpenCalls = 5;
+    private BiConsumer<State, State> listener = null;
+
+    private State state = State.CLOSED;
+    private long generation = 0;
+    private byte[] window = null;
+    private int position = 0;
+    private int recorded = 0;
+    private int failures = 0;
+    private int slows = 0;
+    private long openUntil = 0;
+    private int trialPermits = 0;
+    private int trialCalls = 0;
+    private int trialFailures = 0;
+    private int trialSlows = 0;
+
+    private static final byte FAILURE = 1;
+    private static final byte SLOW = 2;
+
+    private CircuitBreaker() {}
+    public static CircuitBreaker instance() { return new CircuitBreaker(); }
+
+    /** Name used in exception messages. */
+    public CircuitBreaker name(String value) { this.name = value; return this; }
+    /** Number of last calls used for rate computation (default 100). */
+    public CircuitBreaker windowSize(int value) { this.windowSize = Math.max(1, value); return this; }
+    /** Min number of calls in window before rates are evaluated (default 20). */
+    public CircuitBreaker minimumCalls(int value) { this.minimumCalls = Math.max(1, value); return this; }
+    /** Failure rate in percent which opens breaker (default 50). */
+    public CircuitBreaker failureRateThreshold(int value) { this.failureRateThreshold = value; return this; }
+    /** Slow call rate in percent which opens breaker (default 100). */
+    public CircuitBreaker slowCallRateThreshold(int value) { this.slowCallRateThreshold = value; return this; }
+    /** Calls longer than this (millis) are slow (default 60000). */
+    public CircuitBreaker slowCallDuration(long value) { this.slowCallDuration = value; return this; }
+    /** How long (millis) breaker stays open (default 30000). */
+    public CircuitBreaker openDuration(long value) { this.openDuration = value; return this; }
+    /** Number of trial calls in HALF_OPEN state (default 5). */
+    public CircuitBreaker halfOpenCalls(int value) { this.halfOpenCalls = Math.max(1, value); return this; }
+    /** Listener notified about state transitions (from, to). */
+    public CircuitBreaker listener(BiConsumer<State, State> value) { this.listener = value; return this; }
+
+    public synchronized State state() {
+        if((state == State.OPEN) && (System.currentTimeMillis() >= openUntil)) return State.HALF_OPEN;
+        return state;
+    }
+    /** @return failure rate in percent for current window */
+    public synchronized int failureRate() { return recorded == 0 ? 0 : failures * 100 / recorded; }
+    /** @return slow call rate in percent for current window */
+    public synchronized int slowCallRate() { return recorded == 0 ? 0 : slows * 100 / recorded; }
+    public String name() { return name; }
+
+    /**
+     * @return permit of call (passed to record() or cancel()) or -1 if call
+     * is not permitted
+     */
+    public long tryAcquire() {
+        State from = null;
+        State to = null;
+        long rv;
+        synchronized(this) {
+            if(state == State.OPEN) {
+                if(System.currentTimeMillis() < openUntil) return -1;
+                from = state;
+                to = State.HALF_OPEN;
+                toHalfOpen();
+            }
+            if(state == State.HALF_OPEN) {
+                rv = trialPermits > 0 ? generation : -1;
+                if(rv >= 0) trialPermits--;
+            } else {
+                rv = generation;
+            }
+        }
+        notify(from, to);
+        return rv;
+    }
+
+    /**
+     * Returns permit of call which was not executed.
+     */
+    public synchronized void cancel(long permit) {
+        if((state == State.HALF_OPEN) && (permit == generation)) trialPermits++;
+    }
+
+    /**
+     * Records outcome of permitted call. Outcome is ignored if state was
+     * changed after permit was granted.
+     * @param permit permit returned by tryAcquire()
+     * @param nanos call duration
+     * @param failed true if call failed
+     */
+    public void record(long permit, long nanos, boolean failed) {
+        boolean slow = nanos / 1000000 >= slowCallDuration;
+        State from = null;
+        State to = null;
+        synchronized(this) {
+            if(permit != generation) return; // call permitted in older state
+            if(state == State.HALF_OPEN) {
+                trialCalls++;
+                if(failed) trialFailures++;
+                if(slow) trialSlows++;
+                if(trialCalls >= halfOpenCalls) {
+                    from = state;
+                    if(exceeded(trialFailures, trialSlows, trialCalls)) {
+                        to = State.OPEN;
+                        toOpen();
+                    } else {
+                        to = State.CLOSED;
+                        toClosed();
+                    }
+                }
+            } else if(state == State.CLOSED) {
+                if(window == null) window = new byte[windowSize];
+                if(recorded == window.length) {
+                    byte old = window[position];
+                    if((old & FAILURE) != 0) failures--;
+                    if((old & SLOW) != 0) slows--;
+                } else {
+                    recorded++;
+                }
+                byte value = (byte)((failed ? FAILURE : 0) | (slow ? SLOW : 0));
+                window[position] = value;
+                position = (position + 1) % window.length;
+                if(failed) failures++;
+                if(slow) slows++;
+                if((recorded >= minimumCalls) && exceeded(failures, slows, recorded)) {
+                    from = state;
+                    to = State.OPEN;
+                    toOpen();
+                }
+            }
+        }
+        notify(from, to);
+    }
+
+    private boolean exceeded(int failures, int slows, int calls) {
+        if(failures * 100 >= failureRateThreshold * calls) return true;
+        if(slows * 100 >= slowCallRateThreshold * calls) return true;
+        return false;
+    }
+
+    private void toOpen() {
+        state = State.OPEN;
+        generation++;
+        openUntil = System.currentTimeMillis() + openDuration;
+    }
+
+    private void toHalfOpen() {
+        state = State.HALF_OPEN;
+        generation++;
+        trialPermits = halfOpenCalls;
+        trialCalls = 0;
+        trialFailures = 0;
+        trialSlows = 0;
+    }
+
+    private void toClosed() {
+        state = State.CLOSED;
+        generation++;
+        position = 0;
+        recorded = 0;
+        failures = 0;
+        slows = 0;
+    }
+
+    private void notify(State from, State to) {
+        if((to == null) || (listener == null)) return;
+        try {
+            listener.accept(from, to);
+        } catch(Exception e) {
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CircuitBreaker{" + name + " state: " + state() + ", failureRate: " + failureRate() + ", slowCallRate: " + slowCallRate() + "}";
+    }
+
+    /**
+     * Cause of HttpException thrown when breaker is open.
+     */
+    public static class OpenException extends RuntimeException {
+        public OpenException(String name) {
+            super("circuit breaker " + name + " is open");
+        }
+    }
+}
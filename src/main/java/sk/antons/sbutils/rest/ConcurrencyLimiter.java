@@ -0,0 +1,127 @@
+/*
+ *
+ */
+package sk.antons.sbutils.rest;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Adaptive concurrency limit for RestTemplateClient (AIMD). Each successful
+ * call increases limit by 1/limit (so approximately by one per limit calls).
+ * Call which fails or takes longer than latency threshold decreases limit
+ * by backoffRatio. Calls above current limit fail fast (HttpException caused
+ * by ConcurrencyLimiter.LimitExceededException).
+ *
+ * If latency threshold is not set it is derived from observed minimal
+ * latency (minLatency * tolerance), so limit shrinks when latency rises
+ * above no-load latency.
+ *
+ * @author antons
+ */
+public class ConcurrencyLimiter {
+
+    private int initialLimit = 20;
+    private int minLimit = 1;
+    private int maxLimit = 200;
+    private double backoffRatio = 0.9;
+    private long latencyThreshold = -1;
+    private double tolerance = 2.0;
+
+    private final AtomicInteger inflight = new AtomicInteger();
+    private volatile double limit = -1;
+    private long minLatency = Long.MAX_VALUE;
+    private long minLatencyReset = 0;
+
+    private ConcurrencyLimiter() {}
+    public static ConcurrencyLimiter instance() { return new ConcurrencyLimiter(); }
+
+    /** Initial limit (default 20). */
+    public ConcurrencyLimiter initialLimit(int value) { this.initialLimit = value; return this; }
+    /** Min limit (default 1). */
+    public ConcurrencyLimiter minLimit(int value) { this.minLimit = Math.max(1, value); return this; }
+    /** Max limit (default 200). */
+    public ConcurrencyLimiter maxLimit(int value) { this.maxLimit = value; return this; }
+    /** Multiplier applied to limit on failed or slow call (default 0.9). */
+    public ConcurrencyLimiter backoffRatio(double value) { this.backoffRatio = value; return this; }
+    /** Calls longer than this (millis) decrease limit. Derived from observed min latency by default. */
+    public ConcurrencyLimiter latencyThreshold(long value) { this.latencyThreshold = value; return this; }
+    /** Allowed ratio of latency to min latency when threshold is derived (default 2.0). */
+    public ConcurrencyLimiter tolerance(double value) { this.tolerance = value; return this; }
+
+    /** @return current limit */
+    public int limit() { return (int)currentLimit(); }
+    /** @return number of calls in flight */
+    public int inflight() { return inflight.get(); }
+
+    private double currentLimit() {
+        double l = limit;
+        if(l < 0) {
+            l = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+            limit = l;
+        }
+        return l;
+    }
+
+    /**
+     * @return true if call is permitted
+     */
+    public boolean tryAcquire() {
+        while(true) {
+            int current = inflight.get();
+            if(current >= (int)currentLimit()) return false;
+            if(inflight.compareAndSet(current, current + 1)) return true;
+        }
+    }
+
+    /**
+     * Returns permit of call which was not executed.
+     */
+    public void cancel() {
+        inflight.decrementAndGet();
+    }
+
+    /**
+     * Returns permit and adapts limit according to call outcome.
+     * @param nanos call duration
+     * @param failed true if call failed
+     */
+    public void release(long nanos, boolean failed) {
+        int current = inflight.getAndDecrement();
+        synchronized(this) {
+            double l = currentLimit();
+            if(failed || slow(nanos)) {
+                l = Math.max(minLimit, l * backoffRatio);
+            } else if(current * 2 >= l) {
+                // increase only if limit is really used
+                l = Math.min(maxLimit, l + 1.0 / l);
+            }
+            limit = l;
+        }
+    }
+
+    private boolean slow(long nanos) {
+        if(latencyThreshold >= 0) return nanos / 1000000 > latencyThreshold;
+        long now = System.currentTimeMillis();
+        if(now > minLatencyReset) {
+            // min latency is forgotten periodically so it can follow changed conditions
+            minLatency = Long.MAX_VALUE;
+            minLatencyReset = now + 60000;
+        }
+        if(nanos < minLatency) minLatency = nanos;
+        return nanos > minLatency * tolerance;
+    }
+
+    @Override
+    public String toString() {
+        return "ConcurrencyLimiter{limit: " + limit() + ", inflight: " + inflight() + "}";
+    }
+
+    /**
+     * Cause of HttpException thrown when limit is exceeded.
+     */
+    public static class LimitExceededException extends RuntimeException {
+        public LimitExceededException(int limit) {
+            super("concurrency limit " + limit + " exceeded");
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ *
+ */
+package sk.antons.sbutils.rest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.URI;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+
+/**
+ * Hedged requests for RestTemplateClient. If GET request is not answered
+ * within observed latency percentile (p95 by default) second identical
+ * request is sent and first received response is used. Other request is
+ * aborted (its connection is closed). Hedged calls use requestFactory()
+ * (with template interceptors, error handler and converters), which must
+ * be able to abort its requests. Hedging is disabled (warning is logged
+ * by RestTemplateClient.Builder) if it is not set. Aborted request is not
+ * counted as failure by circuit breaker and concurrency limiter.
+ *
+ * {@code <pre>}
+ * Hedging.SimpleRequestFactory factory = new Hedging.SimpleRequestFactory();
+ * factory.setReadTimeout(5000);
+ * RestTemplateClient.Builder.instance()
+ *     .hedging(Hedging.instance().requestFactory(factory))
+ * {@code </pre>}
+ *
+ * Latencies of last sampleSize first attempts (without hedged attempts
+ * and retry backoff) are kept. Delay is recomputed after each 100
+ * recorded calls.
+ *
+ * @author antons
+ */
+public class Hedging {
+
+    private double percentile = 95;
+    private long minDelay = 5;
+    private long maxDelay = 10000;
+    private int sampleSize = 1000;
+    private int minSamples = 100;
+    private AbortableRequestFactory requestFactory = null;
+
+    private AtomicLongArray samples = null;
+    private final AtomicLong recorded = new AtomicLong();
+    private volatile long delay = -1;
+
+    private Hedging() {}
+    public static Hedging instance() { return new Hedging(); }
+
+    /** Latency percentile after which hedged request is sent (default 95). */
+    public Hedging percentile(double value) { this.percentile = value; return this; }
+    /** Min and max delay of hedged request in millis (default 5 and 10000). */
+    public Hedging delay(long min, long max) { this.minDelay = min; this.maxDelay = max; return this; }
+    /** Number of latency samples kept (default 1000). */
+    public Hedging sampleSize(int value) { this.sampleSize = Math.max(1, value); return this; }
+    /** No hedging is done until this number of latencies is recorded (default 100). */
+    public Hedging minSamples(int value) { this.minSamples = value; return this; }
+    /**
+     * Factory of hedged requests. Slower request is aborted by it, so
+     * hedging is disabled without it.
+     */
+    public Hedging requestFactory(AbortableRequestFactory value) { this.requestFactory = value; return this; }
+
+    AbortableRequestFactory requestFactory() { return requestFactory; }
+
+    /**
+     * @return current delay of hedged request in millis or -1 if there is
+     * not enough samples yet.
+     */
+    public long delay() { return delay; }
+
+    private AtomicLongArray samples() {
+        if(samples == null) {
+            synchronized(this) {
+                if(samples == null) samples = new AtomicLongArray(sampleSize);
+            }
+        }
+        return samples;
+    }
+
+    void record(long nanos) {
+        AtomicLongArray array = samples();
+        long n = recorded.getAndIncrement();
+        array.set((int)(n % array.length()), nanos);
+        if((n + 1 >= minSamples) && ((n + 1) % 100 == 0 || delay < 0)) recompute(array, n + 1);
+    }
+
+    private void recompute(AtomicLongArray array, long count) {
+        int size = (int)Math.min(count, array.length());
+        long[] values = new long[size];
+        for(int i = 0; i < size; i++) values[i] = array.get(i);
+        Arrays.sort(values);
+        int index = (int)Math.min(size - 1, Math.ceil(percentile / 100.0 * size) - 1);
+        long millis = values[Math.max(0, index)] / 1000000;
+        delay = Math.max(minDelay, Math.min(maxDelay, millis));
+    }
+
+    /**
+     * Request factory which can abort its requests from other thread.
+     * Factories based on other clients can implement it using their public
+     * abort (like HttpUriRequest.abort() of HttpComponents).
+     */
+    public interface AbortableRequestFactory extends ClientHttpRequestFactory {
+        /**
+         * @return action which aborts given request created by this factory
+         * (closes its connection) or null if it can not be aborted
+         */
+        Runnable abort(ClientHttpRequest request);
+    }
+
+    /**
+     * HttpURLConnection based factory. Request is aborted by
+     * HttpURLConnection.disconnect().
+     */
+    public static class SimpleRequestFactory extends SimpleClientHttpRequestFactory implements AbortableRequestFactory {
+        private final ThreadLocal<HttpURLConnection> opened = new ThreadLocal<>();
+
+        @Override
+        protected HttpURLConnection openConnection(URL url, Proxy proxy) throws IOException {
+            HttpURLConnection connection = super.openConnection(url, proxy);
+            opened.set(connection);
+            return connection;
+        }
+
+        @Override
+        public ClientHttpRequest createRequest(URI uri, HttpMethod method) throws IOException {
+            try {
+                return new Request(super.createRequest(uri, method), opened.get());
+            } finally {
+                opened.remove();
+            }
+        }
+
+        @Override
+        public Runnable abort(ClientHttpRequest request) {
+            return request instanceof Request ? ((Request)request).connection::disconnect : null;
+        }
+
+        private static class Request implements ClientHttpRequest {
+            private final ClientHttpRequest request;
+            private final HttpURLConnection connection;
+
+            private Request(ClientHttpRequest request, HttpURLConnection connection) {
+                this.request = request;
+                this.connection = connection;
+            }
+
+            @Override
+            public ClientHttpResponse execute() throws IOException { return request.execute(); }
+            @Override
+            public String getMethodValue() { return request.getMethodValue(); }
+            @Override
+            public URI getURI() { return request.getURI(); }
+            @Override
+            public HttpHeaders getHeaders() { return request.getHeaders(); }
+            @Override
+            public OutputStream getBody() throws IOException { return request.getBody(); }
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ *
+ */
+package sk.antons.sbutils.rest;
+
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+
+/**
+ * Cache of deserialized GET responses for RestTemplateClient.
+ *
+ * Responses are cached according to Cache-Control (no-store, no-cache,
+ * private, public, max-age, s-maxage) and Expires headers. Cache is shared
+ * by all users of client, so private responses and responses to requests
+ * with Authorization or Cookie header are not stored unless response is
+ * public or has s-maxage. Credentials added by template interceptors are
+ * not visible to cache, use keyHeaders for them. Stale entries with ETag or
+ * Last-Modified are revalidated using If-None-Match/If-Modified-Since
+ * headers and 304 response reuses cached object without deserialization.
+ *
+ * Cache is bounded by number of entries and total weight (by default
+ * Content-Length of response). Lookups do not lock. When bound is exceeded
+ * least recently used tenth of entries is evicted in one pass (approximate
+ * LRU, last access is tracked with millisecond precision).
+ *
+ * Cached objects are shared by all callers and must not be modified.
+ *
+ * {@code <pre>}
+ * RestTemplateClient.Builder.instance()
+ *     .cache(ResponseCache.instance().maxEntries(1000).keyHeaders("Accept-Language"))
+ * {@code </pre>}
+ *
+ * @author antons
+ */
+public class ResponseCache {
+
+    private int maxEntries = 1000;
+    private long maxWeight = Long.MAX_VALUE;
+    private ToLongFunction<ResponseEntity<?>> weigher = ResponseCache::contentLength;
+    private String[] keyHeaders = new String[0];
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong weight = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder revalidations = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private ResponseCache() {}
+    public static ResponseCache instance() { return new ResponseCache(); }
+
+    /** Max number of cached responses (default 1000). */
+    public ResponseCache maxEntries(int value) { this.maxEntries = value; return this; }
+    /** Max sum of weights of cached responses (unbounded by default). */
+    public ResponseCache maxWeight(long value) { this.maxWeight = value; return this; }
+    /** Weight of response (default Content-Length or 1 if unknown). */
+    public ResponseCache weigher(ToLongFunction<ResponseEntity<?>> value) { this.weigher = value; return this; }
+    /** Request headers which are part of cache key (url and response type are always part of key). */
+    public ResponseCache keyHeaders(String... value) { this.keyHeaders = value == null ? new String[0] : value; return this; }
+
+    /** @return number of responses served from cache without request */
+    public long hits() { return hits.sum(); }
+    /** @return number of responses fetched with body */
+    public long misses() { return misses.sum(); }
+    /** @return number of stale responses reused because of 304 response */
+    public long revalidations() { return revalidations.sum(); }
+    /** @return number of evicted responses */
+    public long evictions() { return evictions.sum(); }
+    public int size() { return entries.size(); }
+    public long weight() { return weight.get(); }
+
+    public synchronized void clear() {
+        for(String key : entries.keySet()) invalidate(key);
+    }
+
+    public synchronized void invalidate(String key) {
+        Entry e = entries.remove(key);
+        if(e != null) weight.addAndGet(-e.weight);
+    }
+
+    String key(String url, HttpHeaders headers, Type type) {
+        StringBuilder sb = new StringBuilder(url.length() + 64);
+        sb.append(url).append('|').append(type == null ? "" : type.getTypeName());
+        for(String keyHeader : keyHeaders) {
+            sb.append('|').append(keyHeader).append('=');
+            List<String> values = headers == null ? null : headers.get(keyHeader);
+            if(values != null) sb.append(values);
+        }
+        return sb.toString();
+    }
+
+    Entry get(String key) {
+        Entry e = entries.get(key);
+        if(e != null) e.touch();
+        return e;
+    }
+
+    void hit() { hits.increment(); }
+
+    void notModified(String key, Entry entry, HttpHeaders requestHeaders, HttpHeaders headers) {
+        revalidations.increment();
+        long expires = expiresAt(headers, authorized(requestHeaders), System.currentTimeMillis());
+        if(expires < 0) {
+            invalidate(key);
+        } else {
+            entry.expires = expires;
+            String etag = headers.getETag();
+            if(etag != null) entry.etag = etag;
+        }
+    }
+
+    void put(String key, HttpHeaders requestHeaders, ResponseEntity<?> response) {
+        misses.increment();
+        if(response == null) return;
+        if(response.getStatusCodeValue() != 200) return;
+        HttpHeaders headers = response.getHeaders();
+        long expires = expiresAt(headers, authorized(requestHeaders), System.currentTimeMillis());
+        if(expires < 0) return;
+        Entry e = new Entry(response.getBody(), headers.getETag(), headers.getFirst(HttpHeaders.LAST_MODIFIED)
+            , expires, Math.max(1, weigher.applyAsLong(response)));
+        if((e.etag == null) && (e.lastModified == null) && !e.fresh()) return;
+        synchronized(this) {
+            Entry old = entries.put(key, e);
+            if(old != null) weight.addAndGet(-old.weight);
+            weight.addAndGet(e.weight);
+            if((entries.size() > maxEntries) || (weight.get() > maxWeight)) evict();
+        }
+    }
+
+    /**
+     * Evicts least recently used entries until cache is at 90% of its bounds.
+     */
+    private void evict() {
+        List<Map.Entry<String, Entry>> list = new ArrayList<>(entries.entrySet());
+        list.sort((a, b) -> Long.compare(a.getValue().accessed, b.getValue().accessed));
+        int entriesTarget = maxEntries - Math.max(1, maxEntries / 10);
+        long weightTarget = maxWeight - Math.max(1, maxWeight / 10);
+        for(Map.Entry<String, Entry> eldest : list) {
+            if((entries.size() <= entriesTarget) && (weight.get() <= weightTarget)) break;
+            if(entries.remove(eldest.getKey(), eldest.getValue())) {
+                weight.addAndGet(-eldest.getValue().weight);
+                evictions.increment();
+            }
+        }
+    }
+
+    private static boolean authorized(HttpHeaders requestHeaders) {
+        return (requestHeaders != null)
+            && (requestHeaders.containsKey(HttpHeaders.AUTHORIZATION) || requestHeaders.containsKey(HttpHeaders.COOKIE));
+    }
+
+    private static long contentLength(ResponseEntity<?> response) {
+        long length = response.getHeaders().getContentLength();
+        return length > 0 ? length : 1;
+    }
+
+    /**
+     * @param authorized true if request contains credentials
+     * @return time until response is fresh, -1 if it must not be stored
+     */
+    static long expiresAt(HttpHeaders headers, boolean authorized, long now) {
+        long maxAge = -1;
+        long sharedMaxAge = -1;
+        boolean noCache = false;
+        boolean shared = false;
+        List<String> values = headers.get(HttpHeaders.CACHE_CONTROL);
+        if(values != null) {
+            for(String value : values) {
+                for(String directive : value.split(",")) {
+                    directive = directive.trim().toLowerCase();
+                    if("no-store".equals(directive)) return -1;
+                    // only for cache of one user
+                    else if("private".equals(directive) || directive.startsWith("private=")) return -1;
+                    else if("no-cache".equals(directive)) noCache = true;
+                    else if("public".equals(directive)) shared = true;
+                    else if(directive.startsWith("max-age=")) maxAge = seconds(directive.substring(8));
+                    else if(directive.startsWith("s-maxage=")) {
+                        sharedMaxAge = seconds(directive.substring(9));
+                        shared = true;
+                    }
+                }
+            }
+        }
+        if(authorized && !shared) return -1;
+        if(noCache) return now;
+        if(sharedMaxAge >= 0) return now + sharedMaxAge * 1000;
+        if(maxAge >= 0) return now + maxAge * 1000;
+        long expires = -1;
+        try {
+            expires = headers.getExpires();
+        } catch(Exception e) {
+        }
+        if(expires > 0) return expires;
+        return now;
+    }
+
+    private static long seconds(String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch(NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    static class Entry {
+        private final Object body;
+        private final String lastModified;
+        private final long weight;
+        private volatile String etag;
+        private volatile long expires;
+        private volatile long accessed;
+
+        private Entry(Object body, String etag, String lastModified, long expires, long weight) {
+            this.body = body;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.expires = expires;
+            this.weight = weight;
+            this.accessed = System.currentTimeMillis();
+        }
+
+        boolean fresh() { return System.currentTimeMillis() < expires; }
+        Object body() { return body; }
+
+        private void touch() {
+            // written at most once per millisecond to avoid contention on hot entries
+            long now = System.currentTimeMillis();
+            if(now != accessed) accessed = now;
+        }
+
+        HttpHeaders conditional(HttpHeaders base) {
+            HttpHeaders headers = new HttpHeaders();
+            if(base != null) headers.putAll(base);
+            String tag = etag;
+            if(tag != null) headers.setIfNoneMatch(tag);
+            if(lastModified != null) headers.set(HttpHeaders.IF_MODIFIED_SINCE, lastModified);
+            return headers;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ResponseCache{size: " + size() + ", weight: " + weight()
+            + ", hits: " + hits() + ", revalidations: " + revalidations()
+            + ", misses: " + misses() + ", evictions: " + evictions() + "}";
+    }
+}
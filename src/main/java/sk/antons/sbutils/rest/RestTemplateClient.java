@@ -3,20 +3,80 @@
  */
 package sk.antons.sbutils.rest;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiFunction;
+import java.util.function.Consumer;
 import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import org.springframework.core.ParameterizedTypeReference;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpRequest;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.StreamingHttpOutputMessage;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.InterceptingClientHttpRequestFactory;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.ResponseErrorHandler;
 import org.springframework.web.client.RestTemplate;
-import org.springframework.web.util.UriComponentsBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import sk.antons.sbutils.http.StreamedBodyRequest;
+import sk.antons.sbutils.log.CorrelationId;
+import sk.antons.sbutils.metrics.MetricsRecorder;
 /**
  *
  * @author antons
@@ -28,6 +88,19 @@ public class RestTemplateClient {
     protected RestTemplate template = null;
     protected BiFunction<String, Object, HttpHeaders> headers = null;
     protected Predicate<ResponseEntity> responseValidator = null;
+    protected Executor executor = null;
+    protected Semaphore concurrency = null;
+    protected ResponseCache cache = null;
+    protected Map<String, CompletableFuture<Object>> inflight = null;
+    protected CircuitBreaker circuitBreaker = null;
+    protected ConcurrencyLimiter limiter = null;
+    protected RetryPolicy retry = null;
+    protected Hedging hedging = null;
+    protected ClientHttpRequestFactory streamingRequestFactory = null;
+    private volatile boolean bufferedWarned = false;
+    protected String name = null;
+    protected MetricsRecorder metrics = null;
+    protected final Map<String, Template> templates = new ConcurrentHashMap<>();
 
     private RestTemplateClient() {
     }
@@ -43,6 +116,26 @@ public class RestTemplateClient {
     }
 
 
+    private ObjectMapper mapper = null;
+    protected ObjectMapper mapper() {
+        if(mapper == null) {
+            ObjectMapper m = null;
+            for(HttpMessageConverter<?> converter : template.getMessageConverters()) {
+                if(converter instanceof MappingJackson2HttpMessageConverter) {
+                    m = ((MappingJackson2HttpMessageConverter)converter).getObjectMapper();
+                    break;
+                }
+            }
+            mapper = m == null ? new ObjectMapper() : m;
+        }
+        return mapper;
+    }
+
+    protected Executor executor() {
+        if(executor == null) executor = DefaultExecutor.instance();
+        return executor;
+    }
+
     public Request get() { return request(HttpMethod.GET); }
     public Request post() { return request(HttpMethod.POST); }
     public Request delete() { return request(HttpMethod.DELETE); }
@@ -55,67 +148,577 @@ public class RestTemplateClient {
         return r;
     }
 
-    public static int counter = 1;
-
     public class Request {
         private HttpMethod method;
         private String path;
+        private Object[] vars;
+        private StringBuilder query;
         private Object content;
+        private StreamingBody body;
         private HttpHeaders headers;
+        private String url;
 
         private Request() {}
         private Request method(HttpMethod value) { this.method = value; return this; }
-        public Request path(String value) { this.path = value; return this; }
-        public Request content(Object value) { this.content = value; return this; }
+        public Request path(String value) { this.path = value; this.vars = null; this.url = null; return this; }
+        /**
+         * Path as uri template with variables like path("/item/{id}", id).
+         * Variables are expanded in order of occurrence and encoded.
+         * Template is parsed only once per client.
+         */
+        public Request path(String template, Object... vars) { this.path = template; this.vars = vars; this.url = null; return this; }
+        /**
+         * Adds encoded query parameter. Null value adds parameter name only.
+         * Parameters are appended after query already present in path.
+         */
+        public Request query(String name, Object value) {
+            if(query == null) query = new StringBuilder();
+            if(query.length() > 0) query.append('&');
+            Template.encode(name, query);
+            if(value != null) {
+                query.append('=');
+                Template.encode(String.valueOf(value), query);
+            }
+            this.url = null;
+            return this;
+        }
+        public Request content(Object value) { this.content = value; this.body = null; return this; }
+        /**
+         * Streams file as request body. Body is buffered in memory if
+         * Builder.streamingRequestFactory() is not configured.
+         */
+        public Request content(Path value) { this.content = value; this.body = new PathBody(value); return this; }
+        /**
+         * Streams input stream as request body. Length -1 means unknown
+         * length (chunked transfer). Such request is never retried.
+         */
+        public Request content(InputStream value, long length) { this.content = value; this.body = new InputStreamBody(value, length); return this; }
+        /**
+         * Sends buffer content (from position to limit) as request body
+         * without copying it to byte array.
+         */
+        public Request content(ByteBuffer value) { this.content = value; this.body = new ByteBufferBody(value); return this; }
         public Request headers(HttpHeaders value) { this.headers = value; return this; }
 
         public void call() { call(String.class, null); }
         public <T> T call(Class<T> clazz) { return call(clazz, null); }
         public <T> T call(ParameterizedTypeReference<T> type) { return call(null, type); }
+
+        /**
+         * Executes request asynchronously using client executor. Future is
+         * completed exceptionally with HttpException in same cases as call()
+         * throws it.
+         */
+        public CompletableFuture<Void> callAsync() { return callAsync(String.class, null).thenApply(o -> null); }
+        public <T> CompletableFuture<T> callAsync(Class<T> clazz) { return callAsync(clazz, null); }
+        public <T> CompletableFuture<T> callAsync(ParameterizedTypeReference<T> type) { return callAsync(null, type); }
+
+        /**
+         * Executes request and returns elements of json array in response
+         * body as stream. Elements are parsed one by one while stream is
+         * consumed, so whole response is never in memory. Response is
+         * closed when stream is consumed or closed. Use try with resources
+         * if stream is not consumed fully. If response is single object
+         * stream contains only that object. Null elements are skipped.
+         *
+         * Streamed requests are not cached, coalesced, hedged or retried.
+         */
+        public <T> Stream<T> stream(Class<T> clazz) {
+            JsonStream<T> elements = new JsonStream<>(clazz);
+            elements.open();
+            return StreamSupport.stream(Spliterators.spliteratorUnknownSize(elements, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(elements::close);
+        }
+
+        /**
+         * Executes request and pass each element of json array in response
+         * body to consumer. See stream()
+         */
+        public <T> void forEach(Class<T> clazz, Consumer<? super T> consumer) {
+            try(Stream<T> stream = stream(clazz)) {
+                stream.forEach(consumer);
+            }
+        }
+
+        private <T> CompletableFuture<T> callAsync(Class<T> clazz, ParameterizedTypeReference<T> type) {
+            if(RestTemplateClient.this.inflight != null) {
+                // join identical request in flight without occupying executor thread
+                String key = flightKey(requestHeaders(), clazz, type);
+                CompletableFuture<Object> flight = key == null ? null : RestTemplateClient.this.inflight.get(key);
+                if(flight != null) return flight.thenApply(o -> (T)o);
+            }
+            CompletableFuture<T> future = new CompletableFuture<>();
+            String parent = CorrelationId.current();
+            try {
+                RestTemplateClient.this.executor().execute(() -> {
+                    CorrelationId.Scope scope = parent == null ? null : CorrelationId.open(parent);
+                    try {
+                        future.complete(call(clazz, type));
+                    } catch(Throwable e) {
+                        future.completeExceptionally(e);
+                    } finally {
+                        if(scope != null) scope.close();
+                    }
+                });
+            } catch(RejectedExecutionException e) {
+                future.completeExceptionally(new HttpException(e).url(url()).method(method));
+            }
+            return future;
+        }
+
         private <T> T call(Class<T> clazz, ParameterizedTypeReference<T> type) {
-            int id = counter++;
+            HttpHeaders requestHeaders = requestHeaders();
+            String key = flightKey(requestHeaders, clazz, type);
+            if(key == null) return attempt(clazz, type, requestHeaders);
+
+            Map<String, CompletableFuture<Object>> inflight = RestTemplateClient.this.inflight;
+            CompletableFuture<Object> flight = new CompletableFuture<>();
+            CompletableFuture<Object> existing = inflight.putIfAbsent(key, flight);
+            if(existing != null) {
+                try {
+                    return (T)existing.join();
+                } catch(CompletionException e) {
+                    Throwable t = e.getCause() == null ? e : e.getCause();
+                    if(t instanceof HttpException) throw (HttpException)t;
+                    throw new HttpException(t).url(url()).method(method);
+                }
+            }
+            try {
+                T rv = attempt(clazz, type, requestHeaders);
+                flight.complete(rv);
+                return rv;
+            } catch(RuntimeException e) {
+                flight.completeExceptionally(e);
+                throw e;
+            } finally {
+                inflight.remove(key, flight);
+            }
+        }
+
+        private HttpHeaders requestHeaders() {
+            try {
+                return headers == null ? RestTemplateClient.this.headers().apply(path, content) : headers;
+            } catch(RuntimeException e) {
+                throw new HttpException(e).url(url()).method(method);
+            }
+        }
+
+        /**
+         * Key of request for coalescing. Only GET and HEAD requests are coalesced.
+         */
+        private String flightKey(HttpHeaders requestHeaders, Class clazz, ParameterizedTypeReference type) {
+            if(RestTemplateClient.this.inflight == null) return null;
+            if((method != HttpMethod.GET) && (method != HttpMethod.HEAD)) return null;
+            return method.name() + " " + url() + " " + requestHeaders + " " + (clazz != null ? clazz.getName() : type.getType().getTypeName());
+        }
+
+        private <T> T attempt(Class<T> clazz, ParameterizedTypeReference<T> type, HttpHeaders requestHeaders) {
+            Hedging hedging = RestTemplateClient.this.hedging;
+            if((hedging == null) || (method != HttpMethod.GET)) return retried(clazz, type, requestHeaders, null);
+            long delay = hedging.delay();
+            return delay < 0 ? retried(clazz, type, requestHeaders, null) : hedged(delay, clazz, type, requestHeaders);
+        }
+
+        /**
+         * Executes request in calling thread. If there is no response
+         * within delay, same request is executed once more in client
+         * executor and first response is used. Slower request is aborted.
+         */
+        private <T> T hedged(long delay, Class<T> clazz, ParameterizedTypeReference<T> type, HttpHeaders requestHeaders) {
+            HedgedCall<T> hedged = new HedgedCall<>();
+            String parent = CorrelationId.current();
+            hedged.schedule(delay, RestTemplateClient.this.executor(), () -> {
+                if(log.isDebugEnabled()) log.debug("http-hedge[{}] {} {} after: {}", parent, method.name(), url(), delay);
+                return retried(clazz, type, requestHeaders, hedged.hedge);
+            }, parent);
+            T rv = null;
+            try {
+                rv = retried(clazz, type, requestHeaders, hedged.primary);
+            } catch(RuntimeException e) {
+                // hedged request won and this one was aborted
+                if(hedged.primary.cancelled()) return hedged.result.join();
+                hedged.unschedule();
+                if(hedged.hedge.claim()) throw e;
+                // hedged request is running, its response is used if it succeeds
+                try {
+                    hedged.hedgeDone.get();
+                } catch(InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    hedged.hedge.cancel();
+                    throw e;
+                } catch(ExecutionException ee) {
+                    throw e;
+                }
+                if(hedged.result.isDone() && !hedged.result.isCompletedExceptionally()) return hedged.result.join();
+                throw e;
+            }
+            hedged.result.complete(rv);
+            hedged.unschedule();
+            hedged.hedge.cancel();
+            return rv;
+        }
+
+        private <T> T retried(Class<T> clazz, ParameterizedTypeReference<T> type, HttpHeaders requestHeaders, HedgedCall.Attempt hedged) {
+            RetryPolicy retry = RestTemplateClient.this.retry;
+            if((retry == null) || ((body != null) && !body.repeatable())) return execute(clazz, type, requestHeaders, hedged);
+            retry.deposit();
+            for(int attempt = 1; ; attempt++) {
+                try {
+                    return execute(clazz, type, requestHeaders, hedged);
+                } catch(HttpException e) {
+                    if((hedged != null) && hedged.cancelled()) throw e;
+                    if(!retry.retry(method, e, attempt)) throw e;
+                    long backoff = retry.backoff(attempt);
+                    if(log.isDebugEnabled()) log.debug("http-retry[{}] {} {} attempt: {}, backoff: {}", CorrelationId.current(), method.name(), url(), attempt, backoff);
+                    try {
+                        Thread.sleep(backoff);
+                    } catch(InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        throw e;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Executes request once. Hedged attempt can be aborted by other
+         * attempt of same call, such outcome is not recorded as failure.
+         */
+        private <T> T execute(Class<T> clazz, ParameterizedTypeReference<T> type, HttpHeaders requestHeaders, HedgedCall.Attempt hedged) {
+            String id = CorrelationId.nextExchange();
             if(log.isDebugEnabled()) log.debug("http-req[{}] {} {}", id, method.name(), url());
-            long starttime = System.currentTimeMillis();
-            long requesttime = 0;
+            long starttime = System.nanoTime();
+            Semaphore permits = RestTemplateClient.this.concurrency;
+            boolean acquired = false;
+            CircuitBreaker breaker = RestTemplateClient.this.circuitBreaker;
+            long breakerPermit = -1;
+            ConcurrencyLimiter limiter = RestTemplateClient.this.limiter;
+            boolean limiterAcquired = false;
+            long exchangestart = 0;
+            Boolean failed = null;
+            URI uri = null;
+            int status = -1;
+            long responseSize = -1;
+            CorrelationId.Scope scope = CorrelationId.openExchange(id);
             try {
+                ResponseCache cache = RestTemplateClient.this.cache;
+                String cacheKey = null;
+                ResponseCache.Entry cached = null;
+                if((cache != null) && (method == HttpMethod.GET)) {
+                    cacheKey = cache.key(url(), requestHeaders, clazz != null ? clazz : type.getType());
+                    cached = cache.get(cacheKey);
+                    if(cached != null) {
+                        if(cached.fresh()) {
+                            cache.hit();
+                            if(log.isDebugEnabled()) log.debug("http-res[{}] {} {} cached", id, method.name(), url());
+                            return (T)cached.body();
+                        }
+                        requestHeaders = cached.conditional(requestHeaders);
+                    }
+                }
 
-                UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(url());
+                if(limiter != null) {
+                    if(!limiter.tryAcquire()) throw new HttpException(new ConcurrencyLimiter.LimitExceededException(limiter.limit())).url(url()).method(method);
+                    limiterAcquired = true;
+                }
+                if(breaker != null) {
+                    breakerPermit = breaker.tryAcquire();
+                    if(breakerPermit < 0) throw new HttpException(new CircuitBreaker.OpenException(breaker.name())).url(url()).method(method);
+                }
+                if(permits != null) {
+                    permits.acquire();
+                    acquired = true;
+                }
 
-                HttpEntity<?> entity = new HttpEntity<>(content, headers == null ? RestTemplateClient.this.headers().apply(path, content) : headers);
+                uri = URI.create(url());
+                HttpEntity<?> entity = new HttpEntity<>(content, requestHeaders);
 
                 ResponseEntity<T> response = null;
-                if(clazz != null) {
-                    response = RestTemplateClient.this.template
-                        .exchange(builder.build().toUriString()
-                            , method
-                            , entity
-                            , clazz);
+                if((hedged != null) && hedged.cancelled()) throw new CancellationException("Hedged request cancelled");
+                exchangestart = System.nanoTime();
+                if(body != null) {
+                    response = exchangeStreamed(uri, requestHeaders, clazz != null ? clazz : type.getType());
+                } else if(hedged != null) {
+                    response = exchangeAbortable(uri, entity, clazz != null ? clazz : type.getType(), hedged);
+                } else if(clazz != null) {
+                    response = RestTemplateClient.this.template.exchange(uri, method, entity, clazz);
                 } else {
-                    response = RestTemplateClient.this.template
-                        .exchange(builder.build().toUriString()
-                            , method
-                            , entity
-                            , type);
+                    response = RestTemplateClient.this.template.exchange(uri, method, entity, type);
                 }
-                requesttime = System.currentTimeMillis()- starttime;
+                status = response.getStatusCodeValue();
+                responseSize = response.getHeaders().getContentLength();
+                failed = response.getStatusCode().is5xxServerError();
 
-                if(log.isDebugEnabled()) log.debug("http-res[{}] {} {} status: {}, time: {}", id, method.name(), url(), response.getStatusCodeValue(), requesttime);
-                if(RestTemplateClient.this.responseValidator().test(response)) {
+                if(log.isDebugEnabled()) log.debug("http-res[{}] {} {} status: {}, time: {}", id, method.name(), url(), status, (System.nanoTime() - starttime) / 1000000);
+                if((cached != null) && (response.getStatusCode() == HttpStatus.NOT_MODIFIED)) {
+                    cache.notModified(cacheKey, cached, requestHeaders, response.getHeaders());
+                    return (T)cached.body();
+                }
+                if(!RestTemplateClient.this.responseValidator().test(response)) {
                     throw new HttpException(response).method(method).url(url());
                 } else {
+                    if(cacheKey != null) cache.put(cacheKey, requestHeaders, response);
                     return response.getBody();
                 }
             } catch (Throwable e) {
                 if(log.isDebugEnabled()) log.debug("http-res[{}] {} {} err: {}", id, method.name(), url(), e.toString());
+                if(e instanceof InterruptedException) Thread.currentThread().interrupt();
+                if((failed == null) && (exchangestart > 0)) failed = !(e instanceof HttpClientErrorException);
+                if(e instanceof HttpStatusCodeException) status = ((HttpStatusCodeException)e).getRawStatusCode();
                 if(e instanceof HttpException) throw (HttpException)e;
                 else throw new HttpException(e).url(url()).method(method);
+            } finally {
+                if(acquired) permits.release();
+                long nanos = System.nanoTime() - exchangestart;
+                // aborted loser of hedged call is neither success nor failure
+                if((hedged != null) && hedged.cancelled()) failed = null;
+                if(limiterAcquired) {
+                    if(failed == null) limiter.cancel();
+                    else limiter.release(nanos, failed);
+                }
+                if(breakerPermit >= 0) {
+                    if(failed == null) breaker.cancel(breakerPermit);
+                    else breaker.record(breakerPermit, nanos, failed);
+                }
+                if(exchangestart > 0) record(uri, status, nanos, responseSize);
+                Hedging hedging = RestTemplateClient.this.hedging;
+                if((hedging != null) && (exchangestart > 0) && (method == HttpMethod.GET) && ((hedged == null) || hedged.primary())) {
+                    hedging.record(nanos);
+                }
+                scope.close();
             }
 
         }
 
+        /**
+         * Executes request with template interceptors, error handler and
+         * message converters like template does, but request is created by
+         * Hedging.requestFactory() through HedgedCall.Attempt, so it can be
+         * aborted.
+         */
+        private <T> ResponseEntity<T> exchangeAbortable(URI uri, HttpEntity<?> entity, Type responseType, HedgedCall.Attempt hedged) throws IOException {
+            RestTemplate template = RestTemplateClient.this.template;
+            ClientHttpRequest request = hedged.factory(template, RestTemplateClient.this.hedging.requestFactory()).createRequest(uri, method);
+            template.getClientHttpRequestInitializers().forEach(initializer -> initializer.initialize(request));
+            template.httpEntityCallback(entity, responseType).doWithRequest(request);
+            ClientHttpResponse response = request.execute();
+            try {
+                if(template.getErrorHandler().hasError(response)) template.getErrorHandler().handleError(uri, method, response);
+                return template.<T>responseEntityExtractor(responseType).extractData(response);
+            } finally {
+                response.close();
+            }
+        }
+
+        /**
+         * Sends streamed body. If streaming request factory is configured
+         * body is written directly to connection and template interceptors
+         * get only its prefix (see StreamedBodyRequest). Otherwise template
+         * request factory is used, which buffers whole body in memory (warning
+         * is logged once).
+         */
+        private <T> ResponseEntity<T> exchangeStreamed(URI uri, HttpHeaders requestHeaders, Type responseType) throws IOException {
+            RestTemplate template = RestTemplateClient.this.template;
+            ClientHttpRequestFactory factory = RestTemplateClient.this.streamingRequestFactory;
+            ClientHttpRequest request = (factory == null ? template.getRequestFactory() : factory).createRequest(uri, method);
+            template.httpEntityCallback(new HttpEntity<>(requestHeaders), responseType).doWithRequest(request);
+            long length = body.length();
+            if(length < 0) request.getHeaders().remove(HttpHeaders.CONTENT_LENGTH);
+            else request.getHeaders().setContentLength(length);
+
+            ClientHttpResponse response = null;
+            if(factory == null) {
+                if(!bufferedWarned) {
+                    bufferedWarned = true;
+                    log.warn("streamed request body is buffered in memory - streamingRequestFactory is not configured");
+                }
+                body.writeTo(request.getBody());
+                response = request.execute();
+            } else {
+                StreamedExecution execution = new StreamedExecution(request, body, template.getInterceptors().iterator());
+                response = execution.execute(execution, body.prefix(StreamingBody.PREFIX));
+            }
+            try {
+                if(template.getErrorHandler().hasError(response)) template.getErrorHandler().handleError(uri, method, response);
+                return template.<T>responseEntityExtractor(responseType).extractData(response);
+            } finally {
+                response.close();
+            }
+        }
+
+        /**
+         * Iterator over json array elements of live response.
+         */
+        private class JsonStream<T> implements Iterator<T> {
+            private final Class<T> clazz;
+            private final String id = CorrelationId.nextExchange();
+            private ClientHttpResponse response;
+            private JsonParser parser;
+            private boolean array = false;
+            private boolean done = false;
+            private boolean closed = false;
+            private T next = null;
+            private boolean ready = false;
+            private boolean acquired = false;
+            private int count = 0;
+
+            private JsonStream(Class<T> clazz) { this.clazz = clazz; }
+
+            private void open() {
+                if(log.isDebugEnabled()) log.debug("http-req[{}] {} {} stream", id, method.name(), url());
+                HttpHeaders requestHeaders = requestHeaders();
+                Semaphore permits = RestTemplateClient.this.concurrency;
+                CircuitBreaker breaker = RestTemplateClient.this.circuitBreaker;
+                long breakerPermit = -1;
+                ConcurrencyLimiter limiter = RestTemplateClient.this.limiter;
+                boolean limiterAcquired = false;
+                long exchangestart = 0;
+                Boolean failed = null;
+                CorrelationId.Scope scope = CorrelationId.openExchange(id);
+                try {
+                    if(limiter != null) {
+                        if(!limiter.tryAcquire()) throw new HttpException(new ConcurrencyLimiter.LimitExceededException(limiter.limit())).url(url()).method(method);
+                        limiterAcquired = true;
+                    }
+                    if(breaker != null) {
+                        breakerPermit = breaker.tryAcquire();
+                        if(breakerPermit < 0) throw new HttpException(new CircuitBreaker.OpenException(breaker.name())).url(url()).method(method);
+                    }
+                    if(permits != null) {
+                        permits.acquire();
+                        acquired = true;
+                    }
+                    URI uri = URI.create(url());
+                    RestTemplate template = RestTemplateClient.this.template;
+                    ClientHttpRequest request = template.getRequestFactory().createRequest(uri, method);
+                    template.httpEntityCallback(new HttpEntity<>(content, requestHeaders), clazz).doWithRequest(request);
+                    exchangestart = System.nanoTime();
+                    response = request.execute();
+                    failed = HttpStatus.Series.resolve(response.getRawStatusCode()) == HttpStatus.Series.SERVER_ERROR;
+                    record(uri, response.getRawStatusCode(), System.nanoTime() - exchangestart, response.getHeaders().getContentLength());
+                    if(log.isDebugEnabled()) log.debug("http-res[{}] {} {} status: {}, time: {}", id, method.name(), url(), response.getRawStatusCode(), (System.nanoTime() - exchangestart) / 1000000);
+                    ResponseErrorHandler handler = template.getErrorHandler();
+                    if(handler.hasError(response)) handler.handleError(uri, method, response);
+                    ResponseEntity<?> entity = ResponseEntity.status(response.getRawStatusCode()).headers(response.getHeaders()).build();
+                    if(!RestTemplateClient.this.responseValidator().test(entity)) throw new HttpException(entity).method(method).url(url());
+                    parser = RestTemplateClient.this.mapper().getFactory().createParser(response.getBody());
+                    JsonToken token = parser.nextToken();
+                    if(token == JsonToken.START_ARRAY) array = true;
+                    else if((token != null) && (token != JsonToken.VALUE_NULL)) {
+                        next = RestTemplateClient.this.mapper().readValue(parser, clazz);
+                        ready = next != null;
+                    }
+                } catch(Throwable e) {
+                    if(log.isDebugEnabled()) log.debug("http-res[{}] {} {} err: {}", id, method.name(), url(), e.toString());
+                    if(e instanceof InterruptedException) Thread.currentThread().interrupt();
+                    if((failed == null) && (exchangestart > 0)) failed = !(e instanceof HttpClientErrorException);
+                    close();
+                    if(e instanceof HttpException) throw (HttpException)e;
+                    else throw new HttpException(e).url(url()).method(method);
+                } finally {
+                    long nanos = System.nanoTime() - exchangestart;
+                    if(limiterAcquired) {
+                        if(failed == null) limiter.cancel();
+                        else limiter.release(nanos, failed);
+                    }
+                    if(breakerPermit >= 0) {
+                        if(failed == null) breaker.cancel(breakerPermit);
+                        else breaker.record(breakerPermit, nanos, failed);
+                    }
+                    scope.close();
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                if(ready) return true;
+                if(done) return false;
+                if(!array) {
+                    close();
+                    return false;
+                }
+                try {
+                    // null elements are skipped
+                    while(!ready) {
+                        JsonToken token = parser.nextToken();
+                        if((token == null) || (token == JsonToken.END_ARRAY)) {
+                            close();
+                            return false;
+                        }
+                        if(token == JsonToken.VALUE_NULL) continue;
+                        next = RestTemplateClient.this.mapper().readValue(parser, clazz);
+                        ready = next != null;
+                    }
+                    count++;
+                    return true;
+                } catch(IOException | RuntimeException e) {
+                    if(log.isDebugEnabled()) log.debug("http-res[{}] {} {} err: {}", id, method.name(), url(), e.toString());
+                    close();
+                    throw new HttpException(e).url(url()).method(method);
+                }
+            }
+
+            @Override
+            public T next() {
+                if(!hasNext()) throw new NoSuchElementException();
+                T rv = next;
+                next = null;
+                ready = false;
+                return rv;
+            }
+
+            private void close() {
+                if(closed) return;
+                closed = true;
+                done = true;
+                next = null;
+                ready = false;
+                if(log.isDebugEnabled()) log.debug("http-res[{}] {} {} stream closed, elements: {}", id, method.name(), url(), count);
+                try {
+                    if(parser != null) parser.close();
+                } catch(IOException e) {
+                    log.debug("unable to close parser", e);
+                }
+                if(response != null) response.close();
+                if(acquired) {
+                    acquired = false;
+                    RestTemplateClient.this.concurrency.release();
+                }
+            }
+        }
+
+        private void record(URI uri, int status, long nanos, long responseSize) {
+            MetricsRecorder metrics = RestTemplateClient.this.metrics;
+            if(metrics == null) return;
+            String client = RestTemplateClient.this.name == null ? uri.getHost() : RestTemplateClient.this.name;
+            String template = ((vars != null) && (vars.length > 0)) ? path : MetricsRecorder.normalize(uri.getRawPath());
+            long requestSize = body != null ? body.length() : -1;
+            metrics.record(client, method.name(), template, status, nanos, requestSize, responseSize);
+        }
+
         private String url() {
-            return RestTemplateClient.this.root == null ? "" : RestTemplateClient.this.root
-                    + path == null ? "" : path;
+            if(url == null) {
+                StringBuilder sb = new StringBuilder();
+                if(RestTemplateClient.this.root != null) Template.literal(RestTemplateClient.this.root, sb);
+                if(path != null) {
+                    if((vars == null) || (vars.length == 0)) Template.literal(path, sb);
+                    else {
+                        try {
+                            RestTemplateClient.this.uriTemplate(path).expand(vars, sb);
+                        } catch(RuntimeException e) {
+                            throw new HttpException(e).url(path).method(method);
+                        }
+                    }
+                }
+                if(query != null) {
+                    char last = sb.length() == 0 ? 0 : sb.charAt(sb.length() - 1);
+                    if(sb.indexOf("?") < 0) sb.append('?');
+                    else if((last != '?') && (last != '&')) sb.append('&');
+                    sb.append(query);
+                }
+                url = sb.toString();
+            }
+            return url;
         }
     }
 
@@ -126,12 +729,88 @@ public class RestTemplateClient {
         private RestTemplate template = null;
         private BiFunction<String, Object, HttpHeaders> headers = null;
         private Predicate<ResponseEntity> responseValidator = null;
+        private Executor executor = null;
+        private int maxConcurrency = 0;
+        private ResponseCache cache = null;
+        private boolean coalesce = false;
+        private CircuitBreaker circuitBreaker = null;
+        private ConcurrencyLimiter limiter = null;
+        private RetryPolicy retry = null;
+        private Hedging hedging = null;
+        private ClientHttpRequestFactory streamingRequestFactory = null;
+        private String name = null;
+        private MetricsRecorder metrics = null;
 
         public static Builder instance() { return new Builder(); }
         public Builder root(String value) { this.root = value; return this; }
         public Builder template(RestTemplate value) { this.template = value; return this; }
         public Builder headers(BiFunction<String, Object, HttpHeaders> value) { this.headers = value; return this; }
+        /**
+         * Response is returned if validator accepts it, HttpException is
+         * thrown otherwise (default accepts 2xx responses).
+         */
         public Builder responseValidator(Predicate<ResponseEntity> value) { this.responseValidator = value; return this; }
+        /**
+         * Executor for callAsync(). Virtual thread per task executor is used
+         * by default on JDK 21+, bounded daemon thread pool otherwise.
+         */
+        public Builder executor(Executor value) { this.executor = value; return this; }
+        /**
+         * Max number of concurrently executed requests (sync and async) of
+         * this client. Others wait for permit. Not limited by default.
+         */
+        public Builder maxConcurrency(int value) { this.maxConcurrency = value; return this; }
+        /**
+         * Cache for GET responses (see ResponseCache). Disabled by default.
+         */
+        public Builder cache(ResponseCache value) { this.cache = value; return this; }
+        /**
+         * Concurrent identical GET/HEAD requests (same url, headers and
+         * response type) share one in flight request. All callers get its
+         * result or exception. Disabled by default.
+         */
+        public Builder coalesce(boolean value) { this.coalesce = value; return this; }
+        /**
+         * Circuit breaker which makes calls fail fast when downstream is
+         * failing or slow (see CircuitBreaker). Disabled by default.
+         */
+        public Builder circuitBreaker(CircuitBreaker value) { this.circuitBreaker = value; return this; }
+        /**
+         * Adaptive limit of calls in flight (see ConcurrencyLimiter). Calls
+         * above limit fail fast. Disabled by default.
+         */
+        public Builder concurrencyLimiter(ConcurrencyLimiter value) { this.limiter = value; return this; }
+        /**
+         * Retry of failed idempotent calls with backoff (see RetryPolicy).
+         * Disabled by default.
+         */
+        public Builder retry(RetryPolicy value) { this.retry = value; return this; }
+        /**
+         * Hedged GET requests (see Hedging). First request runs in calling
+         * thread, second one is sent using client executor if first is
+         * slower than observed latency percentile. Disabled by default and
+         * if Hedging.requestFactory() is not set.
+         */
+        public Builder hedging(Hedging value) { this.hedging = value; return this; }
+        /**
+         * Not buffering request factory (like SimpleClientHttpRequestFactory
+         * with bufferRequestBody false) used for streamed bodies - content(Path),
+         * content(InputStream, long) and content(ByteBuffer). Template
+         * interceptors get only body prefix for such requests. If not set
+         * template request factory is used and whole body is buffered in
+         * memory (warning is logged).
+         */
+        public Builder streamingRequestFactory(ClientHttpRequestFactory value) { this.streamingRequestFactory = value; return this; }
+        /**
+         * Client name used in metrics (host of request by default).
+         */
+        public Builder name(String value) { this.name = value; return this; }
+        /**
+         * Records latency, status and response size of each call (see
+         * MetricsRegistry). Path template is used as metrics key, literal
+         * paths are normalized. Disabled by default.
+         */
+        public Builder metrics(MetricsRecorder value) { this.metrics = value; return this; }
 
         public RestTemplateClient client() {
             if(template == null) throw new IllegalStateException("No template");
@@ -140,10 +819,399 @@ public class RestTemplateClient {
             client.template = this.template;
             client.responseValidator = this.responseValidator;
             client.headers = this.headers;
+            client.executor = this.executor;
+            client.cache = this.cache;
+            if(coalesce) client.inflight = new ConcurrentHashMap<>();
+            client.circuitBreaker = this.circuitBreaker;
+            client.limiter = this.limiter;
+            client.retry = this.retry;
+            if((this.hedging != null) && (this.hedging.requestFactory() == null)) {
+                log.warn("hedging disabled - Hedging.requestFactory() is not set, slower request could not be aborted");
+            } else {
+                client.hedging = this.hedging;
+            }
+            client.streamingRequestFactory = this.streamingRequestFactory;
+            client.name = this.name;
+            client.metrics = this.metrics;
+            if(maxConcurrency > 0) client.concurrency = new Semaphore(maxConcurrency, true);
             return client;
         }
     }
 
+    private Template uriTemplate(String path) {
+        Template template = templates.get(path);
+        if(template == null) {
+            template = Template.compile(path);
+            if(templates.size() < 1000) templates.put(path, template);
+        }
+        return template;
+    }
+
+    /**
+     * Parsed uri template. Literal parts are kept as they are (only
+     * characters not allowed in uri are encoded), variables are encoded
+     * as uri component.
+     */
+    protected static class Template {
+        private final String[] literals;
+        private final int vars;
+
+        private Template(String[] literals) {
+            this.literals = literals;
+            this.vars = literals.length - 1;
+        }
+
+        private static Template compile(String template) {
+            List<String> literals = new ArrayList<>();
+            StringBuilder sb = new StringBuilder();
+            int pos = 0;
+            while(pos < template.length()) {
+                int start = template.indexOf('{', pos);
+                int end = start < 0 ? -1 : template.indexOf('}', start);
+                if(end < 0) break;
+                literal(template.substring(pos, start), sb);
+                literals.add(sb.toString());
+                sb.setLength(0);
+                pos = end + 1;
+            }
+            literal(template.substring(pos), sb);
+            literals.add(sb.toString());
+            return new Template(literals.toArray(new String[0]));
+        }
+
+        private void expand(Object[] values, StringBuilder out) {
+            if(values.length < vars) throw new IllegalArgumentException("Not enough variables to expand template, expected " + vars + " got " + values.length);
+            out.append(literals[0]);
+            for(int i = 0; i < vars; i++) {
+                encode(String.valueOf(values[i]), out);
+                out.append(literals[i + 1]);
+            }
+        }
+
+        private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+        private static boolean unreserved(char c) {
+            return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                || c == '-' || c == '.' || c == '_' || c == '~';
+        }
+
+        private static boolean allowed(char c) {
+            return unreserved(c) || ":/?#[]@!$&'()*+,;=%".indexOf(c) >= 0;
+        }
+
+        /**
+         * Appends value encoding all characters except unreserved ones.
+         */
+        static void encode(String value, StringBuilder out) {
+            encode(value, out, false);
+        }
+
+        /**
+         * Appends value encoding only characters not allowed in uri.
+         */
+        static void literal(String value, StringBuilder out) {
+            encode(value, out, true);
+        }
+
+        private static void encode(String value, StringBuilder out, boolean literal) {
+            int len = value.length();
+            int i = 0;
+            while(i < len) {
+                char c = value.charAt(i);
+                if(literal ? allowed(c) : unreserved(c)) {
+                    out.append(c);
+                    i++;
+                    continue;
+                }
+                int end = i + 1;
+                if(Character.isHighSurrogate(c) && (end < len)) end++;
+                for(byte b : value.substring(i, end).getBytes(StandardCharsets.UTF_8)) {
+                    out.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+                }
+                i = end;
+            }
+        }
+    }
+
+    /**
+     * Interceptor chain for streamed body. Interceptors get request as
+     * StreamedBodyRequest and body prefix only. Last execution streams
+     * whole body to request.
+     */
+    private static class StreamedExecution implements ClientHttpRequestExecution, StreamedBodyRequest {
+        private final ClientHttpRequest request;
+        private final StreamingBody body;
+        private final Iterator<ClientHttpRequestInterceptor> interceptors;
+
+        private StreamedExecution(ClientHttpRequest request, StreamingBody body, Iterator<ClientHttpRequestInterceptor> interceptors) {
+            this.request = request;
+            this.body = body;
+            this.interceptors = interceptors;
+        }
+
+        @Override
+        public ClientHttpResponse execute(HttpRequest httpRequest, byte[] prefix) throws IOException {
+            if(interceptors.hasNext()) return interceptors.next().intercept(httpRequest, prefix, this);
+            if(httpRequest != this) {
+                httpRequest.getHeaders().forEach((key, values) -> request.getHeaders().put(key, new ArrayList<>(values)));
+            }
+            if(request instanceof StreamingHttpOutputMessage) {
+                ((StreamingHttpOutputMessage)request).setBody(body::writeTo);
+            } else {
+                body.writeTo(request.getBody());
+            }
+            return request.execute();
+        }
+
+        @Override public long contentLength() { return body.length(); }
+        @Override public String getMethodValue() { return request.getMethodValue(); }
+        @Override public URI getURI() { return request.getURI(); }
+        @Override public HttpHeaders getHeaders() { return request.getHeaders(); }
+    }
+
+    /**
+     * Request body which is streamed instead of converted by message converters.
+     */
+    private abstract static class StreamingBody {
+        /** Size of body prefix passed to interceptors. */
+        private static final int PREFIX = 8 * 1024;
+        abstract long length();
+        abstract byte[] prefix(int max) throws IOException;
+        abstract void writeTo(OutputStream os) throws IOException;
+        boolean repeatable() { return true; }
+    }
+
+    private static class PathBody extends StreamingBody {
+        private final Path path;
+        private PathBody(Path path) { this.path = path; }
+
+        @Override
+        long length() {
+            try {
+                return Files.size(path);
+            } catch(IOException e) {
+                return -1;
+            }
+        }
+
+        @Override
+        byte[] prefix(int max) throws IOException {
+            try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocate((int)Math.min(max, channel.size()));
+                while(buffer.hasRemaining() && (channel.read(buffer, buffer.position()) > 0)) {}
+                return buffer.array();
+            }
+        }
+
+        @Override
+        void writeTo(OutputStream os) throws IOException {
+            // request body is OutputStream, so file is copied in chunks (no sendfile)
+            Files.copy(path, os);
+        }
+    }
+
+    private static class InputStreamBody extends StreamingBody {
+        private final long length;
+        private InputStream is;
+        private byte[] prefix = null;
+        private InputStreamBody(InputStream is, long length) { this.is = is; this.length = length; }
+
+        @Override long length() { return length; }
+        @Override boolean repeatable() { return false; }
+
+        @Override
+        byte[] prefix(int max) throws IOException {
+            if(prefix == null) {
+                prefix = is.readNBytes(max);
+                is = new SequenceInputStream(new ByteArrayInputStream(prefix), is);
+            }
+            return prefix;
+        }
+
+        @Override
+        void writeTo(OutputStream os) throws IOException {
+            is.transferTo(os);
+        }
+    }
+
+    private static class ByteBufferBody extends StreamingBody {
+        private final ByteBuffer buffer;
+        private ByteBufferBody(ByteBuffer buffer) { this.buffer = buffer; }
+
+        @Override long length() { return buffer.remaining(); }
+
+        @Override
+        byte[] prefix(int max) {
+            ByteBuffer b = buffer.duplicate();
+            byte[] rv = new byte[Math.min(max, b.remaining())];
+            b.get(rv);
+            return rv;
+        }
+
+        @Override
+        void writeTo(OutputStream os) throws IOException {
+            ByteBuffer b = buffer.duplicate();
+            if(b.hasArray()) {
+                os.write(b.array(), b.arrayOffset() + b.position(), b.remaining());
+            } else {
+                WritableByteChannel target = Channels.newChannel(os);
+                while(b.hasRemaining()) target.write(b);
+            }
+        }
+    }
+
+    /**
+     * Hedged call. Primary attempt runs in calling thread, hedged attempt
+     * is started by timer in client executor. Attempt which completes
+     * result first aborts the other one.
+     */
+    private static class HedgedCall<T> {
+        private static volatile ScheduledThreadPoolExecutor timer = null;
+
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private final CompletableFuture<Void> hedgeDone = new CompletableFuture<>();
+        private final Attempt primary = new Attempt(true);
+        private final Attempt hedge = new Attempt(false);
+        private volatile ScheduledFuture<?> scheduled = null;
+
+        private static ScheduledThreadPoolExecutor timer() {
+            if(timer == null) {
+                synchronized(HedgedCall.class) {
+                    if(timer == null) {
+                        ScheduledThreadPoolExecutor t = new ScheduledThreadPoolExecutor(1, r -> {
+                            Thread thread = new Thread(r, "rest-client-hedge");
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+                        t.setRemoveOnCancelPolicy(true);
+                        timer = t;
+                    }
+                }
+            }
+            return timer;
+        }
+
+        /**
+         * Schedules hedged attempt. Timer only hands attempt to executor,
+         * so it never waits for request.
+         */
+        private void schedule(long delay, Executor executor, Supplier<T> task, String parent) {
+            try {
+                scheduled = timer().schedule(() -> {
+                    try {
+                        executor.execute(() -> run(task, parent));
+                    } catch(RejectedExecutionException e) {
+                        if(hedge.claim()) hedgeDone.complete(null);
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            } catch(RejectedExecutionException e) {
+                if(hedge.claim()) hedgeDone.complete(null);
+            }
+        }
+
+        private void unschedule() {
+            ScheduledFuture<?> f = scheduled;
+            if(f != null) f.cancel(false);
+        }
+
+        private void run(Supplier<T> task, String parent) {
+            // primary attempt already finished
+            if(!hedge.claim()) return;
+            CorrelationId.Scope scope = parent == null ? null : CorrelationId.open(parent);
+            try {
+                if(result.complete(task.get())) primary.cancel();
+            } catch(Throwable e) {
+                // response of primary attempt is used
+            } finally {
+                if(scope != null) scope.close();
+                hedgeDone.complete(null);
+            }
+        }
+
+        /**
+         * One attempt of hedged call.
+         */
+        private static class Attempt {
+            private final boolean primary;
+            private final AtomicBoolean claimed = new AtomicBoolean();
+            private volatile boolean cancelled = false;
+            private volatile Runnable abort = null;
+
+            private Attempt(boolean primary) { this.primary = primary; }
+
+            private boolean primary() { return primary; }
+            private boolean cancelled() { return cancelled; }
+            private boolean claim() { return claimed.compareAndSet(false, true); }
+
+            /**
+             * Cancels attempt. Running request is aborted (its connection
+             * is closed), so it stops and releases its permits.
+             */
+            private void cancel() {
+                claimed.set(true);
+                cancelled = true;
+                Runnable a = abort;
+                if(a != null) a.run();
+            }
+
+            /**
+             * Factory of requests with template interceptors which remembers
+             * abort of created request.
+             */
+            private ClientHttpRequestFactory factory(RestTemplate template, Hedging.AbortableRequestFactory raw) {
+                ClientHttpRequestFactory abortable = (uri, method) -> {
+                    ClientHttpRequest request = raw.createRequest(uri, method);
+                    Runnable a = raw.abort(request);
+                    if(a != null) {
+                        abort = a;
+                        if(cancelled) a.run();
+                    }
+                    if(cancelled) throw new IOException("Hedged request cancelled");
+                    return request;
+                };
+                List<ClientHttpRequestInterceptor> interceptors = template.getInterceptors();
+                return interceptors.isEmpty() ? abortable : new InterceptingClientHttpRequestFactory(abortable, interceptors);
+            }
+        }
+    }
+
+    /**
+     * Default executor for async calls. Virtual thread per task executor if
+     * available (JDK 21+), bounded daemon thread pool otherwise.
+     */
+    public static class DefaultExecutor {
+        private static volatile Executor instance = null;
+
+        public static Executor instance() {
+            if(instance == null) {
+                synchronized(DefaultExecutor.class) {
+                    if(instance == null) instance = create();
+                }
+            }
+            return instance;
+        }
+
+        private static Executor create() {
+            try {
+                Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (Executor)method.invoke(null);
+            } catch(Exception e) {
+                log.debug("virtual threads not available, using thread pool");
+            }
+            int size = Math.max(8, Runtime.getRuntime().availableProcessors() * 4);
+            AtomicInteger counter = new AtomicInteger();
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(size, size, 60, TimeUnit.SECONDS
+                , new LinkedBlockingQueue<>()
+                , r -> {
+                    Thread t = new Thread(r, "rest-client-" + counter.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+            pool.allowCoreThreadTimeOut(true);
+            return pool;
+        }
+    }
+
     public static class Headers {
 
         public static BiFunction<String, Object, HttpHeaders> contentTypeOnly(MediaType contentType) {
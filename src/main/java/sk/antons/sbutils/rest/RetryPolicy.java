@@ -0,0 +1,139 @@
+/*
+ *
+ */
+package sk.antons.sbutils.rest;
+
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+import org.springframework.http.HttpMethod;
+import org.springframework.web.client.HttpStatusCodeException;
+
+/**
+ * Retry policy for RestTemplateClient. Failed calls are retried with
+ * exponential backoff and jitter. Only idempotent methods are retried and
+ * only for configured statuses (default 502, 503, 504) or IO errors.
+ *
+ * Retries are limited by retry budget. Each call deposits budgetRatio
+ * tokens and each retry withdraws one token, so retries can not multiply
+ * load of failing downstream. minRetriesPerSecond retries are always
+ * permitted.
+ *
+ * {@code <pre>}
+ * RestTemplateClient.Builder.instance()
+ *     .retry(RetryPolicy.instance().maxAttempts(3).backoff(100, 2000))
+ * {@code </pre>}
+ *
+ * @author antons
+ */
+public class RetryPolicy {
+
+    private int maxAttempts = 3;
+    private long initialBackoff = 100;
+    private long maxBackoff = 2000;
+    private double multiplier = 2.0;
+    private double jitter = 0.5;
+    private int[] statuses = new int[] {502, 503, 504};
+    private Predicate<Throwable> exceptions = RetryPolicy::ioError;
+    private Set<HttpMethod> methods = EnumSet.of(HttpMethod.GET, HttpMethod.HEAD, HttpMethod.PUT
+        , HttpMethod.DELETE, HttpMethod.OPTIONS, HttpMethod.TRACE);
+    private double budgetRatio = 0.1;
+    private int minRetriesPerSecond = 10;
+
+    private double balance = 10;
+    private long lastRefill = System.currentTimeMillis();
+
+    private RetryPolicy() {}
+    public static RetryPolicy instance() { return new RetryPolicy(); }
+
+    /** Max number of attempts including first one (default 3). */
+    public RetryPolicy maxAttempts(int value) { this.maxAttempts = Math.max(1, value); return this; }
+    /** Backoff before first retry and max backoff in millis (default 100 and 2000). */
+    public RetryPolicy backoff(long initial, long max) { this.initialBackoff = initial; this.maxBackoff = max; return this; }
+    /** Backoff multiplier (default 2). */
+    public RetryPolicy multiplier(double value) { this.multiplier = value; return this; }
+    /** Part of backoff which is randomized 0-1 (default 0.5). */
+    public RetryPolicy jitter(double value) { this.jitter = Math.max(0, Math.min(1, value)); return this; }
+    /** Http statuses which are retried (default 502, 503, 504). */
+    public RetryPolicy statuses(int... value) { this.statuses = value == null ? new int[0] : value; return this; }
+    /** Exceptions which are retried (default IOException in cause chain). */
+    public RetryPolicy exceptions(Predicate<Throwable> value) { this.exceptions = value; return this; }
+    /** Methods which are retried (default idempotent ones). */
+    public RetryPolicy methods(HttpMethod... value) {
+        this.methods = EnumSet.noneOf(HttpMethod.class);
+        if(value != null) for(HttpMethod method : value) methods.add(method);
+        return this;
+    }
+    /** Ratio of retries to calls permitted by budget (default 0.1). */
+    public RetryPolicy budgetRatio(double value) { this.budgetRatio = value; return this; }
+    /** Retries per second permitted regardless of budget ratio (default 10). */
+    public RetryPolicy minRetriesPerSecond(int value) { this.minRetriesPerSecond = value; this.balance = value; return this; }
+
+    int maxAttempts() { return maxAttempts; }
+
+    /**
+     * Deposits budget for new call.
+     */
+    synchronized void deposit() {
+        balance = Math.min(balance + budgetRatio, maxBalance());
+    }
+
+    private double maxBalance() {
+        return Math.max(10, minRetriesPerSecond) + 100 * budgetRatio;
+    }
+
+    private synchronized boolean withdraw() {
+        long now = System.currentTimeMillis();
+        if(now > lastRefill) {
+            balance = Math.min(balance + (now - lastRefill) * minRetriesPerSecond / 1000.0, maxBalance());
+            lastRefill = now;
+        }
+        if(balance < 1) return false;
+        balance -= 1;
+        return true;
+    }
+
+    /**
+     * @return true if call failed with given exception should be retried.
+     */
+    boolean retry(HttpMethod method, RestTemplateClient.HttpException e, int attempt) {
+        if(attempt >= maxAttempts) return false;
+        if(!methods.contains(method)) return false;
+        if(!retryable(e)) return false;
+        return withdraw();
+    }
+
+    private boolean retryable(RestTemplateClient.HttpException e) {
+        Throwable error = e.getError();
+        if((error instanceof CircuitBreaker.OpenException) || (error instanceof ConcurrencyLimiter.LimitExceededException)) return false;
+        int status = -1;
+        if(e.getStatus() != null) status = e.getStatus().value();
+        else if(error instanceof HttpStatusCodeException) status = ((HttpStatusCodeException)error).getRawStatusCode();
+        if(status > 0) {
+            for(int s : statuses) {
+                if(s == status) return true;
+            }
+            return false;
+        }
+        return (error != null) && (exceptions != null) && exceptions.test(error);
+    }
+
+    /**
+     * @return backoff before given retry in millis
+     */
+    long backoff(int attempt) {
+        double value = initialBackoff * Math.pow(multiplier, attempt - 1);
+        value = Math.min(value, maxBackoff);
+        return (long)(value * (1 - jitter * ThreadLocalRandom.current().nextDouble()));
+    }
+
+    private static boolean ioError(Throwable t) {
+        while(t != null) {
+            if(t instanceof IOException) return true;
+            t = t.getCause();
+        }
+        return false;
+    }
+}
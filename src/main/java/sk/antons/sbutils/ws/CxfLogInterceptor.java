@@ -3,29 +3,60 @@
  */
 package sk.antons.sbutils.ws;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
 import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
+import java.util.function.LongConsumer;
 import org.apache.cxf.binding.soap.interceptor.AbstractSoapInterceptor;
 import org.apache.cxf.interceptor.Fault;
+import org.apache.cxf.message.Exchange;
+import org.apache.cxf.message.Message;
+import org.apache.cxf.message.MessageUtils;
+import org.apache.cxf.phase.AbstractPhaseInterceptor;
 import org.apache.cxf.phase.Phase;
-import sk.antons.jaul.binary.Bytes;
 import sk.antons.jaul.util.AsRuntimeEx;
-import sk.antons.jaul.xml.XmlFormat;
+import sk.antons.sbutils.journal.Journal;
+import sk.antons.sbutils.log.AsyncLogger;
+import sk.antons.sbutils.log.BufferPool;
+import sk.antons.sbutils.log.CappedBuffer;
+import sk.antons.sbutils.log.CorrelationId;
+import sk.antons.sbutils.log.Masking;
+import sk.antons.sbutils.log.MultipartFilter;
+import sk.antons.sbutils.log.XmlCompactor;
+import sk.antons.sbutils.log.TeeInputStream;
+import sk.antons.sbutils.metrics.MetricsRecorder;
 /**
  *
  * @author antons
  */
 public class CxfLogInterceptor extends AbstractSoapInterceptor {
     private static final String LOG_SETUP = CxfLogInterceptor.class.getName() + ".log-setup";
+    private static final String CORRELATION_ID = CxfLogInterceptor.class.getName() + ".correlation-id";
+    private static final String OUT_STREAM = CxfLogInterceptor.class.getName() + ".out-stream";
+    private static final String START = CxfLogInterceptor.class.getName() + ".start";
+    private static final String METRICS = CxfLogInterceptor.class.getName() + ".metrics";
+    private static final String IN_SIZE = CxfLogInterceptor.class.getName() + ".in-size";
+    private static final String OUT_SIZE = CxfLogInterceptor.class.getName() + ".out-size";
+    private static final String IN_CAPTURE = CxfLogInterceptor.class.getName() + ".in-capture";
+    private static final int DEFAULT_LIMIT = 64 * 1024;
+    private static final BufferPool DEFAULT_POOL = BufferPool.instance(DEFAULT_LIMIT, 32);
     private Consumer<String> logger = null;
     private BooleanSupplier loggerEnabled = null;
     private boolean out = false;
     private boolean forceOneLine = false;
+    private String name = null;
+    private MetricsRecorder metrics = null;
+    private int bodyLimit = DEFAULT_LIMIT;
+    private BufferPool pool = null;
+    private Masking masking = null;
+    private Journal journal = null;
 
     public CxfLogInterceptor(boolean out) {
         super(out?Phase.MARSHAL:Phase.RECEIVE);
@@ -40,32 +71,164 @@ public class CxfLogInterceptor extends AbstractSoapInterceptor {
 
     public CxfLogInterceptor logger(Consumer<String> value) { this.logger = value; return this; }
     public CxfLogInterceptor loggerEnabled(BooleanSupplier value) { this.loggerEnabled = value; return this; }
+    /**
+     * Logs xml in one line. Whitespaces are removed by XmlCompactor while
+     * message is captured (no String copies of message).
+     */
     public CxfLogInterceptor forceOneLine(boolean value) { this.forceOneLine = value; return this; }
+    /**
+     * Max number of logged message bytes (default 64KB). Longer messages
+     * are logged with truncation marker. Messages are captured while they
+     * are written/read by CXF into pooled buffers, so they are not copied
+     * in memory.
+     */
+    public CxfLogInterceptor bodyLimit(int value) { this.bodyLimit = value; this.pool = null; return this; }
+    /**
+     * Masks configured xml elements and attributes while message is captured.
+     */
+    public CxfLogInterceptor masking(Masking value) { this.masking = value; return this; }
+    /**
+     * Records latency, status and sizes of each exchange (see MetricsRegistry).
+     * Operation name is used as method. It is enough to set it to one of
+     * in/out interceptors.
+     */
+    public CxfLogInterceptor metrics(MetricsRecorder value) { this.metrics = value; return this; }
+    /**
+     * Client name used in metrics (host of endpoint address by default).
+     */
+    public CxfLogInterceptor name(String value) { this.name = value; return this; }
+    /**
+     * Writes every message (protocol headers and xml part of body) to binary
+     * journal. Operation name is used as method. Journal does not depend on
+     * loggerEnabled. It must be set to both in/out interceptors.
+     */
+    public CxfLogInterceptor journal(Journal value) { this.journal = value; return this; }
 
 
-    private static int counter = 0;
-    private static ThreadLocal<Integer> counterCache = new ThreadLocal<Integer>();
-    private static ThreadLocal<SnifferOutputStream> outstreamCache = new ThreadLocal<SnifferOutputStream>();
+    private String correlationId(Message message) {
+        Exchange exchange = message.getExchange();
+        String id = exchange == null ? null : (String)exchange.get(CORRELATION_ID);
+        if(id == null) {
+            id = CorrelationId.exchangeOrNext();
+            if(exchange != null) exchange.put(CORRELATION_ID, id);
+        }
+        return id;
+    }
+
+    private void printOutStream(Message message) {
+        Exchange exchange = message.getExchange();
+        if(exchange == null) return;
+        SnifferOutputStream stream = (SnifferOutputStream)exchange.get(OUT_STREAM);
+        if(stream == null) return;
+        stream.print();
+    }
+
+    private void registerOutStream(Message message, SnifferOutputStream stream) {
+        Exchange exchange = message.getExchange();
+        if(exchange != null) exchange.put(OUT_STREAM, stream);
+    }
+
+
+    private void start(Message message) {
+        Exchange exchange = message.getExchange();
+        if(exchange == null) return;
+        if(exchange.get(START) == null) exchange.put(START, System.nanoTime());
+        if((metrics != null) && (exchange.get(METRICS) == null)) exchange.put(METRICS, this);
+    }
+
+    /**
+     * Stores size of message. Metrics are recorded when both messages of
+     * exchange are done.
+     */
+    private static void done(Message message, boolean out, long size) {
+        Exchange exchange = message.getExchange();
+        if(exchange == null) return;
+        exchange.put(out ? OUT_SIZE : IN_SIZE, size);
+        CxfLogInterceptor interceptor = (CxfLogInterceptor)exchange.get(METRICS);
+        if(interceptor == null) return;
+        Long other = (Long)exchange.get(out ? IN_SIZE : OUT_SIZE);
+        Long start = (Long)exchange.get(START);
+        if((other == null) || (start == null)) return;
+        exchange.remove(METRICS);
+        long nanos = System.nanoTime() - start;
+        long in = out ? other : size;
+        long outSize = out ? size : other;
+        boolean requestor = MessageUtils.isRequestor(message);
+        interceptor.record(exchange, nanos, requestor ? outSize : in, requestor ? in : outSize);
+    }
+
+    private void record(Exchange exchange, long nanos, long requestSize, long responseSize) {
+        String address = address(exchange);
+        String host = null;
+        String path = null;
+        try {
+            URI uri = address == null ? null : URI.create(address);
+            host = uri == null ? null : uri.getHost();
+            path = uri == null ? null : uri.getRawPath();
+        } catch(IllegalArgumentException e) {
+            path = address;
+        }
+        metrics.record(name == null ? host : name, operation(exchange), MetricsRecorder.normalize(path), status(exchange), nanos, requestSize, responseSize);
+    }
 
-    private int counter() {
-        if(counterCache.get() == null) return 0;
-        return counterCache.get();
+    private static String address(Exchange exchange) {
+        return (exchange == null) || (exchange.getEndpoint() == null) || (exchange.getEndpoint().getEndpointInfo() == null)
+            ? null : exchange.getEndpoint().getEndpointInfo().getAddress();
     }
-    private int counterNext() {
-        int c = ++counter;
-        counterCache.set(c);
-        return c;
+
+    private static String operation(Exchange exchange) {
+        return (exchange == null) || (exchange.getBindingOperationInfo() == null) ? "soap" : exchange.getBindingOperationInfo().getName().getLocalPart();
     }
 
-    private void printOutStream() {
-        if(outstreamCache.get() == null) return;
-        outstreamCache.get().print();
+    private static int status(Exchange exchange) {
+        int status = 200;
+        if((exchange.getInFaultMessage() != null) || (exchange.getOutFaultMessage() != null)) status = 500;
+        Integer code = responseCode(exchange.getInMessage());
+        if(code == null) code = responseCode(exchange.getOutMessage());
+        if(code != null) status = code;
+        return status;
     }
 
-    private void registerOutStream(SnifferOutputStream stream) {
-        outstreamCache.set(stream);
+    /**
+     * Appends captured message to journal. Outbound client message and
+     * inbound server message are requests, others are responses.
+     */
+    @SuppressWarnings("unchecked")
+    private void journal(Message message, CappedBuffer body, MultipartFilter filter) {
+        try {
+            filter.close();
+        } catch(IOException e) {
+            // nothing to close
+        }
+        Exchange exchange = message.getExchange();
+        String id = correlationId(message);
+        String address = address(exchange);
+        if(address == null) address = (String)message.get(Message.REQUEST_URL);
+        if((address == null) && (exchange != null)) {
+            // response - url is known by request message
+            Message other = out ? exchange.getInMessage() : exchange.getOutMessage();
+            if(other != null) address = (String)other.get(Message.REQUEST_URL);
+        }
+        Journal.Record record;
+        if(out == MessageUtils.isRequestor(message)) {
+            record = Journal.Record.request(id, operation(exchange), address);
+        } else {
+            Long start = exchange == null ? null : (Long)exchange.get(START);
+            Integer code = responseCode(message);
+            int status = code != null ? code : (exchange == null ? 200 : status(exchange));
+            record = Journal.Record.response(id, operation(exchange), address, status, start == null ? -1 : System.nanoTime() - start);
+        }
+        Map<String, List<String>> headers = (Map<String, List<String>>)message.get(Message.PROTOCOL_HEADERS);
+        record.name(name)
+            .headers(masking == null ? headers : masking.maskHeaders(headers))
+            .body(body.array(), 0, body.size(), filter.total());
+        journal.append(record);
     }
 
+    private static Integer responseCode(Message message) {
+        Object code = message == null ? null : message.get(Message.RESPONSE_CODE);
+        return code instanceof Integer ? (Integer)code : null;
+    }
 
     @Override
     public void handleMessage(org.apache.cxf.binding.soap.SoapMessage message) throws Fault {
@@ -73,27 +236,33 @@ public class CxfLogInterceptor extends AbstractSoapInterceptor {
             boolean logged = message.containsKey(LOG_SETUP);
             if (!logged) {
                 message.put(LOG_SETUP, Boolean.TRUE);
+                start(message);
+                String id = correlationId(message);
+                boolean enabled = (loggerEnabled != null) && loggerEnabled.getAsBoolean() && (logger != null);
                 if(out) {
+                    printInCapture(message); // server side request is complete
                     OutputStream os = message.getContent(OutputStream.class);
                     if(os != null)  {
-                        SnifferOutputStream stream = SnifferOutputStream.instance(os, counterNext(), forceOneLine, logger, loggerEnabled);
-                        registerOutStream(stream);
+                        Capture capture = new Capture("soap-out[" + id + "]: ", enabled, charset(message), message
+                            , size -> done(message, true, size));
+                        SnifferOutputStream stream = SnifferOutputStream.instance(os, capture);
+                        registerOutStream(message, stream);
                         message.setContent(OutputStream.class, stream);
                     } else {
-                        if((loggerEnabled != null) && loggerEnabled.getAsBoolean() && (logger != null)) logger.accept("soap-out["+counterNext()+"]: no data to log");
+                        if(enabled) logger.accept("soap-out["+id+"]: no data to log");
                     }
                 } else {
-                    printOutStream();
-                    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+                    printOutStream(message);
                     InputStream is = message.getContent(InputStream.class);
                     if(is != null)  {
-                        Bytes.transfer(is, bout);
-                        String xml = bout.toString();
-                        message.setContent(InputStream.class, new ByteArrayInputStream(bout.toByteArray()));
-                        if(forceOneLine) xml = XmlFormat.instance(xml, 0).forceoneline().format();
-                        if((loggerEnabled != null) && loggerEnabled.getAsBoolean() && (logger != null)) logger.accept(" soap-in["+counter()+"]: "+ xml);
+                        Capture capture = new Capture(" soap-in[" + id + "]: ", enabled, charset(message), message
+                            , size -> done(message, false, size));
+                        message.setContent(InputStream.class, TeeInputStream.instance(is, capture.sink, capture::print));
+                        if(message.getExchange() != null) message.getExchange().put(IN_CAPTURE, capture);
+                        // stream is not always read to the end or closed
+                        if(message.getInterceptorChain() != null) message.getInterceptorChain().add(new InEndingInterceptor(capture));
                     } else {
-                        if((loggerEnabled != null) && loggerEnabled.getAsBoolean() && (logger != null)) logger.accept(" soap-in["+counter()+"]: no data to log");
+                        if(enabled) logger.accept(" soap-in["+id+"]: no data to log");
                     }
                 }
             }
@@ -102,27 +271,166 @@ public class CxfLogInterceptor extends AbstractSoapInterceptor {
         }
     }
 
+    @Override
+    public void handleFault(org.apache.cxf.binding.soap.SoapMessage message) {
+        printInCapture(message);
+    }
+
+    private void printInCapture(Message message) {
+        Exchange exchange = message.getExchange();
+        Capture capture = exchange == null ? null : (Capture)exchange.get(IN_CAPTURE);
+        if(capture != null) capture.print();
+    }
+
+    private static Charset charset(Message message) {
+        Object encoding = message.get(Message.ENCODING);
+        if(encoding != null) {
+            try {
+                return Charset.forName(encoding.toString());
+            } catch(Exception e) {
+                // default used
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+    private BufferPool pool() {
+        if(pool == null) pool = bodyLimit == DEFAULT_LIMIT ? DEFAULT_POOL : BufferPool.instance(bodyLimit, 32);
+        return pool;
+    }
+
+    /**
+     * Captured message. Body is captured to pooled capped buffer (or only
+     * counted if logging is disabled). Only xml part of MTOM message is
+     * captured, attachments are logged as placeholders. Message is logged
+     * once and buffer is returned to pool after message is formatted.
+     * Writes to sink after message is printed (stream is read after end of
+     * chain) are dropped, so released buffer is never written. If journal
+     * is set, message is captured also to separate journal buffer.
+     */
+    private class Capture {
+        private final String prefix;
+        private final boolean enabled;
+        private final Charset charset;
+        private final Message message;
+        private final LongConsumer onDone;
+        private final CappedBuffer buffer;
+        private final MultipartFilter filter;
+        private final XmlCompactor compactor;
+        private final CappedBuffer journaled;
+        private final MultipartFilter journalFilter;
+        private final OutputStream sink;
+        private boolean printed = false;
+
+        private Capture(String prefix, boolean enabled, Charset charset, Message message, LongConsumer onDone) {
+            this.prefix = prefix;
+            this.enabled = enabled;
+            this.charset = charset;
+            this.message = message;
+            this.onDone = onDone;
+            this.buffer = enabled ? pool().acquire() : CappedBuffer.instance(0);
+            this.compactor = enabled && forceOneLine ? XmlCompactor.instance(buffer) : null;
+            OutputStream xml = compactor == null ? buffer : compactor;
+            this.filter = enabled ? MultipartFilter.instance(masking == null ? xml : masking.xmlStream(xml)) : null;
+            this.journaled = journal == null ? null : CappedBuffer.instance(journal.bodyLimit());
+            this.journalFilter = journal == null ? null : MultipartFilter.instance(masking == null ? journaled : masking.xmlStream(journaled));
+            this.sink = new Sink(enabled ? filter : buffer, journalFilter);
+        }
+
+        private void print() {
+            // no write is in progress and no other will reach buffer after this
+            synchronized(this) {
+                if(printed) return;
+                printed = true;
+            }
+            if(journalFilter != null) journal(message, journaled, journalFilter);
+            if(!enabled) {
+                onDone.accept(buffer.total());
+                return;
+            }
+            try {
+                filter.close();
+            } catch(IOException e) {
+                // nothing to close
+            }
+            onDone.accept(filter.total());
+            AsyncLogger.log(logger, () -> {
+                try {
+                    String xml = buffer.toString(charset);
+                    String attachments = filter.placeholders();
+                    StringBuilder sb = new StringBuilder(prefix.length() + xml.length() + attachments.length() + 32);
+                    sb.append(prefix).append(xml);
+                    if(buffer.truncated()) sb.append("...(truncated, ").append(compactor == null ? buffer.total() : compactor.total()).append(" bytes)");
+                    sb.append(attachments);
+                    return sb.toString();
+                } finally {
+                    pool().release(buffer);
+                }
+            });
+        }
+
+        private class Sink extends OutputStream {
+            private final OutputStream target;
+            private final OutputStream copy;
+
+            private Sink(OutputStream target, OutputStream copy) {
+                this.target = target;
+                this.copy = copy;
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                synchronized(Capture.this) {
+                    if(printed) return;
+                    target.write(b);
+                    if(copy != null) copy.write(b);
+                }
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                synchronized(Capture.this) {
+                    if(printed) return;
+                    target.write(b, off, len);
+                    if(copy != null) copy.write(b, off, len);
+                }
+            }
+        }
+    }
+
+    /**
+     * Logs inbound message at the end of in chain if it was not logged
+     * when stream was closed.
+     */
+    private static class InEndingInterceptor extends AbstractPhaseInterceptor<Message> {
+        private final Capture capture;
+
+        private InEndingInterceptor(Capture capture) {
+            super(Phase.POST_INVOKE);
+            this.capture = capture;
+        }
+
+        @Override
+        public void handleMessage(Message message) throws Fault {
+            capture.print();
+        }
+
+        @Override
+        public void handleFault(Message message) {
+            capture.print();
+        }
+    }
 
     private static class SnifferOutputStream extends OutputStream {
         OutputStream os;
-        int counter;
-        boolean forceOneLine;
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        Consumer<String> logger = null;
-        BooleanSupplier loggerEnabled = null;
-
-        public SnifferOutputStream(OutputStream os, int counter, boolean forceOneLine
-            , Consumer<String> logger
-            , BooleanSupplier loggerEnabled
-        ) {
+        Capture capture;
+
+        public SnifferOutputStream(OutputStream os, Capture capture) {
             this.os = os;
-            this.counter = counter;
-            this.forceOneLine = forceOneLine;
-            this.logger = logger;
-            this.loggerEnabled = loggerEnabled;
+            this.capture = capture;
         }
 
-        public static SnifferOutputStream instance(OutputStream os, int counter, boolean format, Consumer<String> logger, BooleanSupplier loggerEnabled) { return new SnifferOutputStream(os, counter, format, logger, loggerEnabled); }
+        public static SnifferOutputStream instance(OutputStream os, Capture capture) { return new SnifferOutputStream(os, capture); }
 
         @Override
         public void close() throws IOException {
@@ -141,32 +449,24 @@ public class CxfLogInterceptor extends AbstractSoapInterceptor {
         public void write(byte[] b, int off, int len) throws IOException {
             //super.write(b, off, len);
             os.write(b, off, len);
-            baos.write(b, off, len);
+            capture.sink.write(b, off, len);
         }
 
         @Override
         public void write(byte[] b) throws IOException {
             //super.write(b);
             os.write(b);
-            baos.write(b);
+            capture.sink.write(b, 0, b.length);
         }
 
         @Override
         public void write(int i) throws IOException {
             os.write(i);
-            baos.write(i);
+            capture.sink.write(i);
         }
 
-        private boolean notprinted = true;
         public void print() {
-            if((loggerEnabled != null) && loggerEnabled.getAsBoolean() && (logger != null)) {
-                if(notprinted) {
-                    notprinted = false;
-                    String xml = baos.toString();
-                    if(forceOneLine) xml = XmlFormat.instance(xml, 0).forceoneline().format();
-                    logger.accept("soap-out["+counter+"]: "+ xml);
-                }
-            }
+            capture.print();
         }
     }
 }
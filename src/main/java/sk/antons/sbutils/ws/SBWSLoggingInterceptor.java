@@ -1,77 +1,732 @@
 package sk.antons.sbutils.ws;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
 
+import javax.xml.namespace.QName;
+import org.springframework.util.ClassUtils;
+import org.springframework.ws.InvalidXmlException;
 import org.springframework.ws.WebServiceMessage;
+import org.springframework.ws.WebServiceMessageFactory;
 import org.springframework.ws.client.WebServiceIOException;
+import org.springframework.ws.client.core.WebServiceTemplate;
 import org.springframework.ws.client.support.interceptor.ClientInterceptor;
 import org.springframework.ws.context.MessageContext;
-import sk.antons.jaul.xml.XmlFormat;
+import org.springframework.ws.soap.SoapMessage;
+import org.springframework.ws.transport.FaultAwareWebServiceConnection;
+import org.springframework.ws.transport.HeadersAwareSenderWebServiceConnection;
+import org.springframework.ws.transport.TransportInputStream;
+import org.springframework.ws.transport.TransportOutputStream;
+import org.springframework.ws.transport.WebServiceConnection;
+import org.springframework.ws.transport.WebServiceMessageSender;
+import org.springframework.ws.transport.context.TransportContext;
+import org.springframework.ws.transport.context.TransportContextHolder;
+import sk.antons.sbutils.journal.Journal;
+import sk.antons.sbutils.log.AsyncLogger;
+import sk.antons.sbutils.log.BufferPool;
+import sk.antons.sbutils.log.CappedBuffer;
+import sk.antons.sbutils.log.CorrelationId;
+import sk.antons.sbutils.log.Masking;
+import sk.antons.sbutils.log.MultipartFilter;
+import sk.antons.sbutils.log.XmlCompactor;
+import sk.antons.sbutils.metrics.MetricsRecorder;
 
 
+/**
+ * Web service client log interceptor for SB web services.
+ *
+ * Used only as interceptor it serializes messages once more for logging.
+ * If message senders are wrapped by sender() (or addToTemplate() is used)
+ * bytes really sent and received by connection are captured, so logging
+ * costs only one copy of (limited) message.
+ *
+ * @author antons
+ */
 public class SBWSLoggingInterceptor implements ClientInterceptor {
+    private static final String CORRELATION_ID = SBWSLoggingInterceptor.class.getName() + ".correlation-id";
+    private static final String START = SBWSLoggingInterceptor.class.getName() + ".start";
+    private static final String REQUEST_SIZE = SBWSLoggingInterceptor.class.getName() + ".request-size";
+    private static final int DEFAULT_LIMIT = 64 * 1024;
+    private static final BufferPool DEFAULT_POOL = BufferPool.instance(DEFAULT_LIMIT, 32);
 
     private Consumer<String> logger = null;
     private BooleanSupplier loggerEnabled = null;
     private boolean forceOneLine = false;
+    private String name = null;
+    private MetricsRecorder metrics = null;
+    private boolean body = true;
+    private boolean headers = false;
+    private int bodyLimit = DEFAULT_LIMIT;
+    private BufferPool pool = null;
+    private Masking masking = null;
+    private Journal journal = null;
 
     private SBWSLoggingInterceptor() {}
     public static SBWSLoggingInterceptor instance() { return new SBWSLoggingInterceptor(); }
 
     public SBWSLoggingInterceptor logger(Consumer<String> value) { this.logger = value; return this; }
     public SBWSLoggingInterceptor loggerEnabled(BooleanSupplier value) { this.loggerEnabled = value; return this; }
+    /**
+     * Logs xml in one line. Whitespaces are removed by XmlCompactor while
+     * message is captured (no String copies of message).
+     */
     public SBWSLoggingInterceptor forceOneLine(boolean value) { this.forceOneLine = value; return this; }
+    /**
+     * Records latency, status and sizes of each call (see MetricsRegistry).
+     * Last part of soap action is used as method. Sizes are known only
+     * when messages are logged or captured by wrapped sender.
+     */
+    public SBWSLoggingInterceptor metrics(MetricsRecorder value) { this.metrics = value; return this; }
+    /**
+     * Client name used in metrics (host of connection uri by default).
+     */
+    public SBWSLoggingInterceptor name(String value) { this.name = value; return this; }
+    /**
+     * If false body is not captured at all and only size of messages is
+     * logged (default true).
+     */
+    public SBWSLoggingInterceptor body(boolean value) { this.body = value; return this; }
+    /**
+     * If true transport headers are logged (default false). Headers are
+     * known only with wrapped sender.
+     */
+    public SBWSLoggingInterceptor headers(boolean value) { this.headers = value; return this; }
+    /**
+     * Masks configured headers, xml elements and attributes while message
+     * is captured.
+     */
+    public SBWSLoggingInterceptor masking(Masking value) { this.masking = value; return this; }
+    /**
+     * Max number of logged message bytes (default 64KB). Longer messages
+     * are logged with truncation marker.
+     */
+    public SBWSLoggingInterceptor bodyLimit(int value) { this.bodyLimit = value; this.pool = null; return this; }
+    /**
+     * Writes every request and response (transport headers and xml part of
+     * body) to binary journal. Last part of soap action is used as method.
+     * Messages are journaled only with wrapped sender and journal does not
+     * depend on loggerEnabled or body settings.
+     */
+    public SBWSLoggingInterceptor journal(Journal value) { this.journal = value; return this; }
+
+    /**
+     * Wraps sender so messages are logged from bytes really written to
+     * and read from connection. Connections created by wrapped sender are
+     * wrappers too, so code which casts TransportContext connection to
+     * transport specific class (HttpUrlConnection, HttpComponentsConnection)
+     * must use unwrap() first.
+     */
+    public WebServiceMessageSender sender(WebServiceMessageSender sender) {
+        if(sender instanceof LoggingSender) return sender;
+        return new LoggingSender(sender);
+    }
+
+    /**
+     * Wraps all template message senders and adds interceptor to template.
+     * Template connections are wrapped (see sender() and unwrap()).
+     */
+    public void addToTemplate(WebServiceTemplate template) {
+        WebServiceMessageSender[] senders = template.getMessageSenders();
+        if(senders != null) {
+            WebServiceMessageSender[] wrapped = new WebServiceMessageSender[senders.length];
+            for(int i = 0; i < senders.length; i++) wrapped[i] = sender(senders[i]);
+            template.setMessageSenders(wrapped);
+        }
+        ClientInterceptor[] interceptors = template.getInterceptors();
+        List<ClientInterceptor> list = interceptors == null ? new ArrayList<>() : new ArrayList<>(Arrays.asList(interceptors));
+        if(!list.contains(this)) list.add(this);
+        template.setInterceptors(list.toArray(new ClientInterceptor[list.size()]));
+    }
+
+    /**
+     * @return connection wrapped by logging sender or connection itself
+     * if it is not wrapped
+     */
+    public static WebServiceConnection unwrap(WebServiceConnection connection) {
+        while(connection instanceof LoggingConnection) connection = ((LoggingConnection)connection).connection;
+        return connection;
+    }
+
+    private boolean enabled() {
+        return (loggerEnabled != null) && loggerEnabled.getAsBoolean() && (logger != null);
+    }
+
+    private BufferPool pool() {
+        if(pool == null) pool = bodyLimit == DEFAULT_LIMIT ? DEFAULT_POOL : BufferPool.instance(bodyLimit, 32);
+        return pool;
+    }
 
     @Override
     public boolean handleRequest(MessageContext messageContext) {
-        log(messageContext.getRequest(), "soap-out["+counterNext()+"]");
+        String id = correlationId(messageContext);
+        LoggingConnection connection = connection();
+        if(connection != null) {
+            connection.id = id;
+            if((metrics != null) || (journal != null)) connection.operation = operation(messageContext.getRequest());
+            return true;
+        }
+        long size = log(messageContext.getRequest(), "soap-out["+id+"]");
+        if(metrics != null) {
+            messageContext.setProperty(REQUEST_SIZE, size);
+            messageContext.setProperty(START, System.nanoTime());
+        }
         return true;
     }
 
     @Override
     public boolean handleResponse(MessageContext messageContext) {
-        log(messageContext.getResponse(), " soap-in["+counter()+"]");
+        LoggingConnection connection = connection();
+        if(connection != null) {
+            connection.status = 200;
+            return true;
+        }
+        long size = log(messageContext.getResponse(), " soap-in["+correlationId(messageContext)+"]");
+        record(messageContext, 200, size);
         return true;
     }
 
     @Override
     public boolean handleFault(MessageContext messageContext) {
-        log(messageContext.getResponse(), " soap-in["+counter()+"]");
+        LoggingConnection connection = connection();
+        if(connection != null) {
+            connection.status = 500;
+            return true;
+        }
+        long size = log(messageContext.getResponse(), " soap-in["+correlationId(messageContext)+"]");
+        record(messageContext, 500, size);
         return true;
     }
 
     @Override
     public void afterCompletion(MessageContext messageContext, Exception ex) {
-        // nothing to do here
+        LoggingConnection connection = connection();
+        if(connection != null) {
+            if((ex != null) && (connection.status != 500)) connection.status = -1;
+            return;
+        }
+        if(ex != null) record(messageContext, -1, -1);
     }
 
-    private void log(WebServiceMessage message, String messageType) {
-        if (loggerEnabled.getAsBoolean()) {
-            try (ByteArrayOutputStream stream = new ByteArrayOutputStream()) {
-                message.writeTo(stream);
-                String xml = stream.toString(StandardCharsets.UTF_8);
-                if(forceOneLine) xml = XmlFormat.instance(xml, 0).forceoneline().format();
-                logger.accept(messageType + ": " + xml);
+    private LoggingConnection connection() {
+        TransportContext context = TransportContextHolder.getTransportContext();
+        if(context == null) return null;
+        WebServiceConnection connection = context.getConnection();
+        if((connection instanceof LoggingConnection) && (((LoggingConnection)connection).owner() == this)) return (LoggingConnection)connection;
+        return null;
+    }
+
+    /**
+     * Logs message. Only xml part of MTOM/SwA message is logged, attachments
+     * are replaced by placeholders (content id, type and size) and their
+     * content is not buffered. If body is not logged only size of message
+     * is logged.
+     * @return size of logged message or -1 if message is not logged
+     */
+    private long log(WebServiceMessage message, String messageType) {
+        if(!enabled()) return -1;
+        if(!body) {
+            // message is only counted
+            CappedBuffer counter = CappedBuffer.instance(0);
+            try {
+                message.writeTo(counter);
             } catch (IOException e) {
                 throw new WebServiceIOException("Error logging " + messageType, e);
             }
+            logger.accept(messageType + ": " + counter.total() + " bytes");
+            return counter.total();
+        }
+        CappedBuffer buffer = pool().acquire();
+        boolean deferred = false;
+        try {
+            XmlCompactor compactor = forceOneLine ? XmlCompactor.instance(buffer) : null;
+            OutputStream xml = compactor == null ? buffer : compactor;
+            MultipartFilter filter = MultipartFilter.instance(masking == null ? xml : masking.xmlStream(xml));
+            message.writeTo(filter);
+            filter.close();
+            // buffer is released by message supplier from now
+            deferred = true;
+            AsyncLogger.log(logger, () -> {
+                try {
+                    StringBuilder sb = new StringBuilder(messageType.length() + buffer.size() + 32);
+                    sb.append(messageType).append(": ").append(buffer.toString(StandardCharsets.UTF_8));
+                    if(buffer.truncated()) sb.append("...(truncated, ").append(compactor == null ? buffer.total() : compactor.total()).append(" bytes)");
+                    sb.append(filter.placeholders());
+                    return sb.toString();
+                } finally {
+                    pool().release(buffer);
+                }
+            });
+            return filter.total();
+        } catch (IOException e) {
+            throw new WebServiceIOException("Error logging " + messageType, e);
+        } finally {
+            if(!deferred) pool().release(buffer);
+        }
+    }
+
+    private void record(MessageContext messageContext, int status, long responseSize) {
+        if(metrics == null) return;
+        Long start = (Long)messageContext.getProperty(START);
+        if(start == null) return;
+        messageContext.removeProperty(START);
+        long nanos = System.nanoTime() - start;
+        Long requestSize = (Long)messageContext.getProperty(REQUEST_SIZE);
+        URI uri = null;
+        TransportContext context = TransportContextHolder.getTransportContext();
+        if(context != null) {
+            try {
+                uri = context.getConnection().getUri();
+            } catch(Exception e) {
+                // no uri available
+            }
         }
+        record(uri, operation(messageContext.getRequest()), status, nanos, requestSize == null ? -1 : requestSize, responseSize);
+    }
+
+    private void record(URI uri, String operation, int status, long nanos, long requestSize, long responseSize) {
+        String host = uri == null ? null : uri.getHost();
+        String path = uri == null ? null : uri.getRawPath();
+        metrics.record(name == null ? host : name, operation, MetricsRecorder.normalize(path)
+            , status, nanos, requestSize, responseSize);
     }
 
-    private static int counter = 0;
-    private static ThreadLocal<Integer> counterCache = new ThreadLocal<Integer>();
+    private static String operation(WebServiceMessage message) {
+        String action = message instanceof SoapMessage ? ((SoapMessage)message).getSoapAction() : null;
+        if(action != null) action = action.replace("\"", "");
+        if((action == null) || action.isEmpty()) return "soap";
+        int pos = Math.max(action.lastIndexOf('/'), action.lastIndexOf('#'));
+        return pos < action.length() - 1 ? action.substring(pos + 1) : action;
+    }
 
-    private int counter() {
-        if(counterCache.get() == null) return 0;
-        return counterCache.get();
+    private static String correlationId(MessageContext messageContext) {
+        String id = (String)messageContext.getProperty(CORRELATION_ID);
+        if(id == null) {
+            id = CorrelationId.exchangeOrNext();
+            messageContext.setProperty(CORRELATION_ID, id);
+        }
+        return id;
     }
-    private int counterNext() {
-        int c = ++counter;
-        counterCache.set(c);
-        return c;
+
+    /**
+     * Sender creating logging connections.
+     */
+    private class LoggingSender implements WebServiceMessageSender {
+        private final WebServiceMessageSender sender;
+
+        private LoggingSender(WebServiceMessageSender sender) {
+            this.sender = sender;
+        }
+
+        @Override
+        public WebServiceConnection createConnection(URI uri) throws IOException {
+            return new LoggingConnection(sender.createConnection(uri));
+        }
+
+        @Override
+        public boolean supports(URI uri) {
+            return sender.supports(uri);
+        }
+    }
+
+    /**
+     * Connection which tees transport streams to captures. Request is
+     * logged when it is written, response when its stream or connection
+     * is closed.
+     */
+    private class LoggingConnection implements FaultAwareWebServiceConnection, HeadersAwareSenderWebServiceConnection {
+        private final WebServiceConnection connection;
+        private final long start = System.nanoTime();
+        private final boolean enabled = enabled();
+        private String id = null;
+        private String operation = "soap";
+        private URI uri = null;
+        private int status = -1;
+        private Capture request = null;
+        private Capture response = null;
+        private boolean closed = false;
+
+        private LoggingConnection(WebServiceConnection connection) {
+            this.connection = connection;
+        }
+
+        private SBWSLoggingInterceptor owner() { return SBWSLoggingInterceptor.this; }
+
+        private boolean active() { return enabled || (metrics != null) || (journal != null); }
+
+        private String id() {
+            if(id == null) id = CorrelationId.exchangeOrNext();
+            return id;
+        }
+
+        @Override
+        public void send(WebServiceMessage message) throws IOException {
+            if(!active()) {
+                connection.send(message);
+                return;
+            }
+            request = new Capture("soap-out[" + id() + "]: ", enabled);
+            try {
+                connection.send(teeing(message, request));
+            } finally {
+                request.print();
+                if(journal != null) journal.append(request.journal(Journal.Record.request(id(), operation, address())));
+            }
+        }
+
+        @Override
+        public WebServiceMessage receive(WebServiceMessageFactory factory) throws IOException {
+            if(!active()) return connection.receive(factory);
+            response = new Capture(" soap-in[" + id() + "]: ", enabled);
+            WebServiceMessage message = connection.receive(new TeeMessageFactory(factory, response));
+            if((message != null) && (status < 0)) status = 200;
+            return message;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                connection.close();
+            } finally {
+                if(!closed) {
+                    closed = true;
+                    if(response != null) response.print();
+                    long nanos = System.nanoTime() - start;
+                    if((journal != null) && (request != null)) {
+                        Journal.Record record = Journal.Record.response(id(), operation, address(), response == null ? -1 : status, nanos);
+                        journal.append(response == null ? record.name(name) : response.journal(record));
+                    }
+                    if((metrics != null) && (request != null)) {
+                        record(uri(), operation, status, nanos
+                            , request.total(), response == null ? -1 : response.total());
+                    }
+                }
+            }
+        }
+
+        private URI uri() {
+            if(uri == null) {
+                try {
+                    uri = connection.getUri();
+                } catch(Exception e) {
+                    // no uri available
+                }
+            }
+            return uri;
+        }
+
+        private String address() {
+            URI value = uri();
+            return value == null ? null : value.toString();
+        }
+
+        @Override
+        public URI getUri() throws URISyntaxException { return connection.getUri(); }
+        @Override
+        public boolean hasError() throws IOException { return connection.hasError(); }
+        @Override
+        public String getErrorMessage() throws IOException { return connection.getErrorMessage(); }
+
+        @Override
+        public boolean hasFault() throws IOException {
+            // not fault aware connection - message must be checked
+            if(connection instanceof FaultAwareWebServiceConnection) return ((FaultAwareWebServiceConnection)connection).hasFault();
+            return true;
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public void setFault(boolean fault) throws IOException {
+            if(connection instanceof FaultAwareWebServiceConnection) ((FaultAwareWebServiceConnection)connection).setFault(fault);
+        }
+
+        @Override
+        public void setFaultCode(QName faultCode) throws IOException {
+            if(connection instanceof FaultAwareWebServiceConnection) ((FaultAwareWebServiceConnection)connection).setFaultCode(faultCode);
+        }
+
+        @Override
+        public Iterator<String> getResponseHeaderNames() throws IOException {
+            if(connection instanceof HeadersAwareSenderWebServiceConnection) return ((HeadersAwareSenderWebServiceConnection)connection).getResponseHeaderNames();
+            return Collections.emptyIterator();
+        }
+
+        @Override
+        public Iterator<String> getResponseHeaders(String name) throws IOException {
+            if(connection instanceof HeadersAwareSenderWebServiceConnection) return ((HeadersAwareSenderWebServiceConnection)connection).getResponseHeaders(name);
+            return Collections.emptyIterator();
+        }
+
+        @Override
+        public void addRequestHeader(String name, String value) throws IOException {
+            if(connection instanceof HeadersAwareSenderWebServiceConnection) ((HeadersAwareSenderWebServiceConnection)connection).addRequestHeader(name, value);
+        }
+    }
+
+    /**
+     * Message view which tees bytes written by writeTo to capture. All
+     * interfaces of message are kept.
+     */
+    private static WebServiceMessage teeing(WebServiceMessage message, Capture capture) {
+        ClassLoader loader = message.getClass().getClassLoader();
+        Class<?>[] interfaces = ClassUtils.getAllInterfacesForClass(message.getClass(), loader);
+        return (WebServiceMessage)Proxy.newProxyInstance(loader, interfaces, (proxy, method, args) -> {
+            try {
+                if("writeTo".equals(method.getName()) && (args != null) && (args.length == 1) && (args[0] instanceof OutputStream)) {
+                    OutputStream os = (OutputStream)args[0];
+                    message.writeTo(os instanceof TransportOutputStream
+                        ? new TeeTransportOutputStream((TransportOutputStream)os, capture)
+                        : new TeeOutputStream(os, capture.sink));
+                    return null;
+                }
+                return method.invoke(message, args);
+            } catch(InvocationTargetException e) {
+                throw e.getCause();
+            }
+        });
+    }
+
+    /**
+     * Message factory which tees read bytes to capture.
+     */
+    private static class TeeMessageFactory implements WebServiceMessageFactory {
+        private final WebServiceMessageFactory factory;
+        private final Capture capture;
+
+        private TeeMessageFactory(WebServiceMessageFactory factory, Capture capture) {
+            this.factory = factory;
+            this.capture = capture;
+        }
+
+        @Override
+        public WebServiceMessage createWebServiceMessage() {
+            return factory.createWebServiceMessage();
+        }
+
+        @Override
+        public WebServiceMessage createWebServiceMessage(InputStream is) throws InvalidXmlException, IOException {
+            if(is instanceof TransportInputStream) {
+                TransportInputStream tis = (TransportInputStream)is;
+                if(capture.headers()) {
+                    for(Iterator<String> names = tis.getHeaderNames(); names.hasNext();) {
+                        String name = names.next();
+                        for(Iterator<String> values = tis.getHeaders(name); values.hasNext();) capture.header(name, values.next());
+                    }
+                }
+                return factory.createWebServiceMessage(new TeeTransportInputStream(tis, capture));
+            }
+            return factory.createWebServiceMessage(is);
+        }
+    }
+
+    /**
+     * Captured message. Body is captured to pooled capped buffer (only
+     * counted if body is not logged). Message is logged once and buffer
+     * is returned to pool after message is formatted. If journal is set,
+     * message is captured also to separate journal buffer.
+     */
+    private class Capture {
+        private final String prefix;
+        private final boolean enabled;
+        private final CappedBuffer buffer;
+        private final MultipartFilter filter;
+        private final XmlCompactor compactor;
+        private final OutputStream sink;
+        private final StringBuilder headers;
+        private final CappedBuffer journaled;
+        private final MultipartFilter journalFilter;
+        private final Map<String, List<String>> journalHeaders;
+        private boolean printed = false;
+
+        private Capture(String prefix, boolean enabled) {
+            this.prefix = prefix;
+            this.enabled = enabled;
+            boolean capture = enabled && body;
+            this.buffer = capture ? pool().acquire() : CappedBuffer.instance(0);
+            this.compactor = capture && forceOneLine ? XmlCompactor.instance(buffer) : null;
+            OutputStream xml = compactor == null ? buffer : compactor;
+            this.filter = capture ? MultipartFilter.instance(masking == null ? xml : masking.xmlStream(xml)) : null;
+            this.journaled = journal == null ? null : CappedBuffer.instance(journal.bodyLimit());
+            this.journalFilter = journal == null ? null : MultipartFilter.instance(masking == null ? journaled : masking.xmlStream(journaled));
+            this.journalHeaders = journal == null ? null : new LinkedHashMap<>();
+            this.sink = journalFilter == null ? (capture ? filter : buffer) : new TeeOutputStream(capture ? filter : buffer, journalFilter);
+            this.headers = enabled && SBWSLoggingInterceptor.this.headers ? new StringBuilder() : null;
+        }
+
+        private boolean headers() {
+            return (headers != null) || (journalHeaders != null);
+        }
+
+        private void header(String name, String value) {
+            if(journalHeaders != null) journalHeaders.computeIfAbsent(name, k -> new ArrayList<>(1)).add(value);
+            if(headers == null) return;
+            if(headers.length() > 0) headers.append(", ");
+            headers.append(name).append(": ").append(masking == null ? value : masking.header(name, value));
+        }
+
+        /**
+         * @return record with captured headers and body
+         */
+        private Journal.Record journal(Journal.Record record) {
+            try {
+                journalFilter.close();
+            } catch(IOException e) {
+                // nothing to close
+            }
+            return record.name(name)
+                .headers(masking == null ? journalHeaders : masking.maskHeaders(journalHeaders))
+                .body(journaled.array(), 0, journaled.size(), journalFilter.total());
+        }
+
+        private long total() {
+            return filter == null ? buffer.total() : filter.total();
+        }
+
+        private void print() {
+            synchronized(this) {
+                if(printed) return;
+                printed = true;
+            }
+            if(!enabled) return;
+            if(filter == null) {
+                logger.accept(prefix + (headers == null ? "" : "[" + headers + "] ") + total() + " bytes");
+                return;
+            }
+            try {
+                filter.close();
+            } catch(IOException e) {
+                // nothing to close
+            }
+            AsyncLogger.log(logger, () -> {
+                try {
+                    String xml = buffer.toString(StandardCharsets.UTF_8);
+                    String attachments = filter.placeholders();
+                    StringBuilder sb = new StringBuilder(prefix.length() + xml.length() + attachments.length() + 32);
+                    sb.append(prefix);
+                    if(headers != null) sb.append('[').append(headers).append("] ");
+                    sb.append(xml);
+                    if(buffer.truncated()) sb.append("...(truncated, ").append(compactor == null ? buffer.total() : compactor.total()).append(" bytes)");
+                    sb.append(attachments);
+                    return sb.toString();
+                } finally {
+                    pool().release(buffer);
+                }
+            });
+        }
+    }
+
+    private static class TeeOutputStream extends OutputStream {
+        private final OutputStream os;
+        private final OutputStream copy;
+
+        private TeeOutputStream(OutputStream os, OutputStream copy) {
+            this.os = os;
+            this.copy = copy;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            os.write(b);
+            copy.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            os.write(b, off, len);
+            copy.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            os.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            os.close();
+        }
+    }
+
+    private static class TeeTransportOutputStream extends TransportOutputStream {
+        private final TransportOutputStream os;
+        private final Capture capture;
+
+        private TeeTransportOutputStream(TransportOutputStream os, Capture capture) {
+            this.os = os;
+            this.capture = capture;
+        }
+
+        @Override
+        public void addHeader(String name, String value) throws IOException {
+            capture.header(name, value);
+            os.addHeader(name, value);
+        }
+
+        @Override
+        protected OutputStream createOutputStream() throws IOException {
+            return new TeeOutputStream(os, capture.sink);
+        }
+    }
+
+    private static class TeeTransportInputStream extends TransportInputStream {
+        private final TransportInputStream is;
+        private final Capture capture;
+
+        private TeeTransportInputStream(TransportInputStream is, Capture capture) {
+            this.is = is;
+            this.capture = capture;
+        }
+
+        @Override
+        protected InputStream createInputStream() throws IOException {
+            return new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    int b = is.read();
+                    if(b > -1) capture.sink.write(b);
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = is.read(b, off, len);
+                    if(n > 0) capture.sink.write(b, off, n);
+                    return n;
+                }
+
+                @Override
+                public int available() throws IOException {
+                    return is.available();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        is.close();
+                    } finally {
+                        capture.print();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public Iterator<String> getHeaderNames() throws IOException { return is.getHeaderNames(); }
+        @Override
+        public Iterator<String> getHeaders(String name) throws IOException { return is.getHeaders(name); }
     }
 }
@@ -0,0 +1,106 @@
+/*
+ *
+ */
+package sk.antons.sbutils.http;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author antons
+ */
+public class ExceptionDedupTest {
+    private final List<Throwable> logged = Collections.synchronizedList(new ArrayList<>());
+    private final List<String> summaries = Collections.synchronizedList(new ArrayList<>());
+
+    private ExceptionDedup dedup(long window) {
+        return ExceptionDedup.instance(logged::add).window(window).summaryLogger(summaries::add);
+    }
+
+    private static Throwable thrown(String message) {
+        try {
+            throw new IllegalStateException(message);
+        } catch(IllegalStateException e) {
+            return e;
+        }
+    }
+
+    @Test
+    public void fingerprint() throws Exception {
+        ExceptionDedup dedup = dedup(60000);
+        dedup.accept(new IllegalStateException("order 1 not found"));
+        dedup.accept(new IllegalStateException("order 22 not found"));
+        dedup.accept(new IllegalStateException("order 3 not found", new RuntimeException()));
+        dedup.accept(new IllegalArgumentException("order 4 not found"));
+        dedup.accept(new IllegalStateException("item 5 not found"));
+        Assert.assertEquals(4, logged.size());
+        Assert.assertEquals(4, dedup.entries().size());
+        dedup.summarize();
+        Assert.assertEquals(1, summaries.size());
+        Assert.assertTrue(summaries.get(0), summaries.get(0).startsWith("exception seen 1 times in last "));
+        Assert.assertTrue(summaries.get(0), summaries.get(0).contains("java.lang.IllegalStateException: order # not found at "));
+    }
+
+    @Test
+    public void framesOfFirstOccurrence() throws Exception {
+        ExceptionDedup dedup = dedup(60000).frames(1);
+        dedup.accept(thrown("x"));
+        dedup.accept(new IllegalStateException("x"));
+        Assert.assertEquals(1, dedup.entries().size());
+        Assert.assertEquals(2, dedup.entries().get(0).count());
+        String frames = dedup.entries().get(0).frames();
+        Assert.assertTrue(frames, frames.startsWith(ExceptionDedupTest.class.getName() + ".thrown:"));
+        Assert.assertFalse(frames, frames.contains(" < "));
+        dedup = dedup(60000).frames(0);
+        dedup.accept(thrown("x"));
+        Assert.assertEquals("", dedup.entries().get(0).frames());
+    }
+
+    @Test
+    public void idleEviction() throws Exception {
+        ExceptionDedup dedup = dedup(50).maxFingerprints(2);
+        dedup.accept(new IllegalStateException("a"));
+        dedup.accept(new IllegalStateException("a"));
+        dedup.accept(new IllegalStateException("b"));
+        // limit reached, nothing is idle
+        dedup.accept(new IllegalStateException("c"));
+        dedup.accept(new IllegalStateException("c"));
+        Assert.assertEquals(2, dedup.entries().size());
+        Assert.assertEquals(4, logged.size());
+        Thread.sleep(100);
+        dedup.accept(new IllegalStateException("c"));
+        Assert.assertEquals(1, dedup.entries().size());
+        Assert.assertEquals("c", dedup.entries().get(0).message());
+        // pending occurrence of evicted fingerprint is summarized
+        Assert.assertEquals(1, summaries.size());
+        Assert.assertTrue(summaries.get(0), summaries.get(0).contains(": a"));
+    }
+
+    @Test
+    public void summarizeEvictsIdle() throws Exception {
+        ExceptionDedup dedup = dedup(50);
+        dedup.accept(new IllegalStateException("a"));
+        dedup.summarize();
+        Assert.assertEquals(1, dedup.entries().size());
+        Thread.sleep(100);
+        dedup.summarize();
+        Assert.assertTrue(dedup.entries().isEmpty());
+    }
+
+    @Test
+    public void scheduledSummaries() throws Exception {
+        try (ExceptionDedup dedup = dedup(50).start()) {
+            for(int i = 0; i < 5; i++) dedup.accept(new IllegalStateException("storm " + i));
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while(summaries.isEmpty() && (System.nanoTime() < deadline)) Thread.sleep(10);
+        }
+        Assert.assertEquals(1, logged.size());
+        Assert.assertEquals(1, summaries.size());
+        Assert.assertTrue(summaries.get(0), summaries.get(0).startsWith("exception seen 4 times in last "));
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ *
+ */
+package sk.antons.sbutils.journal;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author antons
+ */
+public class JournalTest {
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("journal-test");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    private static Journal.Record record(String id, int size) {
+        byte[] body = new byte[size];
+        Arrays.fill(body, (byte)'x');
+        return Journal.Record.response(id, "GET", "http://host/item/" + id, 200, 1000000L).body(body, 0, size, size);
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        byte[] body = "{\"a\":1}".getBytes(StandardCharsets.UTF_8);
+        try (Journal journal = Journal.instance(dir)) {
+            Assert.assertTrue(journal.append(Journal.Record.request("1", "POST", "http://host/api")
+                .name("svc")
+                .headers(Map.of("Content-Type", List.of("application/json")))
+                .body(body, 0, body.length, 100)));
+            Assert.assertTrue(journal.append(Journal.Record.response("1", "POST", "http://host/api", 201, 5000000L).name("svc")));
+        }
+        List<Journal.Record> records = JournalReader.records(dir);
+        Assert.assertEquals(2, records.size());
+        Journal.Record request = records.get(0);
+        Assert.assertEquals(Journal.Record.REQUEST, request.type());
+        Assert.assertEquals("1", request.id());
+        Assert.assertEquals("svc", request.name());
+        Assert.assertEquals("POST", request.method());
+        Assert.assertEquals("http://host/api", request.uri());
+        Assert.assertEquals(List.of("application/json"), request.headers().get("Content-Type"));
+        Assert.assertEquals("{\"a\":1}", new String(request.body(), request.offset(), request.length(), StandardCharsets.UTF_8));
+        Assert.assertEquals(100, request.total());
+        Journal.Record response = records.get(1);
+        Assert.assertEquals(Journal.Record.RESPONSE, response.type());
+        Assert.assertEquals(201, response.status());
+        Assert.assertEquals(5000000L, response.nanos());
+        Assert.assertEquals(0, response.length());
+    }
+
+    @Test
+    public void rotation() throws Exception {
+        try (Journal journal = Journal.instance(dir).segmentSize(4096)) {
+            for(int i = 0; i < 100; i++) Assert.assertTrue(journal.append(record(String.valueOf(i), 200)));
+            // record bigger than segment gets own segment
+            Assert.assertTrue(journal.append(record("big", 10000)));
+            Assert.assertTrue(journal.append(record("last", 10)));
+        }
+        Assert.assertTrue(Journal.segments(dir, "journal").size() > 5);
+        List<Journal.Record> records = JournalReader.records(dir);
+        Assert.assertEquals(102, records.size());
+        for(int i = 0; i < 100; i++) Assert.assertEquals(String.valueOf(i), records.get(i).id());
+        Assert.assertEquals(10000, records.get(100).length());
+        Assert.assertEquals("last", records.get(101).id());
+    }
+
+    @Test
+    public void concurrentAppendsAcrossRotation() throws Exception {
+        int threads = 8;
+        int count = 5000;
+        Journal journal = Journal.instance(dir).segmentSize(16 * 1024);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            Future<?>[] futures = new Future<?>[threads];
+            for(int t = 0; t < threads; t++) {
+                int thread = t;
+                futures[t] = executor.submit(() -> {
+                    start.await();
+                    for(int i = 0; i < count; i++) journal.append(record(thread + "-" + i, i % 50));
+                    return null;
+                });
+            }
+            start.countDown();
+            for(Future<?> future : futures) future.get(60, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdown();
+            journal.close();
+        }
+        Assert.assertEquals(threads * count, journal.appended());
+        Assert.assertEquals(0, journal.failed());
+        List<Journal.Record> records = JournalReader.records(dir);
+        Set<String> ids = new HashSet<>();
+        for(Journal.Record record : records) {
+            Assert.assertTrue(ids.add(record.id()));
+            int i = Integer.parseInt(record.id().substring(record.id().indexOf('-') + 1));
+            Assert.assertEquals(i % 50, record.length());
+        }
+        Assert.assertEquals(threads * count, ids.size());
+    }
+
+    @Test
+    public void retention() throws Exception {
+        try (Journal journal = Journal.instance(dir).segmentSize(4096).maxSegments(3)) {
+            for(int i = 0; i < 1000; i++) journal.append(record(String.valueOf(i), 200));
+        }
+        Assert.assertEquals(3, Journal.segments(dir, "journal").size());
+        List<Journal.Record> records = JournalReader.records(dir);
+        Assert.assertFalse(records.isEmpty());
+        Assert.assertEquals("999", records.get(records.size() - 1).id());
+    }
+
+    @Test
+    public void closeDuringRotation() throws Exception {
+        int threads = 4;
+        Journal journal = Journal.instance(dir).segmentSize(4096);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            AtomicBoolean stop = new AtomicBoolean();
+            Future<?>[] futures = new Future<?>[threads];
+            for(int t = 0; t < threads; t++) {
+                int thread = t;
+                futures[t] = executor.submit(() -> {
+                    for(int i = 0; !stop.get(); i++) journal.append(record(thread + "-" + i, 100));
+                    return null;
+                });
+            }
+            Thread.sleep(50);
+            journal.close();
+            long appended = journal.appended();
+            Thread.sleep(50);
+            stop.set(true);
+            for(Future<?> future : futures) future.get(60, TimeUnit.SECONDS);
+            Assert.assertEquals("no record is appended after close", appended, journal.appended());
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals(journal.appended(), JournalReader.records(dir).size());
+    }
+
+    @Test
+    public void closed() throws Exception {
+        Journal journal = Journal.instance(dir);
+        Assert.assertTrue(journal.append(record("1", 10)));
+        journal.close();
+        Assert.assertFalse(journal.append(record("2", 10)));
+        Assert.assertEquals(1, journal.appended());
+        Assert.assertEquals(1, journal.failed());
+        Assert.assertEquals(1, JournalReader.records(dir).size());
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ *
+ */
+package sk.antons.sbutils.journal;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpResponse;
+
+/**
+ *
+ * @author antons
+ */
+public class ReplayTest {
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("replay-test");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    private static Journal.Record request(String id, String method, String uri, String body) {
+        Journal.Record record = Journal.Record.request(id, method, uri);
+        if(body == null) return record;
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        return record.body(bytes, 0, bytes.length, bytes.length);
+    }
+
+    private static Journal.Record response(String id, String method, String uri, String body) {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        return Journal.Record.response(id, method, uri, 200, 1000L).body(bytes, 0, bytes.length, bytes.length);
+    }
+
+    private static String call(Replay replay, HttpMethod method, String uri, String body) throws IOException {
+        ClientHttpRequest request = replay.requestFactory().createRequest(URI.create(uri), method);
+        if(body != null) request.getBody().write(body.getBytes(StandardCharsets.UTF_8));
+        try (ClientHttpResponse response = request.execute()) {
+            if(response.getRawStatusCode() != 200) return String.valueOf(response.getRawStatusCode());
+            return new String(response.getBody().readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static String get(Replay replay, String uri) throws IOException {
+        return call(replay, HttpMethod.GET, uri, null);
+    }
+
+    @Test
+    public void load() throws Exception {
+        try (Journal journal = Journal.instance(dir)) {
+            // overlapping exchanges are paired by id, method and uri
+            journal.append(request("1", "GET", "http://host/a", null).name("svc"));
+            journal.append(request("2", "GET", "http://host/b", null).name("svc"));
+            journal.append(request("1", "GET", "http://host/c", null).name("svc"));
+            journal.append(response("2", "GET", "http://host/b", "b").name("svc"));
+            journal.append(response("1", "GET", "http://host/c", "c").name("svc"));
+            journal.append(response("1", "GET", "http://host/a", "a").name("svc"));
+            // response without request and other client are ignored
+            journal.append(response("3", "GET", "http://host/d", "d").name("svc"));
+            journal.append(request("4", "GET", "http://host/e", null).name("other"));
+            journal.append(response("4", "GET", "http://host/e", "e").name("other"));
+        }
+        Replay replay = Replay.instance().name("svc").load(dir);
+        Assert.assertEquals(3, replay.size());
+        Assert.assertEquals("a", get(replay, "http://host/a"));
+        Assert.assertEquals("b", get(replay, "http://host/b"));
+        Assert.assertEquals("c", get(replay, "http://host/c"));
+        Assert.assertEquals("404", get(replay, "http://host/d"));
+        Assert.assertEquals("404", get(replay, "http://host/e"));
+        Assert.assertEquals(3, replay.hits());
+        Assert.assertEquals(2, replay.misses());
+    }
+
+    @Test
+    public void normalize() throws Exception {
+        Replay replay = Replay.instance()
+            .ignoreHost(true)
+            .ignoreParams("ts", "nonce")
+            .add(request("1", "GET", "http://HOST:8080/item?b=2&a=1&ts=100", null), response("1", "GET", "", "item"));
+        Assert.assertEquals("item", get(replay, "https://other/item?a=1&b=2"));
+        Assert.assertEquals("item", get(replay, "http://host/item?nonce=x&b=2&ts=200&a=1"));
+        Assert.assertEquals("404", get(replay, "http://host/item?a=1&b=3"));
+        Assert.assertEquals("404", get(replay, "http://host/item?a=1"));
+
+        replay = Replay.instance()
+            .add(request("1", "GET", "http://HOST:80/item", null), response("1", "GET", "", "item"));
+        Assert.assertEquals("item", get(replay, "http://host/item"));
+        Assert.assertEquals("404", get(replay, "http://host:8080/item"));
+        Assert.assertEquals("404", get(replay, "https://host/item"));
+    }
+
+    @Test
+    public void exactBeforeLoose() throws Exception {
+        Replay replay = Replay.instance()
+            .add(request("1", "POST", "http://host/find", "{\"q\":1}"), response("1", "POST", "", "one"))
+            .add(request("2", "POST", "http://host/find", "{\"q\":2}"), response("2", "POST", "", "two"));
+        Assert.assertEquals("one", call(replay, HttpMethod.POST, "http://host/find", "{\"q\":1}"));
+        Assert.assertEquals("two", call(replay, HttpMethod.POST, "http://host/find", "{\"q\":2}"));
+        Assert.assertEquals("one", call(replay, HttpMethod.POST, "http://host/find", "{\"q\":1}"));
+        // unknown body falls back to method and url
+        Assert.assertEquals("one", call(replay, HttpMethod.POST, "http://host/find", "{\"q\":3}"));
+        Assert.assertEquals("two", call(replay, HttpMethod.POST, "http://host/find", "{\"q\":3}"));
+        Assert.assertEquals("404", call(replay, HttpMethod.PUT, "http://host/find", "{\"q\":1}"));
+    }
+
+    @Test
+    public void truncatedBodyIsMatchedLoosely() throws Exception {
+        byte[] body = "{\"q\":1}".getBytes(StandardCharsets.UTF_8);
+        Replay replay = Replay.instance()
+            .add(Journal.Record.request("1", "POST", "http://host/find").body(body, 0, 3, body.length), response("1", "POST", "", "one"));
+        Assert.assertEquals("one", call(replay, HttpMethod.POST, "http://host/find", "{\"q\":1}"));
+        Assert.assertEquals("one", call(replay, HttpMethod.POST, "http://host/find", "{\""));
+    }
+
+    @Test
+    public void roundRobin() throws Exception {
+        Replay replay = Replay.instance();
+        for(int i = 0; i < 3; i++) {
+            replay.add(request("" + i, "GET", "http://host/next", null), response("" + i, "GET", "", "r" + i));
+        }
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < 7; i++) sb.append(get(replay, "http://host/next")).append(' ');
+        Assert.assertEquals("r0 r1 r2 r0 r1 r2 r0 ", sb.toString());
+    }
+}
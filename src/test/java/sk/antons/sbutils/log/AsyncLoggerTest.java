@@ -0,0 +1,116 @@
+/*
+ *
+ */
+package sk.antons.sbutils.log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author antons
+ */
+public class AsyncLoggerTest {
+
+    /**
+     * Target logger which blocks writer thread on first message until
+     * released, so queue can be filled deterministically.
+     */
+    private static class BlockingTarget implements Consumer<String> {
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final List<String> messages = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public void accept(String message) {
+            messages.add(message);
+            entered.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void block(AsyncLogger logger) throws InterruptedException {
+            logger.accept("first");
+            Assert.assertTrue(entered.await(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void drop() throws Exception {
+        BlockingTarget target = new BlockingTarget();
+        AsyncLogger logger = AsyncLogger.instance(target).capacity(4).overflow(AsyncLogger.Overflow.DROP);
+        target.block(logger);
+        for(int i = 0; i < 10; i++) logger.accept("m" + i);
+        Assert.assertEquals(5, logger.enqueued());
+        Assert.assertEquals(6, logger.dropped());
+        target.release.countDown();
+        logger.close();
+        Assert.assertEquals(5, logger.written());
+        Assert.assertEquals(List.of("first", "m0", "m1", "m2", "m3"), target.messages);
+    }
+
+    @Test
+    public void sample() throws Exception {
+        BlockingTarget target = new BlockingTarget();
+        AsyncLogger logger = AsyncLogger.instance(target).capacity(8).sampleRate(2).overflow(AsyncLogger.Overflow.SAMPLE);
+        target.block(logger);
+        // 6 messages fill queue to 3/4, then each 2nd one is accepted until queue is full
+        for(int i = 0; i < 20; i++) logger.accept("m" + i);
+        Assert.assertEquals(9, logger.enqueued());
+        Assert.assertEquals(12, logger.dropped());
+        target.release.countDown();
+        logger.close();
+        Assert.assertEquals(List.of("first", "m0", "m1", "m2", "m3", "m4", "m5", "m7", "m9"), target.messages);
+    }
+
+    @Test
+    public void block() throws Exception {
+        BlockingTarget target = new BlockingTarget();
+        AsyncLogger logger = AsyncLogger.instance(target).capacity(2).overflow(AsyncLogger.Overflow.BLOCK);
+        target.block(logger);
+        CountDownLatch done = new CountDownLatch(1);
+        Thread producer = new Thread(() -> {
+            for(int i = 0; i < 5; i++) logger.accept("m" + i);
+            done.countDown();
+        });
+        producer.start();
+        Assert.assertFalse("producer must wait for space in queue", done.await(200, TimeUnit.MILLISECONDS));
+        target.release.countDown();
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        logger.close();
+        Assert.assertEquals(0, logger.dropped());
+        Assert.assertEquals(6, logger.written());
+        Assert.assertEquals(List.of("first", "m0", "m1", "m2", "m3", "m4"), target.messages);
+    }
+
+    @Test
+    public void deferredMessageIsCreatedByWriter() throws Exception {
+        List<String> messages = Collections.synchronizedList(new ArrayList<>());
+        AsyncLogger logger = AsyncLogger.instance(messages::add).name("test-writer");
+        AsyncLogger.log(logger, () -> Thread.currentThread().getName());
+        logger.defer(() -> { throw new IllegalStateException("boom"); });
+        logger.close();
+        Assert.assertEquals("test-writer", messages.get(0));
+        Assert.assertTrue(messages.get(1).startsWith("unable to create log message"));
+    }
+
+    @Test
+    public void closed() throws Exception {
+        List<String> messages = Collections.synchronizedList(new ArrayList<>());
+        AsyncLogger logger = AsyncLogger.instance(messages::add);
+        logger.accept("a");
+        logger.close();
+        logger.accept("b");
+        Assert.assertEquals(List.of("a"), messages);
+        Assert.assertEquals(1, logger.dropped());
+    }
+}
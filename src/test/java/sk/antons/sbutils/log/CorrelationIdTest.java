@@ -0,0 +1,105 @@
+/*
+ *
+ */
+package sk.antons.sbutils.log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.MDC;
+import org.springframework.web.client.RestTemplate;
+import sk.antons.sbutils.http.LoggingInterceptor;
+import sk.antons.sbutils.rest.RestTemplateClient;
+import sk.antons.sbutils.rest.StubHttp;
+
+/**
+ *
+ * @author antons
+ */
+public class CorrelationIdTest {
+
+    @Test
+    public void uniqueIds() throws Exception {
+        int threads = 16;
+        int count = 10000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        Set<Long> ids = Collections.synchronizedSet(new HashSet<>());
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for(int t = 0; t < threads; t++) {
+                futures.add(executor.submit(() -> {
+                    for(int i = 0; i < count; i++) Assert.assertTrue(ids.add(CorrelationId.nextLong()));
+                }));
+            }
+            for(Future<?> future : futures) future.get(60, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals(threads * count, ids.size());
+    }
+
+    @Test
+    public void exchangeIds() throws Exception {
+        String plain = CorrelationId.nextExchange();
+        Assert.assertTrue(plain, plain.matches("[0-9]+"));
+        try(CorrelationId.Scope scope = CorrelationId.open("req")) {
+            String first = CorrelationId.exchangeOrNext();
+            String second = CorrelationId.exchangeOrNext();
+            Assert.assertTrue(first, first.matches("req\\.[0-9]+"));
+            Assert.assertTrue(second, second.matches("req\\.[0-9]+"));
+            Assert.assertFalse(first.equals(second));
+            try(CorrelationId.Scope exchange = CorrelationId.openExchange(first)) {
+                Assert.assertEquals(first, CorrelationId.exchangeOrNext());
+                Assert.assertEquals(first, MDC.get(CorrelationId.exchangeMdcKey()));
+                Assert.assertEquals("req", CorrelationId.current());
+            }
+            Assert.assertNull(CorrelationId.exchange());
+        }
+        Assert.assertNull(CorrelationId.current());
+    }
+
+    @Test
+    public void interceptorExchanges() throws Exception {
+        StubHttp http = StubHttp.instance(200, "ok");
+        RestTemplate template = new RestTemplate(http);
+        LoggingInterceptor.instance().correlationHeader("X-Correlation-Id").addToTemplate(template);
+        try(CorrelationId.Scope scope = CorrelationId.open("req")) {
+            template.getForObject("http://host/a", String.class);
+            template.getForObject("http://host/b", String.class);
+        }
+        List<String> headers = new ArrayList<>();
+        http.headers.forEach(h -> headers.add(h.getFirst("X-Correlation-Id")));
+        Assert.assertEquals(2, headers.size());
+        Assert.assertTrue(headers.get(0), headers.get(0).matches("req\\.[0-9]+"));
+        Assert.assertTrue(headers.get(1), headers.get(1).matches("req\\.[0-9]+"));
+        Assert.assertFalse(headers.get(0).equals(headers.get(1)));
+    }
+
+    @Test
+    public void clientExchanges() throws Exception {
+        List<String> ids = Collections.synchronizedList(new ArrayList<>());
+        StubHttp http = StubHttp.instance((uri, method) -> {
+            ids.add(CorrelationId.current() + " " + CorrelationId.exchange());
+            return StubHttp.response(200, "ok");
+        });
+        RestTemplateClient client = http.client();
+        try(CorrelationId.Scope scope = CorrelationId.open("req")) {
+            client.get().path("/a").call();
+            client.get().path("/b").callAsync().get(10, TimeUnit.SECONDS);
+        }
+        client.get().path("/c").callAsync().get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(3, ids.size());
+        Assert.assertTrue(ids.get(0), ids.get(0).matches("req req\\.[0-9]+"));
+        Assert.assertTrue(ids.get(1), ids.get(1).matches("req req\\.[0-9]+"));
+        Assert.assertFalse(ids.get(0).equals(ids.get(1)));
+        Assert.assertTrue(ids.get(2), ids.get(2).matches("null [0-9]+"));
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ *
+ */
+package sk.antons.sbutils.log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author antons
+ */
+public class MaskingTest {
+
+    private final Masking masking = Masking.instance()
+        .headers("Authorization")
+        .json("/card/number", "/users/*/password", "/a~1b")
+        .jsonFields("secret")
+        .xml("Password")
+        .xmlAttributes("pin");
+
+    /**
+     * Masks text written at once and byte by byte (chunk boundaries must
+     * not change result).
+     */
+    private static String mask(Function<OutputStream, OutputStream> stream, String text) throws IOException {
+        byte[] data = text.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream whole = new ByteArrayOutputStream();
+        try (OutputStream os = stream.apply(whole)) {
+            os.write(data);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (OutputStream os = stream.apply(bytes)) {
+            for(byte b : data) os.write(b);
+        }
+        String rv = whole.toString(StandardCharsets.UTF_8);
+        Assert.assertEquals("byte by byte", rv, bytes.toString(StandardCharsets.UTF_8));
+        return rv;
+    }
+
+    private String json(String text) throws IOException { return mask(masking::jsonStream, text); }
+    private String xml(String text) throws IOException { return mask(masking::xmlStream, text); }
+
+    @Test
+    public void jsonPointer() throws Exception {
+        Assert.assertEquals("{\"card\":{\"number\":\"****\",\"cvv\":1},\"x\":1}"
+            , json("{\"card\":{\"number\":\"4111 1111\",\"cvv\":1},\"x\":1}"));
+        Assert.assertEquals("{\"a/b\":\"****\",\"number\":\"not masked\"}"
+            , json("{\"a/b\":\"x\",\"number\":\"not masked\"}"));
+    }
+
+    @Test
+    public void jsonWildcard() throws Exception {
+        Assert.assertEquals("{\"users\":[{\"name\":\"a\",\"password\":\"****\"},{\"password\":\"****\"}]}"
+            , json("{\"users\":[{\"name\":\"a\",\"password\":\"p1\"},{\"password\":\"p\\\"2\"}]}"));
+    }
+
+    @Test
+    public void jsonNotStringValues() throws Exception {
+        Assert.assertEquals("{\"card\":{\"number\":\"****\"},\"z\":true}", json("{\"card\":{\"number\":{\"nested\":[1,2]}},\"z\":true}"));
+        Assert.assertEquals("{\"card\":{\"number\":\"****\"}}", json("{\"card\":{\"number\":12345}}"));
+        Assert.assertEquals("{\"card\":{\"number\":\"****\"}}", json("{\"card\":{\"number\":null}}"));
+    }
+
+    @Test
+    public void jsonFieldsAtAnyLevel() throws Exception {
+        Assert.assertEquals("{\"deep\":{\"secret\":\"****\",\"list\":[{\"secret\":\"****\"}]}}"
+            , json("{\"deep\":{\"secret\":\"s\",\"list\":[{\"secret\":[1,{\"a\":2}]}]}}"));
+        Assert.assertEquals("[{\"secret\":\"****\"},{\"card\":{\"number\":\"n\"}}]"
+            , json("[{\"secret\":1},{\"card\":{\"number\":\"n\"}}]"));
+    }
+
+    @Test
+    public void jsonStringsAndWhitespace() throws Exception {
+        Assert.assertEquals("{\"note\":\"text with \\\"card\\\" and {braces} [x]\",\"secret\":\"****\"}"
+            , json("{\"note\":\"text with \\\"card\\\" and {braces} [x]\",\"secret\":\"\u017e\"}"));
+        Assert.assertEquals("  {\n  \"secret\" : \"****\" ,\n \"k\": \"v\"\n}"
+            , json("  {\n  \"secret\" : \"s\" ,\n \"k\": \"v\"\n}"));
+    }
+
+    @Test
+    public void jsonInvalid() throws Exception {
+        Assert.assertEquals("{\"card\":", json("{\"card\":"));
+        Assert.assertEquals("not json", json("not json"));
+    }
+
+    @Test
+    public void xmlElements() throws Exception {
+        Assert.assertEquals("<a><Password>****</Password><b>x</b></a>", xml("<a><Password>secret</Password><b>x</b></a>"));
+        Assert.assertEquals("<ns:a xmlns:ns=\"u\"><ns:Password>****</ns:Password></ns:a>", xml("<ns:a xmlns:ns=\"u\"><ns:Password>s</ns:Password></ns:a>"));
+        Assert.assertEquals("<a><Password attr=\"1\">****</Password></a>", xml("<a><Password attr=\"1\">v</Password></a>"));
+        Assert.assertEquals("<a><Password>****</Password>t</a>", xml("<a><Password><inner>1</inner></Password>t</a>"));
+        Assert.assertEquals("<?xml version=\"1.0\"?><a><PasswordHint>h</PasswordHint></a>", xml("<?xml version=\"1.0\"?><a><PasswordHint>h</PasswordHint></a>"));
+    }
+
+    @Test
+    public void xmlEmptyCdataAndComments() throws Exception {
+        Assert.assertEquals("<a><Password/><Password>****</Password></a>", xml("<a><Password/><Password></Password></a>"));
+        Assert.assertEquals("<a><Password>****</Password></a>", xml("<a><Password><![CDATA[x<y]]></Password></a>"));
+        Assert.assertEquals("<a><!-- <Password>c</Password> --><Password>****</Password></a>"
+            , xml("<a><!-- <Password>c</Password> --><Password>real</Password></a>"));
+    }
+
+    @Test
+    public void xmlAttributes() throws Exception {
+        Assert.assertEquals("<a pin=\"****\" other='x' pin2=\"y\"/>", xml("<a pin=\"1234\" other='x' pin2=\"y\"/>"));
+    }
+
+    @Test
+    public void autoDetection() throws Exception {
+        Assert.assertEquals(" {\"secret\":\"****\"}", mask(masking::stream, " {\"secret\":1}"));
+        Assert.assertEquals("<a pin=\"****\"/>", mask(masking::stream, "<a pin=\"1\"/>"));
+        Assert.assertEquals("plain secret", mask(masking::stream, "plain secret"));
+    }
+
+    @Test
+    public void headers() throws Exception {
+        Assert.assertEquals("****", masking.header("authorization", "x"));
+        Assert.assertEquals("x", masking.header("Accept", "x"));
+        Assert.assertFalse(masking.sensitiveHeader(null));
+        Map<String, List<String>> masked = masking.maskHeaders(Map.of("Authorization", Arrays.asList("a", "b"), "Accept", List.of("x")));
+        Assert.assertEquals(Arrays.asList("****", "****"), masked.get("Authorization"));
+        Assert.assertEquals(List.of("x"), masked.get("Accept"));
+    }
+
+    @Test
+    public void customMask() throws Exception {
+        Assert.assertEquals("{\"x\":\"#\"}", mask(Masking.instance().mask("#").json("/x")::jsonStream, "{\"x\":\"1\"}"));
+    }
+}
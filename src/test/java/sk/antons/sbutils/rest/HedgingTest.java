@@ -0,0 +1,128 @@
+/*
+ *
+ */
+package sk.antons.sbutils.rest;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ *
+ * @author antons
+ */
+public class HedgingTest {
+    private HttpServer server;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final CountDownLatch release = new CountDownLatch(1);
+    private volatile int slow = -1;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", exchange -> {
+            int n = requests.incrementAndGet();
+            try {
+                // n-th request waits until test ends (it must be aborted by client)
+                if(n == slow) release.await(30, TimeUnit.SECONDS);
+                byte[] body = ("r" + n).getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(body);
+                }
+            } catch(InterruptedException | IOException e) {
+                // client closed connection
+            } finally {
+                exchange.close();
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        server.stop(0);
+    }
+
+    private String root() { return "http://127.0.0.1:" + server.getAddress().getPort(); }
+
+    private static void record(Hedging hedging, int count, long fromMillis) {
+        for(int i = 0; i < count; i++) hedging.record((fromMillis + i) * 1000000L);
+    }
+
+    @Test
+    public void percentileDelay() throws Exception {
+        Hedging hedging = Hedging.instance().minSamples(100);
+        record(hedging, 99, 1);
+        Assert.assertEquals(-1, hedging.delay());
+        record(hedging, 1, 100);
+        Assert.assertEquals(95, hedging.delay());
+
+        hedging = Hedging.instance().percentile(50).minSamples(10).delay(20, 40);
+        record(hedging, 10, 1);
+        Assert.assertEquals(20, hedging.delay());
+        record(hedging, 90, 100);
+        Assert.assertEquals(40, hedging.delay());
+    }
+
+    @Test
+    public void recomputedFromLastSamples() throws Exception {
+        Hedging hedging = Hedging.instance().sampleSize(100).minSamples(100);
+        record(hedging, 100, 1000);
+        Assert.assertEquals(1094, hedging.delay());
+        // old samples are overwritten, delay is recomputed after each 100 calls
+        for(int i = 0; i < 99; i++) hedging.record(10 * 1000000L);
+        Assert.assertEquals(1094, hedging.delay());
+        hedging.record(10 * 1000000L);
+        Assert.assertEquals(10, hedging.delay());
+    }
+
+    @Test
+    public void disabledWithoutRequestFactory() throws Exception {
+        RestTemplateClient client = RestTemplateClient.Builder.instance()
+            .template(new RestTemplate())
+            .hedging(Hedging.instance())
+            .client();
+        Assert.assertNull(client.hedging);
+    }
+
+    @Test
+    public void slowRequestIsHedgedAndAborted() throws Exception {
+        Hedging.SimpleRequestFactory factory = new Hedging.SimpleRequestFactory();
+        factory.setReadTimeout(60000);
+        Hedging hedging = Hedging.instance().minSamples(1).delay(100, 100).requestFactory(factory);
+        RestTemplateClient client = RestTemplateClient.Builder.instance()
+            .root(root())
+            .template(new RestTemplate(factory))
+            .hedging(hedging)
+            .client();
+        Assert.assertEquals(-1, hedging.delay());
+        Assert.assertEquals("r1", client.get().path("/a").call(String.class));
+        Assert.assertEquals(100, hedging.delay());
+
+        slow = 2;
+        long start = System.nanoTime();
+        Assert.assertEquals("r3", client.get().path("/a").call(String.class));
+        long millis = (System.nanoTime() - start) / 1000000;
+        Assert.assertEquals(3, requests.get());
+        Assert.assertTrue("slow request must be aborted, time: " + millis, millis < 10000);
+
+        // fast request is not hedged
+        Assert.assertEquals("r4", client.get().path("/a").call(String.class));
+        Thread.sleep(200);
+        Assert.assertEquals(4, requests.get());
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ *
+ */
+package sk.antons.sbutils.rest;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author antons
+ */
+public class RequestUrlTest {
+
+    private final StubHttp http = StubHttp.instance(200, "ok");
+    private final RestTemplateClient client = http.client();
+
+    private String url(RestTemplateClient.Request request) {
+        request.call();
+        return http.uris.get(http.uris.size() - 1);
+    }
+
+    @Test
+    public void query() throws Exception {
+        Assert.assertEquals("http://host/item?a=1&b=x%20y", url(client.get().path("/item").query("a", 1).query("b", "x y")));
+        Assert.assertEquals("http://host/item?flag", url(client.get().path("/item").query("flag", null)));
+        Assert.assertEquals("http://host/item", url(client.get().path("/item")));
+    }
+
+    @Test
+    public void queryAppendedToPathQuery() throws Exception {
+        Assert.assertEquals("http://host/item?x=0&a=1", url(client.get().path("/item?x=0").query("a", 1)));
+        Assert.assertEquals("http://host/item/5?x=0&a=1", url(client.get().path("/item/{id}?x=0", 5).query("a", 1)));
+        Assert.assertEquals("http://host/item?a=1", url(client.get().path("/item?").query("a", 1)));
+    }
+
+    @Test
+    public void changeAfterCall() throws Exception {
+        RestTemplateClient.Request request = client.get().path("/item").query("a", 1);
+        Assert.assertEquals("http://host/item?a=1", url(request));
+        Assert.assertEquals("http://host/item?a=1&b=2", url(request.query("b", 2)));
+        Assert.assertEquals("http://host/other?a=1&b=2", url(request.path("/other")));
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ *
+ */
+package sk.antons.sbutils.rest;
+
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+
+/**
+ *
+ * @author antons
+ */
+public class ResponseValidatorTest {
+
+    private static RestTemplateClient client(int status, String body, RestTemplateClient.Builder builder) {
+        return StubHttp.instance(status, body).client(builder);
+    }
+
+    private static HttpStatus rejected(RestTemplateClient client) {
+        try {
+            client.get().path("/a").call(String.class);
+        } catch(RestTemplateClient.HttpException e) {
+            return e.getStatus();
+        }
+        Assert.fail("response must be rejected");
+        return null;
+    }
+
+    @Test
+    public void defaultValidator() throws Exception {
+        Assert.assertEquals("ok", client(200, "ok", RestTemplateClient.Builder.instance()).get().path("/a").call(String.class));
+        Assert.assertEquals(HttpStatus.FOUND, rejected(client(302, "moved", RestTemplateClient.Builder.instance())));
+    }
+
+    @Test
+    public void customValidator() throws Exception {
+        Assert.assertEquals("ok", client(201, "ok", RestTemplateClient.Builder.instance()
+            .responseValidator(RestTemplateClient.ResponseValidator.listedCodes(201))).get().path("/a").call(String.class));
+        Assert.assertEquals(HttpStatus.OK, rejected(client(200, "ok", RestTemplateClient.Builder.instance()
+            .responseValidator(RestTemplateClient.ResponseValidator.listedCodes(201)))));
+        Assert.assertEquals("moved", client(302, "moved", RestTemplateClient.Builder.instance()
+            .responseValidator(response -> true)).get().path("/a").call(String.class));
+    }
+
+    @Test
+    public void streamValidator() throws Exception {
+        try (Stream<Integer> stream = client(200, "[1,2]", RestTemplateClient.Builder.instance()).get().path("/a").stream(Integer.class)) {
+            Assert.assertEquals(List.of(1, 2), stream.collect(Collectors.toList()));
+        }
+        RestTemplateClient client = client(200, "[1,2]", RestTemplateClient.Builder.instance()
+            .responseValidator(RestTemplateClient.ResponseValidator.listedCodes(201)));
+        try (Stream<Integer> stream = client.get().path("/a").stream(Integer.class)) {
+            stream.count();
+            Assert.fail("response must be rejected");
+        } catch(RestTemplateClient.HttpException e) {
+            Assert.assertEquals(HttpStatus.OK, e.getStatus());
+        }
+    }
+}
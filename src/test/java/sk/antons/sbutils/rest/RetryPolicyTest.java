@@ -0,0 +1,97 @@
+/*
+ *
+ */
+package sk.antons.sbutils.rest;
+
+import java.io.IOException;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+
+/**
+ *
+ * @author antons
+ */
+public class RetryPolicyTest {
+
+    private static RestTemplateClient.HttpException io() {
+        return new RestTemplateClient.HttpException(new IOException("reset"));
+    }
+
+    private static RestTemplateClient.HttpException status(HttpStatus status) {
+        return new RestTemplateClient.HttpException(status.is5xxServerError()
+            ? new HttpServerErrorException(status)
+            : new HttpClientErrorException(status));
+    }
+
+    @Test
+    public void budget() throws Exception {
+        RetryPolicy retry = RetryPolicy.instance().minRetriesPerSecond(0).budgetRatio(0.5).maxAttempts(10);
+        Assert.assertFalse(retry.retry(HttpMethod.GET, io(), 1));
+        retry.deposit();
+        Assert.assertFalse(retry.retry(HttpMethod.GET, io(), 1));
+        retry.deposit();
+        Assert.assertTrue(retry.retry(HttpMethod.GET, io(), 1));
+        Assert.assertFalse(retry.retry(HttpMethod.GET, io(), 2));
+        // unused budget is capped
+        for(int i = 0; i < 1000; i++) retry.deposit();
+        int retries = 0;
+        while(retry.retry(HttpMethod.GET, io(), 1)) retries++;
+        Assert.assertEquals(60, retries);
+    }
+
+    @Test
+    public void minRetriesPerSecond() throws Exception {
+        RetryPolicy retry = RetryPolicy.instance().minRetriesPerSecond(5).budgetRatio(0);
+        int retries = 0;
+        while(retry.retry(HttpMethod.GET, io(), 1)) retries++;
+        Assert.assertEquals(5, retries);
+        Thread.sleep(500);
+        Assert.assertTrue(retry.retry(HttpMethod.GET, io(), 1));
+    }
+
+    @Test
+    public void retryable() throws Exception {
+        RetryPolicy retry = RetryPolicy.instance().maxAttempts(3);
+        Assert.assertTrue(retry.retry(HttpMethod.GET, status(HttpStatus.SERVICE_UNAVAILABLE), 2));
+        Assert.assertFalse(retry.retry(HttpMethod.GET, status(HttpStatus.SERVICE_UNAVAILABLE), 3));
+        Assert.assertFalse(retry.retry(HttpMethod.POST, status(HttpStatus.SERVICE_UNAVAILABLE), 1));
+        Assert.assertFalse(retry.retry(HttpMethod.GET, status(HttpStatus.INTERNAL_SERVER_ERROR), 1));
+        Assert.assertFalse(retry.retry(HttpMethod.GET, status(HttpStatus.NOT_FOUND), 1));
+        Assert.assertFalse(retry.retry(HttpMethod.GET, new RestTemplateClient.HttpException(new IllegalStateException()), 1));
+        Assert.assertFalse(retry.retry(HttpMethod.GET, new RestTemplateClient.HttpException(new CircuitBreaker.OpenException("b")), 1));
+    }
+
+    @Test
+    public void backoff() throws Exception {
+        RetryPolicy retry = RetryPolicy.instance().backoff(100, 1000).jitter(0);
+        Assert.assertEquals(100, retry.backoff(1));
+        Assert.assertEquals(400, retry.backoff(3));
+        Assert.assertEquals(1000, retry.backoff(10));
+        retry.jitter(0.5);
+        for(int i = 0; i < 100; i++) {
+            long backoff = retry.backoff(2);
+            Assert.assertTrue(String.valueOf(backoff), (backoff >= 100) && (backoff <= 200));
+        }
+    }
+
+    @Test
+    public void clientRetriesWithinBudget() throws Exception {
+        StubHttp http = StubHttp.instance(503, "unavailable");
+        RestTemplateClient client = http.client(RestTemplateClient.Builder.instance()
+            .retry(RetryPolicy.instance().maxAttempts(3).backoff(1, 1).minRetriesPerSecond(0).budgetRatio(0.5)));
+        for(int i = 0; i < 2; i++) {
+            try {
+                client.get().path("/a").call(String.class);
+                Assert.fail("503 must fail");
+            } catch(RestTemplateClient.HttpException e) {
+                Assert.assertTrue(e.getError() instanceof HttpServerErrorException);
+            }
+        }
+        // first call has not enough budget, second one is retried once
+        Assert.assertEquals(3, http.uris.size());
+    }
+}
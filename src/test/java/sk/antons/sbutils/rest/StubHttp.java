@@ -0,0 +1,105 @@
+/*
+ *
+ */
+package sk.antons.sbutils.rest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * Request factory which serves responses from handler in memory and
+ * records requested uris and headers of executed requests.
+ *
+ * @author antons
+ */
+public class StubHttp implements ClientHttpRequestFactory {
+
+    public interface Handler {
+        Response handle(URI uri, HttpMethod method) throws IOException;
+    }
+
+    public final List<String> uris = Collections.synchronizedList(new ArrayList<>());
+    public final List<HttpHeaders> headers = Collections.synchronizedList(new ArrayList<>());
+    public final List<Response> responses = Collections.synchronizedList(new ArrayList<>());
+    private final Handler handler;
+
+    public StubHttp(Handler handler) { this.handler = handler; }
+    public static StubHttp instance(Handler handler) { return new StubHttp(handler); }
+    public static StubHttp instance(int status, String body) { return new StubHttp((uri, method) -> response(status, body)); }
+
+    public static Response response(int status, String body) { return new Response(status, body); }
+
+    public RestTemplateClient client() { return client(RestTemplateClient.Builder.instance()); }
+    public RestTemplateClient client(RestTemplateClient.Builder builder) {
+        return builder.root("http://host").template(new RestTemplate(this)).client();
+    }
+
+    @Override
+    public ClientHttpRequest createRequest(URI uri, HttpMethod method) throws IOException {
+        uris.add(uri.toString());
+        return new Request(uri, method);
+    }
+
+    private class Request implements ClientHttpRequest {
+        private final URI uri;
+        private final HttpMethod method;
+        private final HttpHeaders headers = new HttpHeaders();
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        private Request(URI uri, HttpMethod method) {
+            this.uri = uri;
+            this.method = method;
+        }
+
+        @Override
+        public ClientHttpResponse execute() throws IOException {
+            StubHttp.this.headers.add(headers);
+            Response response = handler.handle(uri, method);
+            responses.add(response);
+            return response;
+        }
+
+        @Override public String getMethodValue() { return method.name(); }
+        @Override public URI getURI() { return uri; }
+        @Override public HttpHeaders getHeaders() { return headers; }
+        @Override public OutputStream getBody() throws IOException { return body; }
+    }
+
+    public static class Response implements ClientHttpResponse {
+        private final int status;
+        private final byte[] body;
+        private final HttpHeaders headers = new HttpHeaders();
+        public final AtomicBoolean closed = new AtomicBoolean();
+
+        private Response(int status, String body) {
+            this.status = status;
+            this.body = body == null ? new byte[0] : body.getBytes(StandardCharsets.UTF_8);
+            headers.setContentType(MediaType.TEXT_PLAIN);
+            headers.setContentLength(this.body.length);
+        }
+
+        @Override public HttpStatus getStatusCode() throws IOException { return HttpStatus.valueOf(status); }
+        @Override public int getRawStatusCode() throws IOException { return status; }
+        @Override public String getStatusText() throws IOException { return String.valueOf(status); }
+        @Override public HttpHeaders getHeaders() { return headers; }
+        @Override public InputStream getBody() throws IOException { return new ByteArrayInputStream(body); }
+        @Override public void close() { closed.set(true); }
+    }
+}